@@ -0,0 +1,83 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The time needed to create and initialize a single configured component or
+ * to execute a startup phase.
+ */
+@Immutable
+public final class ComponentTiming
+{
+  private final String m_sName;
+  private final String m_sClassName;
+  private final long m_nDurationMillis;
+
+  public ComponentTiming (@Nonnull final String sName, @Nullable final String sClassName, final long nDurationMillis)
+  {
+    m_sName = sName;
+    m_sClassName = sClassName;
+    m_nDurationMillis = nDurationMillis;
+  }
+
+  /**
+   * @return The element name of the component, e.g. <code>module</code>, or
+   *         the name of the phase
+   */
+  @Nonnull
+  public String getName ()
+  {
+    return m_sName;
+  }
+
+  @Nullable
+  public String getClassName ()
+  {
+    return m_sClassName;
+  }
+
+  public long getDurationMillis ()
+  {
+    return m_nDurationMillis;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return m_nDurationMillis + " ms " + m_sName + (m_sClassName == null ? "" : " " + m_sClassName);
+  }
+}
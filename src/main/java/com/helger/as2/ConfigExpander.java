@@ -0,0 +1,263 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.as2.util.ServerXMLUtil;
+import com.helger.as2lib.exception.OpenAS2Exception;
+import com.helger.as2lib.exception.WrappedException;
+import com.helger.as2lib.util.XMLUtil;
+import com.phloc.commons.io.streams.StreamUtils;
+import com.phloc.commons.microdom.IMicroDocument;
+import com.phloc.commons.microdom.IMicroElement;
+import com.phloc.commons.microdom.impl.MicroDocument;
+import com.phloc.commons.microdom.serialize.MicroReader;
+import com.phloc.commons.string.StringHelper;
+
+/**
+ * Resolves includes and module templates of a {@link XMLSession}
+ * configuration. Relative include files are resolved against the directory of
+ * the including file. Templates are global and may be defined anywhere in the
+ * configuration, also after the modules using them, because the modules are
+ * expanded after all includes were read.
+ */
+final class ConfigExpander
+{
+  private final String m_sBaseDirectory;
+  // Template name to the attributes with %home% already resolved
+  private final Map <String, Map <String, String>> m_aTemplates = new HashMap <String, Map <String, String>> ();
+  // The canonical paths of the files currently being included
+  private final Set <String> m_aIncludeChain = new HashSet <String> ();
+  // The expanded modules of each processor element
+  private final Map <IMicroElement, List <IMicroElement>> m_aModules = new IdentityHashMap <IMicroElement, List <IMicroElement>> ();
+
+  /**
+   * @param sBaseDirectory
+   *        The base directory to resolve <code>%home%</code> and the relative
+   *        include files of the main configuration against. May be
+   *        <code>null</code>.
+   */
+  ConfigExpander (@Nullable final String sBaseDirectory)
+  {
+    m_sBaseDirectory = sBaseDirectory;
+  }
+
+  @Nonnull
+  private IMicroElement _readIncludedRoot (@Nonnull final File aFile) throws OpenAS2Exception
+  {
+    InputStream aIS = null;
+    try
+    {
+      aIS = new FileInputStream (aFile);
+      final IMicroDocument aDoc = MicroReader.readMicroXML (aIS);
+      if (aDoc == null || aDoc.getDocumentElement () == null)
+        throw new OpenAS2Exception ("Failed to read included file " + aFile.getAbsolutePath ());
+      return aDoc.getDocumentElement ();
+    }
+    catch (final IOException ex)
+    {
+      throw new WrappedException (ex);
+    }
+    finally
+    {
+      StreamUtils.close (aIS);
+    }
+  }
+
+  private void _include (@Nonnull final IMicroElement eInclude,
+                         final boolean bInProcessor,
+                         @Nullable final String sDirectory,
+                         @Nonnull final List <IMicroElement> aTarget,
+                         @Nonnull final List <List <IMicroElement>> aModuleLists) throws OpenAS2Exception
+  {
+    final String sFilename = eInclude.getAttribute (XMLSession.ATTR_FILE);
+    if (StringHelper.hasNoText (sFilename))
+      throw new OpenAS2Exception (XMLSession.EL_INCLUDE + " is missing the " + XMLSession.ATTR_FILE + " attribute");
+
+    File aFile = new File (ServerXMLUtil.resolveDirectory (m_sBaseDirectory, sFilename));
+    if (!aFile.isAbsolute () && sDirectory != null)
+      aFile = new File (sDirectory, aFile.getPath ());
+
+    String sKey;
+    try
+    {
+      sKey = aFile.getCanonicalPath ();
+    }
+    catch (final IOException ex)
+    {
+      throw new WrappedException (ex);
+    }
+    if (!m_aIncludeChain.add (sKey))
+      throw new OpenAS2Exception ("Recursive include of " + sKey);
+    try
+    {
+      // Includes of the included file are relative to its own directory
+      _expandChildren (_readIncludedRoot (aFile),
+                       bInProcessor,
+                       aFile.getAbsoluteFile ().getParent (),
+                       aTarget,
+                       aModuleLists);
+    }
+    finally
+    {
+      m_aIncludeChain.remove (sKey);
+    }
+  }
+
+  private void _addTemplate (@Nonnull final IMicroElement eTemplate) throws OpenAS2Exception
+  {
+    final String sName = eTemplate.getAttribute (XMLSession.ATTR_NAME);
+    if (StringHelper.hasNoText (sName))
+      throw new OpenAS2Exception (XMLSession.EL_MODULE_TEMPLATE + " is missing the " + XMLSession.ATTR_NAME + " attribute");
+    if (m_aTemplates.containsKey (sName))
+      throw new OpenAS2Exception (XMLSession.EL_MODULE_TEMPLATE + " '" + sName + "' is defined more than once");
+
+    final Map <String, String> aAttrs = new LinkedHashMap <String, String> ();
+    for (final Map.Entry <String, String> aEntry : XMLUtil.getAttrsWithLowercaseName (eTemplate))
+      if (!aEntry.getKey ().equals (XMLSession.ATTR_NAME))
+        aAttrs.put (aEntry.getKey (), ServerXMLUtil.resolveDirectory (m_sBaseDirectory, aEntry.getValue ()));
+    m_aTemplates.put (sName, aAttrs);
+  }
+
+  @Nonnull
+  private IMicroElement _expandModule (@Nonnull final IMicroElement eModule) throws OpenAS2Exception
+  {
+    final String sTemplate = eModule.getAttribute (XMLSession.ATTR_TEMPLATE);
+    if (sTemplate == null)
+      return eModule;
+
+    final Map <String, String> aTemplateAttrs = m_aTemplates.get (sTemplate);
+    if (aTemplateAttrs == null)
+      throw new OpenAS2Exception ("Undefined " + XMLSession.EL_MODULE_TEMPLATE + " '" + sTemplate + "'");
+
+    // The module attributes override the template attributes
+    final IMicroElement ret = new MicroDocument ().appendElement (XMLSession.EL_MODULE);
+    for (final Map.Entry <String, String> aEntry : aTemplateAttrs.entrySet ())
+      ret.setAttribute (aEntry.getKey (), aEntry.getValue ());
+    for (final Map.Entry <String, String> aEntry : XMLUtil.getAttrsWithLowercaseName (eModule))
+      if (!aEntry.getKey ().equals (XMLSession.ATTR_TEMPLATE))
+        ret.setAttribute (aEntry.getKey (), aEntry.getValue ());
+    return ret;
+  }
+
+  private void _expandChildren (@Nonnull final IMicroElement eParent,
+                                final boolean bInProcessor,
+                                @Nullable final String sDirectory,
+                                @Nonnull final List <IMicroElement> aTarget,
+                                @Nonnull final List <List <IMicroElement>> aModuleLists) throws OpenAS2Exception
+  {
+    for (final IMicroElement eChild : eParent.getAllChildElements ())
+    {
+      final String sTagName = eChild.getTagName ();
+      if (sTagName.equals (XMLSession.EL_INCLUDE))
+        _include (eChild, bInProcessor, sDirectory, aTarget, aModuleLists);
+      else
+        if (sTagName.equals (XMLSession.EL_MODULE_TEMPLATE))
+          _addTemplate (eChild);
+        else
+          if (bInProcessor)
+          {
+            // Expanded after all templates are known
+            if (sTagName.equals (XMLSession.EL_MODULE))
+              aTarget.add (eChild);
+          }
+          else
+          {
+            if (sTagName.equals (XMLSession.EL_PROCESSOR))
+            {
+              final List <IMicroElement> aModules = new ArrayList <IMicroElement> ();
+              _expandChildren (eChild, true, sDirectory, aModules, aModuleLists);
+              m_aModules.put (eChild, aModules);
+              aModuleLists.add (aModules);
+            }
+            aTarget.add (eChild);
+          }
+    }
+  }
+
+  /**
+   * Expand the children of the passed element, which must be the root element
+   * of the main configuration or a processor element of it.
+   *
+   * @param eParent
+   *        The parent element
+   * @param bInProcessor
+   *        <code>true</code> if the children are processor modules
+   * @param aTarget
+   *        The list to add the expanded elements to
+   * @throws OpenAS2Exception
+   *         In case of an invalid include or template
+   */
+  void expandChildren (@Nonnull final IMicroElement eParent,
+                       final boolean bInProcessor,
+                       @Nonnull final List <IMicroElement> aTarget) throws OpenAS2Exception
+  {
+    final List <List <IMicroElement>> aModuleLists = new ArrayList <List <IMicroElement>> ();
+    final int nFirstModule = aTarget.size ();
+    _expandChildren (eParent, bInProcessor, m_sBaseDirectory, aTarget, aModuleLists);
+
+    // Now all templates are known
+    if (bInProcessor)
+      _expandModules (aTarget, nFirstModule);
+    for (final List <IMicroElement> aModules : aModuleLists)
+      _expandModules (aModules, 0);
+  }
+
+  private void _expandModules (@Nonnull final List <IMicroElement> aModules, final int nStart) throws OpenAS2Exception
+  {
+    for (int i = nStart; i < aModules.size (); ++i)
+      aModules.set (i, _expandModule (aModules.get (i)));
+  }
+
+  @Nonnull
+  List <IMicroElement> getModules (@Nonnull final IMicroElement eProcessor)
+  {
+    final List <IMicroElement> ret = m_aModules.get (eProcessor);
+    return ret != null ? ret : new ArrayList <IMicroElement> ();
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.phloc.commons.annotations.ReturnsMutableCopy;
+import com.phloc.commons.collections.ContainerHelper;
+
+/**
+ * Collects the time needed for each startup phase and component, measured with
+ * the monotonic {@link System#nanoTime()} clock, and whether the server is
+ * ready to accept messages.
+ */
+@ThreadSafe
+public final class StartupReport
+{
+  private final long m_nStartNanos = System.nanoTime ();
+  private final List <ComponentTiming> m_aTimings = new ArrayList <ComponentTiming> ();
+  private volatile long m_nReadyMillis = -1;
+
+  public StartupReport ()
+  {}
+
+  public void addTiming (@Nonnull final ComponentTiming aTiming)
+  {
+    synchronized (m_aTimings)
+    {
+      m_aTimings.add (aTiming);
+    }
+  }
+
+  /**
+   * Add the timing of a phase that started at the passed time.
+   *
+   * @param sName
+   *        Phase name
+   * @param sDetails
+   *        Optional details, e.g. a class name
+   * @param nStartNanos
+   *        The start as returned by {@link System#nanoTime()}
+   */
+  public void addTiming (@Nonnull final String sName, @Nullable final String sDetails, final long nStartNanos)
+  {
+    addTiming (new ComponentTiming (sName, sDetails, (System.nanoTime () - nStartNanos) / 1000000));
+  }
+
+  /**
+   * @return All timings in the order they were recorded
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public List <ComponentTiming> getAllTimings ()
+  {
+    synchronized (m_aTimings)
+    {
+      return ContainerHelper.newList (m_aTimings);
+    }
+  }
+
+  /**
+   * @return All timings, the slowest first
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public List <ComponentTiming> getAllTimingsSorted ()
+  {
+    final List <ComponentTiming> ret = getAllTimings ();
+    Collections.sort (ret, new Comparator <ComponentTiming> ()
+    {
+      public int compare (final ComponentTiming aTiming1, final ComponentTiming aTiming2)
+      {
+        final long n1 = aTiming1.getDurationMillis ();
+        final long n2 = aTiming2.getDurationMillis ();
+        return n1 > n2 ? -1 : n1 == n2 ? 0 : 1;
+      }
+    });
+    return ret;
+  }
+
+  /**
+   * Mark the server as ready. Only the first call has an effect.
+   */
+  public void setReady ()
+  {
+    if (m_nReadyMillis < 0)
+      m_nReadyMillis = getElapsedMillis ();
+  }
+
+  public boolean isReady ()
+  {
+    return m_nReadyMillis >= 0;
+  }
+
+  /**
+   * @return The milliseconds from the creation of this report until the
+   *         server was ready or -1 if it is not yet ready.
+   */
+  public long getReadyMillis ()
+  {
+    return m_nReadyMillis;
+  }
+
+  public long getElapsedMillis ()
+  {
+    return (System.nanoTime () - m_nStartNanos) / 1000000;
+  }
+
+  /**
+   * @return The report as lines of text, the slowest timing first
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public List <String> getReportLines ()
+  {
+    final List <String> ret = new ArrayList <String> ();
+    ret.add (isReady () ? "Ready after " + m_nReadyMillis + " ms" : "Not ready after " + getElapsedMillis () + " ms");
+    for (final ComponentTiming aTiming : getAllTimingsSorted ())
+      ret.add (aTiming.toString ());
+    return ret;
+  }
+}
@@ -36,17 +36,33 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.helger.as2.cmd.CommandManager;
 import com.helger.as2.cmd.ICommandRegistry;
 import com.helger.as2.cmd.ICommandRegistryFactory;
 import com.helger.as2.cmd.processor.AbstractCommandProcessor;
+import com.helger.as2.cmd.processor.ICommandProcessor;
 import com.helger.as2.util.ServerXMLUtil;
+import com.helger.as2lib.IDynamicComponent;
 import com.helger.as2lib.Session;
 import com.helger.as2lib.cert.ICertificateFactory;
 import com.helger.as2lib.exception.OpenAS2Exception;
+import com.helger.as2lib.exception.WrappedException;
 import com.helger.as2lib.partner.IPartnershipFactory;
 import com.helger.as2lib.processor.IProcessor;
 import com.helger.as2lib.processor.module.IProcessorModule;
@@ -54,9 +70,33 @@ import com.phloc.commons.io.streams.StreamUtils;
 import com.phloc.commons.microdom.IMicroDocument;
 import com.phloc.commons.microdom.IMicroElement;
 import com.phloc.commons.microdom.serialize.MicroReader;
+import com.phloc.commons.string.StringParser;
 
 /**
- * original author unknown in this release added command registry methods
+ * original author unknown in this release added command registry methods<br>
+ * The configured components are created in two phases: first all top level
+ * components (certificate factory, partnership factory, command registry,
+ * command processors and processor) which are independent of each other,
+ * afterwards the processor modules which may use the certificate and
+ * partnership factory. Within each phase the components are initialized in
+ * parallel (see the <code>initthreads</code> attribute of the root element)
+ * but registered in document order. If several components fail, the error of
+ * the first one in document order is reported. The time needed for each
+ * component is recorded in the {@link StartupReport}. Each component is
+ * created by one of the protected <code>load...</code> methods, which
+ * subclasses may override; registration is done by {@link #load(InputStream)}.
+ * If loading fails, the command processors created so far are terminated to
+ * release their server sockets.<br>
+ * Before that <code>&lt;include file="..."/&gt;</code> elements are replaced by
+ * the children of the root element of the included file, both on the top
+ * level and within the processor. A
+ * <code>&lt;moduleTemplate name="..." classname="..." .../&gt;</code> defines
+ * attributes shared by several modules; a
+ * <code>&lt;module template="..." .../&gt;</code> uses all attributes of the
+ * template and may override each of them. <code>%home%</code> is resolved once
+ * per template. Templates may be defined anywhere, also after their first use
+ * or in an included file. Relative include files are resolved against the
+ * directory of the including file.
  *
  * @author joseph mcverry
  */
@@ -67,11 +107,70 @@ public class XMLSession extends Session implements ICommandRegistryFactory
   public static final String EL_PROCESSOR = "processor";
   public static final String EL_PARTNERSHIPS = "partnerships";
   public static final String EL_COMMANDS = "commands";
+  public static final String EL_MODULE = "module";
+  /** Includes the child elements of the root element of another file */
+  public static final String EL_INCLUDE = "include";
+  /** Defines module attributes to be used by several modules */
+  public static final String EL_MODULE_TEMPLATE = "moduleTemplate";
+  public static final String ATTR_FILE = "file";
+  public static final String ATTR_NAME = "name";
+  public static final String ATTR_TEMPLATE = "template";
   public static final String PARAM_BASE_DIRECTORY = "basedir";
+  /** Number of threads used to initialize the components */
+  public static final String PARAM_INIT_THREADS = "initthreads";
+  /** File created as soon as the server is ready */
+  public static final String PARAM_READY_FILE = "readyfile";
+  /** Seconds to wait for in-flight messages on a draining shutdown */
+  public static final String PARAM_DRAIN_TIMEOUT = "draintimeout";
+  public static final int DEFAULT_DRAIN_TIMEOUT = 30;
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (XMLSession.class);
 
   private ICommandRegistry commandRegistry;
   private String baseDirectory;
   private CommandManager cmdManager;
+  private final StartupReport m_aStartupReport = new StartupReport ();
+  private String m_sReadyFile;
+  private int m_nDrainTimeoutSeconds = DEFAULT_DRAIN_TIMEOUT;
+
+  /**
+   * Creates and initializes a single component via one of the
+   * <code>load...</code> methods and measures the time needed.
+   */
+  private abstract static class InitTask implements Callable <IDynamicComponent>
+  {
+    private final String m_sName;
+    private final IMicroElement m_aElement;
+    private volatile long m_nDurationMillis;
+
+    InitTask (@Nonnull final String sName, @Nonnull final IMicroElement aElement)
+    {
+      m_sName = sName;
+      m_aElement = aElement;
+    }
+
+    @Nonnull
+    protected abstract IDynamicComponent create () throws OpenAS2Exception;
+
+    public IDynamicComponent call () throws OpenAS2Exception
+    {
+      final long nStart = System.nanoTime ();
+      try
+      {
+        return create ();
+      }
+      finally
+      {
+        m_nDurationMillis = (System.nanoTime () - nStart) / 1000000;
+      }
+    }
+
+    @Nonnull
+    ComponentTiming getTiming ()
+    {
+      return new ComponentTiming (m_sName, m_aElement.getAttribute ("classname"), m_nDurationMillis);
+    }
+  }
 
   public XMLSession (final InputStream in) throws OpenAS2Exception
   {
@@ -104,85 +203,386 @@ public class XMLSession extends Session implements ICommandRegistryFactory
     return commandRegistry;
   }
 
+  /**
+   * @return The startup report containing the initialization time of all
+   *         configured components. Never <code>null</code>.
+   */
+  @Nonnull
+  public StartupReport getStartupReport ()
+  {
+    return m_aStartupReport;
+  }
+
+  /**
+   * @return The absolute path of the file to create when the server is ready
+   *         or <code>null</code> if none is configured.
+   */
+  @Nullable
+  public String getReadyFile ()
+  {
+    return m_sReadyFile;
+  }
+
+  /**
+   * @return The maximum number of seconds to wait for in-flight messages on a
+   *         draining shutdown
+   */
+  public int getDrainTimeoutSeconds ()
+  {
+    return m_nDrainTimeoutSeconds;
+  }
+
+  @Nonnull
+  private static ExecutorService _createInitExecutor (final int nThreads)
+  {
+    return Executors.newFixedThreadPool (nThreads, new ThreadFactory ()
+    {
+      private final AtomicInteger m_aCounter = new AtomicInteger (0);
+
+      public Thread newThread (final Runnable aRunnable)
+      {
+        final Thread ret = new Thread (aRunnable, "OpenAS2-init-" + m_aCounter.incrementAndGet ());
+        ret.setDaemon (true);
+        return ret;
+      }
+    });
+  }
+
+  /**
+   * Run all tasks and wait for all of them.
+   *
+   * @param aCreated
+   *        All successfully created components are added to this list, even if
+   *        other tasks fail
+   * @return The created components in the order of the tasks
+   * @throws OpenAS2Exception
+   *         The error of the first failed task in task order
+   */
+  @Nonnull
+  private List <IDynamicComponent> _runAll (@Nonnull final ExecutorService aExecutor,
+                                            @Nonnull final List <InitTask> aTasks,
+                                            @Nonnull final List <IDynamicComponent> aCreated) throws OpenAS2Exception
+  {
+    final List <Future <IDynamicComponent>> aFutures = new ArrayList <Future <IDynamicComponent>> ();
+    for (final InitTask aTask : aTasks)
+      aFutures.add (aExecutor.submit (aTask));
+
+    final List <IDynamicComponent> ret = new ArrayList <IDynamicComponent> ();
+    OpenAS2Exception aFirstError = null;
+    for (int i = 0; i < aFutures.size (); ++i)
+    {
+      final InitTask aTask = aTasks.get (i);
+      try
+      {
+        final IDynamicComponent aComponent = aFutures.get (i).get ();
+        aCreated.add (aComponent);
+        ret.add (aComponent);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        throw new WrappedException (ex);
+      }
+      catch (final ExecutionException ex)
+      {
+        final Throwable aCause = ex.getCause ();
+        if (aCause instanceof Error)
+          throw (Error) aCause;
+        final OpenAS2Exception aError = aCause instanceof OpenAS2Exception ? (OpenAS2Exception) aCause
+                                                                           : new WrappedException ((Exception) aCause);
+        if (aFirstError == null)
+          aFirstError = aError;
+        else
+          s_aLogger.error ("Failed to initialize " + aTask.getTiming ().getClassName (), aError);
+        ret.add (null);
+      }
+      // Keep the timings even if initialization failed
+      m_aStartupReport.addTiming (aTask.getTiming ());
+    }
+    if (aFirstError != null)
+      throw aFirstError;
+    return ret;
+  }
+
   protected void load (@Nonnull final InputStream aIS) throws OpenAS2Exception
   {
+    final long nParseStart = System.nanoTime ();
     final IMicroDocument aDoc = MicroReader.readMicroXML (aIS);
     final IMicroElement eRoot = aDoc.getDocumentElement ();
+    m_aStartupReport.addTiming ("parse configuration", null, nParseStart);
 
-    for (final IMicroElement eRootChild : eRoot.getAllChildElements ())
+    final String sReadyFile = eRoot.getAttribute (PARAM_READY_FILE);
+    if (sReadyFile != null)
+      m_sReadyFile = ServerXMLUtil.resolveDirectory (getBaseDirectory (), sReadyFile);
+    m_nDrainTimeoutSeconds = StringParser.parseInt (eRoot.getAttribute (PARAM_DRAIN_TIMEOUT), DEFAULT_DRAIN_TIMEOUT);
+
+    // Resolve includes and module templates
+    final long nExpandStart = System.nanoTime ();
+    final ConfigExpander aExpander = new ConfigExpander (getBaseDirectory ());
+    final List <IMicroElement> aRootChildren = new ArrayList <IMicroElement> ();
+    aExpander.expandChildren (eRoot, false, aRootChildren);
+    m_aStartupReport.addTiming ("expand configuration", null, nExpandStart);
+
+    // Phase 1: collect all top level components
+    final List <InitTask> aTasks = new ArrayList <InitTask> ();
+    for (final IMicroElement eRootChild : aRootChildren)
     {
       final String sNodeName = eRootChild.getTagName ();
 
-      if (sNodeName.equals (EL_CERTIFICATES))
-        loadCertificates (eRootChild);
+      if (sNodeName.equals (EL_CERTIFICATES) ||
+          sNodeName.equals (EL_PROCESSOR) ||
+          sNodeName.equals (EL_PARTNERSHIPS) ||
+          sNodeName.equals (EL_COMMANDS))
+        aTasks.add (_createTopLevelTask (sNodeName, eRootChild));
       else
-        if (sNodeName.equals (EL_PROCESSOR))
-          loadProcessor (eRootChild);
+        if (sNodeName.equals (EL_CMDPROCESSOR))
+        {
+          for (final IMicroElement eProcessor : loadCommandProcessors (eRootChild))
+            aTasks.add (_createTopLevelTask (EL_CMDPROCESSOR, eProcessor));
+        }
+        else
+          throw new OpenAS2Exception ("Undefined tag: " + sNodeName);
+    }
+
+    final int nThreads = StringParser.parseInt (eRoot.getAttribute (PARAM_INIT_THREADS),
+                                                Runtime.getRuntime ().availableProcessors ());
+    final ExecutorService aExecutor = _createInitExecutor (Math.max (1, nThreads));
+    final List <IDynamicComponent> aCreated = new ArrayList <IDynamicComponent> ();
+    boolean bSuccess = false;
+    try
+    {
+      final List <IDynamicComponent> aComponents = _runAll (aExecutor, aTasks, aCreated);
+
+      // Register in document order
+      final List <InitTask> aModuleTasks = new ArrayList <InitTask> ();
+      final List <IProcessor> aModuleProcessors = new ArrayList <IProcessor> ();
+      final List <AbstractCommandProcessor> aCmdProcessors = new ArrayList <AbstractCommandProcessor> ();
+      for (int i = 0; i < aTasks.size (); ++i)
+      {
+        final InitTask aTask = aTasks.get (i);
+        final IDynamicComponent aComponent = aComponents.get (i);
+        if (aTask.m_sName.equals (EL_CERTIFICATES))
+          addComponent (ICertificateFactory.COMPID_CERTIFICATE_FACTORY, (ICertificateFactory) aComponent);
         else
-          if (sNodeName.equals (EL_CMDPROCESSOR))
-            loadCommandProcessors (eRootChild);
+          if (aTask.m_sName.equals (EL_PARTNERSHIPS))
+            addComponent (IPartnershipFactory.COMPID_PARTNERSHIP_FACTORY, (IPartnershipFactory) aComponent);
           else
-            if (sNodeName.equals (EL_PARTNERSHIPS))
-              loadPartnerships (eRootChild);
+            if (aTask.m_sName.equals (EL_COMMANDS))
+              setCommandRegistry ((ICommandRegistry) aComponent);
             else
-              if (sNodeName.equals (EL_COMMANDS))
-                loadCommands (eRootChild);
+              if (aTask.m_sName.equals (EL_CMDPROCESSOR))
+                aCmdProcessors.add ((AbstractCommandProcessor) aComponent);
               else
-                throw new OpenAS2Exception ("Undefined tag: " + sNodeName);
+              {
+                final IProcessor aProcessor = (IProcessor) aComponent;
+                addComponent (IProcessor.COMPID_PROCESSOR, aProcessor);
+                for (final IMicroElement eModule : aExpander.getModules (aTask.m_aElement))
+                {
+                  aModuleTasks.add (_createModuleTask (aProcessor, eModule));
+                  aModuleProcessors.add (aProcessor);
+                }
+              }
+      }
+
+      // Phase 2: the modules may use the certificate and partnership factory
+      final List <IDynamicComponent> aModules = _runAll (aExecutor, aModuleTasks, aCreated);
+      for (int i = 0; i < aModules.size (); ++i)
+        aModuleProcessors.get (i).addModule ((IProcessorModule) aModules.get (i));
+
+      // Only publish the command processors if everything could be loaded
+      for (final AbstractCommandProcessor aCmdProcessor : aCmdProcessors)
+        cmdManager.addProcessor (aCmdProcessor);
+      bSuccess = true;
+    }
+    finally
+    {
+      aExecutor.shutdownNow ();
+      if (!bSuccess)
+        _discardComponents (aCreated);
     }
   }
 
-  protected void loadCertificates (final IMicroElement aElement) throws OpenAS2Exception
+  @Nonnull
+  private InitTask _createTopLevelTask (@Nonnull final String sNodeName, @Nonnull final IMicroElement aElement)
   {
-    final ICertificateFactory certFx = (ICertificateFactory) ServerXMLUtil.createComponent (aElement, this);
-    addComponent (ICertificateFactory.COMPID_CERTIFICATE_FACTORY, certFx);
+    return new InitTask (sNodeName, aElement)
+    {
+      @Override
+      protected IDynamicComponent create () throws OpenAS2Exception
+      {
+        if (sNodeName.equals (EL_CERTIFICATES))
+          return loadCertificates (aElement);
+        if (sNodeName.equals (EL_PARTNERSHIPS))
+          return loadPartnerships (aElement);
+        if (sNodeName.equals (EL_COMMANDS))
+          return loadCommands (aElement);
+        if (sNodeName.equals (EL_CMDPROCESSOR))
+          return loadCommandProcessor (cmdManager, aElement);
+        return loadProcessor (aElement);
+      }
+    };
   }
 
-  protected void loadCommands (final IMicroElement aElement) throws OpenAS2Exception
+  @Nonnull
+  private InitTask _createModuleTask (@Nonnull final IProcessor aProcessor, @Nonnull final IMicroElement aElement)
   {
-    final ICommandRegistry cmdReg = (ICommandRegistry) ServerXMLUtil.createComponent (aElement, this);
-    setCommandRegistry (cmdReg);
+    return new InitTask (EL_MODULE, aElement)
+    {
+      @Override
+      protected IDynamicComponent create () throws OpenAS2Exception
+      {
+        return loadProcessorModule (aProcessor, aElement);
+      }
+    };
   }
 
-  protected void loadCommandProcessors (final IMicroElement aElement) throws OpenAS2Exception
+  /**
+   * Release the resources of the components created by a failed
+   * {@link #load(InputStream)}, e.g. the server sockets opened by command
+   * processors. The other components don't hold resources before they are
+   * started.
+   *
+   * @param aComponents
+   *        The created components
+   */
+  private static void _discardComponents (@Nonnull final List <IDynamicComponent> aComponents)
   {
-    cmdManager = CommandManager.getCmdManager ();
+    for (final IDynamicComponent aComponent : aComponents)
+      if (aComponent instanceof ICommandProcessor)
+      {
+        try
+        {
+          ((ICommandProcessor) aComponent).terminate ();
+        }
+        catch (final RuntimeException ex)
+        {
+          s_aLogger.warn ("Failed to terminate command processor " + aComponent.getClass ().getName (), ex);
+        }
+      }
+  }
 
-    for (final IMicroElement processor : aElement.getAllChildElements ("commandProcessor"))
-      loadCommandProcessor (cmdManager, processor);
+  /**
+   * Create the certificate factory. Called from an initialization thread.
+   *
+   * @param aElement
+   *        The <code>certificates</code> element
+   * @return The created certificate factory
+   * @throws OpenAS2Exception
+   *         If the factory could not be created
+   */
+  @Nonnull
+  protected ICertificateFactory loadCertificates (@Nonnull final IMicroElement aElement) throws OpenAS2Exception
+  {
+    return (ICertificateFactory) ServerXMLUtil.createComponent (aElement, this);
   }
 
-  public CommandManager getCommandManager ()
+  /**
+   * Create the command registry. Called from an initialization thread.
+   *
+   * @param aElement
+   *        The <code>commands</code> element
+   * @return The created command registry
+   * @throws OpenAS2Exception
+   *         If the registry could not be created
+   */
+  @Nonnull
+  protected ICommandRegistry loadCommands (@Nonnull final IMicroElement aElement) throws OpenAS2Exception
   {
-    return cmdManager;
+    return (ICommandRegistry) ServerXMLUtil.createComponent (aElement, this);
   }
 
-  protected void loadCommandProcessor (@Nonnull final CommandManager aMgr, final IMicroElement aElement) throws OpenAS2Exception
+  /**
+   * Prepare loading the command processors. Called on the loading thread.
+   *
+   * @param aElement
+   *        The <code>commandProcessors</code> element
+   * @return The <code>commandProcessor</code> elements, each of them is created
+   *         with {@link #loadCommandProcessor(CommandManager, IMicroElement)}
+   * @throws OpenAS2Exception
+   *         In case of an invalid configuration
+   */
+  @Nonnull
+  protected List <IMicroElement> loadCommandProcessors (@Nonnull final IMicroElement aElement) throws OpenAS2Exception
   {
-    final AbstractCommandProcessor cmdProcesor = (AbstractCommandProcessor) ServerXMLUtil.createComponent (aElement,
-                                                                                                           this);
-    aMgr.addProcessor (cmdProcesor);
+    cmdManager = CommandManager.getCmdManager ();
+    return aElement.getAllChildElements ("commandProcessor");
+  }
+
+  /**
+   * Create a command processor. Called from an initialization thread. The
+   * processor is added to the command manager after all components were
+   * loaded successfully, otherwise it is terminated.
+   *
+   * @param aMgr
+   *        The command manager the processor will be added to
+   * @param aElement
+   *        The <code>commandProcessor</code> element
+   * @return The created command processor
+   * @throws OpenAS2Exception
+   *         If the processor could not be created
+   */
+  @Nonnull
+  protected AbstractCommandProcessor loadCommandProcessor (@Nonnull final CommandManager aMgr,
+                                                           @Nonnull final IMicroElement aElement) throws OpenAS2Exception
+  {
+    return (AbstractCommandProcessor) ServerXMLUtil.createComponent (aElement, this);
   }
 
-  protected void loadPartnerships (final IMicroElement rootNode) throws OpenAS2Exception
+  /**
+   * Create the partnership factory. Called from an initialization thread.
+   *
+   * @param aElement
+   *        The <code>partnerships</code> element
+   * @return The created partnership factory
+   * @throws OpenAS2Exception
+   *         If the factory could not be created
+   */
+  @Nonnull
+  protected IPartnershipFactory loadPartnerships (@Nonnull final IMicroElement aElement) throws OpenAS2Exception
   {
-    final IPartnershipFactory partnerFx = (IPartnershipFactory) ServerXMLUtil.createComponent (rootNode, this);
-    addComponent (IPartnershipFactory.COMPID_PARTNERSHIP_FACTORY, partnerFx);
+    return (IPartnershipFactory) ServerXMLUtil.createComponent (aElement, this);
   }
 
-  protected void loadProcessor (final IMicroElement rootNode) throws OpenAS2Exception
+  /**
+   * Create the processor without its modules. Called from an initialization
+   * thread. The modules are created afterwards with
+   * {@link #loadProcessorModule(IProcessor, IMicroElement)}.
+   *
+   * @param aElement
+   *        The <code>processor</code> element
+   * @return The created processor
+   * @throws OpenAS2Exception
+   *         If the processor could not be created
+   */
+  @Nonnull
+  protected IProcessor loadProcessor (@Nonnull final IMicroElement aElement) throws OpenAS2Exception
   {
-    final IProcessor proc = (IProcessor) ServerXMLUtil.createComponent (rootNode, this);
-    addComponent (IProcessor.COMPID_PROCESSOR, proc);
+    return (IProcessor) ServerXMLUtil.createComponent (aElement, this);
+  }
 
-    for (final IMicroElement module : rootNode.getAllChildElements ("module"))
-      loadProcessorModule (proc, module);
+  /**
+   * Create a processor module. Called from an initialization thread after the
+   * certificate and partnership factory are registered. The module is added to
+   * the processor in document order afterwards.
+   *
+   * @param aProcessor
+   *        The processor the module will be added to
+   * @param aElement
+   *        The expanded <code>module</code> element
+   * @return The created module
+   * @throws OpenAS2Exception
+   *         If the module could not be created
+   */
+  @Nonnull
+  protected IProcessorModule loadProcessorModule (@Nonnull final IProcessor aProcessor,
+                                                  @Nonnull final IMicroElement aElement) throws OpenAS2Exception
+  {
+    return (IProcessorModule) ServerXMLUtil.createComponent (aElement, this);
   }
 
-  protected void loadProcessorModule (final IProcessor proc, final IMicroElement moduleNode) throws OpenAS2Exception
+  public CommandManager getCommandManager ()
   {
-    final IProcessorModule procmod = (IProcessorModule) ServerXMLUtil.createComponent (moduleNode, this);
-    proc.addModule (procmod);
+    return cmdManager;
   }
 
   public String getBaseDirectory ()
@@ -32,35 +32,94 @@
  */
 package com.helger.as2.app;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.as2.StartupReport;
 import com.helger.as2.XMLSession;
+import com.helger.as2.cert.ServerPKCS12CertificateFactory;
 import com.helger.as2.cmd.CommandManager;
 import com.helger.as2.cmd.ICommandRegistry;
+import com.helger.as2.cmd.JobManager;
 import com.helger.as2.cmd.processor.AbstractCommandProcessor;
+import com.helger.as2.processor.InFlightMessages;
+import com.helger.as2lib.cert.ICertificateFactory;
 import com.helger.as2lib.exception.OpenAS2Exception;
+import com.helger.as2lib.partner.CPartnershipIDs;
+import com.helger.as2lib.processor.IProcessor;
+import com.helger.as2lib.processor.module.IProcessorActiveModule;
+import com.helger.as2lib.processor.receiver.AS2MDNReceiverModule;
 import com.helger.as2lib.util.CInfo;
+import com.helger.as2lib.util.IStringMap;
+import com.helger.as2lib.util.StringMap;
+import com.phloc.commons.io.streams.StreamUtils;
 import com.phloc.commons.lang.CGStringHelper;
 
 /**
  * original author unknown in this release added ability to have multiple
- * command processors
+ * command processors<br>
+ * On <code>exit --drain</code> and when the JVM is terminated the server stops
+ * accepting new messages and waits up to the configured drain timeout for
+ * in-flight messages, pending MDNs and background jobs before shutting down.
+ * Messages are counted as in-flight by the modules that report to
+ * {@link InFlightMessages}, e.g. the
+ * {@link com.helger.as2.processor.sender.ServerAS2SenderModule} for all
+ * outgoing messages.
  * 
  * @author joseph mcverry
  */
 public class MainOpenAS2Server
 {
+  /** Processor attribute containing the directory of the pending MDN info */
+  public static final String PROCESSOR_PARAM_PENDING_MDN_INFO = "pendingmdninfo";
+  private static final long DRAIN_POLL_MILLIS = 500;
+  private static final long DRAIN_REPORT_INTERVAL_SECONDS = 5;
+
   private static final Logger s_aLogger = LoggerFactory.getLogger (MainOpenAS2Server.class);
 
+  private final AtomicBoolean m_aShutdownStarted = new AtomicBoolean (false);
+  private final CountDownLatch m_aShutdownDone = new CountDownLatch (1);
+
   public static void main (final String [] args)
   {
     final MainOpenAS2Server server = new MainOpenAS2Server ();
     server.start (args);
   }
 
+  private static void _writeReadyFile (@Nonnull final String sFilename, @Nonnull final StartupReport aReport)
+  {
+    Writer aWriter = null;
+    try
+    {
+      aWriter = new OutputStreamWriter (new FileOutputStream (sFilename), "UTF-8");
+      aWriter.write ("ready after " + aReport.getReadyMillis () + " ms\n");
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.error ("Failed to write ready file " + sFilename, ex);
+    }
+    finally
+    {
+      StreamUtils.close (aWriter);
+    }
+  }
+
   public void start (final String [] args)
   {
     XMLSession session = null;
@@ -75,7 +134,20 @@ public class MainOpenAS2Server
 
       if (args.length > 0)
       {
+        final long nConfigStart = System.nanoTime ();
         session = new XMLSession (args[0]);
+        session.getStartupReport ().addTiming ("load configuration", null, nConfigStart);
+
+        // Shut down gracefully when the JVM is terminated, e.g. by SIGTERM
+        final XMLSession aHookSession = session;
+        Runtime.getRuntime ().addShutdownHook (new Thread ("OpenAS2-shutdown")
+        {
+          @Override
+          public void run ()
+          {
+            shutdown (aHookSession, true);
+          }
+        });
       }
       else
       {
@@ -89,10 +161,38 @@ public class MainOpenAS2Server
       s_aLogger.info ("Registering Session to Command Processor...");
 
       final ICommandRegistry reg = session.getCommandRegistry ();
+      final StartupReport aReport = session.getStartupReport ();
+
+      // Private keys may still be unwrapped in the background - wait until
+      // the required ones are available
+      final ICertificateFactory aCertFx = session.getCertificateFactory ();
+      if (aCertFx instanceof ServerPKCS12CertificateFactory)
+      {
+        final ServerPKCS12CertificateFactory aServerCertFx = (ServerPKCS12CertificateFactory) aCertFx;
+        aServerCertFx.setPartnerAliases (_getPartnerAliases (session));
+        if (!aServerCertFx.isReady ())
+        {
+          s_aLogger.info ("Waiting for private keys...");
+          final long nWaitStart = System.nanoTime ();
+          while (!aServerCertFx.waitUntilReady (10, TimeUnit.SECONDS))
+            s_aLogger.info ("Still waiting for private keys...");
+          aReport.addTiming ("wait for private keys", null, nWaitStart);
+        }
+      }
 
       // start the active processor modules
       s_aLogger.info ("Starting Active Modules...");
-      session.getProcessor ().startActiveModules ();
+      for (final IProcessorActiveModule aModule : session.getProcessor ().getAllActiveModules ())
+      {
+        final long nStart = System.nanoTime ();
+        aModule.start ();
+        aReport.addTiming ("start module", aModule.getClass ().getName (), nStart);
+      }
+
+      // All receivers are listening now
+      aReport.setReady ();
+      if (session.getReadyFile () != null)
+        _writeReadyFile (session.getReadyFile (), aReport);
 
       // enter the command processing loop
       s_aLogger.info ("OpenAS2 Started");
@@ -102,21 +202,19 @@ public class MainOpenAS2Server
       for (final AbstractCommandProcessor cmd : processors)
       {
         s_aLogger.info ("Loading Command Processor..." + cmd.getClass ().getName () + "");
+        final long nStart = System.nanoTime ();
         cmd.init ();
         cmd.addCommands (reg);
         new Thread (cmd, CGStringHelper.getClassLocalName (cmd)).start ();
+        aReport.addTiming ("start command processor", cmd.getClass ().getName (), nStart);
       }
 
-      // Start waiting for termination
-      breakOut: while (true)
-      {
-        for (final AbstractCommandProcessor cmd : processors)
-        {
-          if (cmd.isTerminated ())
-            break breakOut;
-          Thread.sleep (100);
-        }
-      }
+      s_aLogger.info ("Startup report:");
+      for (final String sLine : aReport.getReportLines ())
+        s_aLogger.info ("  " + sLine);
+
+      // Wait until a processor requests the shutdown
+      cmdMgr.awaitShutdown ();
       s_aLogger.info ("- OpenAS2 Stopped -");
     }
     catch (final Throwable t)
@@ -125,19 +223,221 @@ public class MainOpenAS2Server
     }
     finally
     {
+      shutdown (session, CommandManager.getCmdManager ().isDrainOnShutdown ());
+    }
+  }
+
+  private static void _stopModule (@Nonnull final IProcessorActiveModule aModule)
+  {
+    try
+    {
+      aModule.stop ();
+    }
+    catch (final Exception ex)
+    {
+      s_aLogger.error ("Failed to stop module " + aModule.getClass ().getName (), ex);
+    }
+  }
+
+  @Nonnull
+  private static Set <String> _getPartnerAliases (@Nonnull final XMLSession aSession) throws OpenAS2Exception
+  {
+    final Set <String> ret = new HashSet <String> ();
+    for (final IStringMap aPartner : aSession.getPartnershipFactory ().getPartners ().values ())
+    {
+      final String sAlias = aPartner.getAttributeAsString (CPartnershipIDs.PID_X509_ALIAS);
+      if (sAlias != null)
+        ret.add (sAlias);
+    }
+    return ret;
+  }
+
+  @Nullable
+  private static File _getPendingMDNInfoDirectory (@Nonnull final XMLSession aSession) throws OpenAS2Exception
+  {
+    final IProcessor aProcessor = aSession.getProcessor ();
+    if (aProcessor instanceof StringMap)
+    {
+      final String sDir = ((StringMap) aProcessor).getAttributeAsString (PROCESSOR_PARAM_PENDING_MDN_INFO);
+      if (sDir != null)
+        return new File (sDir);
+    }
+    return null;
+  }
+
+  /**
+   * Count the pending MDN infos that were written since the drain started.
+   * Older entries belong to messages whose MDN may never arrive and must not
+   * delay the shutdown.
+   */
+  private static int _getPendingMDNCount (@Nullable final File aPendingMDNDir, final long nDrainStartMillis)
+  {
+    if (aPendingMDNDir == null)
+      return 0;
+    final File [] aFiles = aPendingMDNDir.listFiles ();
+    if (aFiles == null)
+      return 0;
+    int ret = 0;
+    for (final File aFile : aFiles)
+      if (aFile.lastModified () >= nDrainStartMillis)
+        ret++;
+    return ret;
+  }
+
+  /**
+   * Wait until no message is sent or received any more, all background jobs
+   * finished and no MDN requested since the drain start is pending, or until
+   * the deadline is reached.
+   */
+  private static void _awaitInFlightMessages (@Nonnull final XMLSession aSession,
+                                              final long nDrainStartMillis,
+                                              final long nDeadlineNanos) throws OpenAS2Exception
+  {
+    final File aPendingMDNDir = _getPendingMDNInfoDirectory (aSession);
+    long nNextReportNanos = System.nanoTime ();
+    while (true)
+    {
+      final int nMessages = InFlightMessages.getCount ();
+      final int nJobs = JobManager.getJobManager ().getUnfinishedJobCount ();
+      final int nPendingMDNs = _getPendingMDNCount (aPendingMDNDir, nDrainStartMillis);
+      if (nMessages == 0 && nJobs == 0 && nPendingMDNs == 0)
+      {
+        s_aLogger.info ("All in-flight messages are completed");
+        return;
+      }
+
+      final long nNow = System.nanoTime ();
+      if (nNow - nDeadlineNanos >= 0)
+      {
+        s_aLogger.warn ("Drain timeout reached - " +
+                        nMessages +
+                        " in-flight message(s), " +
+                        nPendingMDNs +
+                        " pending MDN(s) and " +
+                        nJobs +
+                        " unfinished job(s) left");
+        return;
+      }
+      if (nNow - nNextReportNanos >= 0)
+      {
+        s_aLogger.info ("Waiting for " +
+                        nMessages +
+                        " in-flight message(s), " +
+                        nPendingMDNs +
+                        " pending MDN(s) and " +
+                        nJobs +
+                        " unfinished job(s), " +
+                        TimeUnit.NANOSECONDS.toSeconds (nDeadlineNanos - nNow) +
+                        " seconds left");
+        nNextReportNanos = nNow + TimeUnit.SECONDS.toNanos (DRAIN_REPORT_INTERVAL_SECONDS);
+      }
+
+      try
+      {
+        Thread.sleep (DRAIN_POLL_MILLIS);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        s_aLogger.warn ("Interrupted while waiting for in-flight messages");
+        return;
+      }
+    }
+  }
+
+  /**
+   * Shut the server down. Only the first call performs the shutdown, further
+   * calls wait until it is finished.
+   *
+   * @param session
+   *        The session to shut down. May be <code>null</code>.
+   * @param bDrain
+   *        <code>true</code> to stop accepting new messages first and to wait
+   *        for in-flight messages up to the configured drain timeout before the
+   *        remaining modules are stopped
+   */
+  public void shutdown (@Nullable final XMLSession session, final boolean bDrain)
+  {
+    if (!m_aShutdownStarted.compareAndSet (false, true))
+    {
+      try
+      {
+        m_aShutdownDone.await ();
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+      return;
+    }
+
+    try
+    {
+      final JobManager aJobMgr = JobManager.getJobManager ();
+
+      if (session != null)
+      {
+        // Signal that no more traffic should be routed here
+        if (session.getReadyFile () != null)
+          new File (session.getReadyFile ()).delete ();
+
+        try
+        {
+          final List <IProcessorActiveModule> aModules = session.getProcessor ().getAllActiveModules ();
+          if (bDrain)
+          {
+            s_aLogger.info ("Draining - no new messages are accepted");
+            aJobMgr.stopAccepting ();
+            final long nDrainStartMillis = System.currentTimeMillis ();
+
+            // Stop polling and receiving, but keep receiving asynchronous MDNs
+            final List <IProcessorActiveModule> aMDNReceivers = new ArrayList <IProcessorActiveModule> ();
+            for (final IProcessorActiveModule aModule : aModules)
+              if (aModule instanceof AS2MDNReceiverModule)
+                aMDNReceivers.add (aModule);
+              else
+                _stopModule (aModule);
+
+            _awaitInFlightMessages (session,
+                                    nDrainStartMillis,
+                                    System.nanoTime () + TimeUnit.SECONDS.toNanos (session.getDrainTimeoutSeconds ()));
+
+            for (final IProcessorActiveModule aModule : aMDNReceivers)
+              _stopModule (aModule);
+          }
+          else
+            for (final IProcessorActiveModule aModule : aModules)
+              _stopModule (aModule);
+        }
+        catch (final OpenAS2Exception ex)
+        {
+          ex.terminate ();
+        }
+      }
+
+      // Cancel remaining background commands
+      aJobMgr.shutdown ();
+
       if (session != null)
       {
+        // Write pending certificate modifications
         try
         {
-          session.getProcessor ().stopActiveModules ();
+          final ICertificateFactory aCertFx = session.getCertificateFactory ();
+          if (aCertFx instanceof ServerPKCS12CertificateFactory)
+            ((ServerPKCS12CertificateFactory) aCertFx).flush ();
         }
-        catch (final OpenAS2Exception same)
+        catch (final OpenAS2Exception ex)
         {
-          same.terminate ();
+          ex.terminate ();
         }
       }
 
       s_aLogger.info ("OpenAS2 has shut down");
     }
+    finally
+    {
+      m_aShutdownDone.countDown ();
+    }
   }
 }
@@ -32,12 +32,14 @@
  */
 package com.helger.as2.app.cert;
 
-import java.security.cert.Certificate;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+import com.helger.as2.cert.ServerPKCS12CertificateFactory;
+import com.helger.as2.cmd.CommandException;
 import com.helger.as2.cmd.CommandResult;
+import com.helger.as2.cmd.ListOptions;
 import com.helger.as2lib.cert.IAliasedCertificateFactory;
 import com.helger.as2lib.exception.OpenAS2Exception;
 
@@ -58,32 +60,43 @@ public class ListCertCommand extends AbstractAliasedCertCommand
   @Override
   public String getDefaultUsage ()
   {
-    return "list";
+    return "list " + ListOptions.USAGE;
   }
 
   @Override
   public CommandResult execute (final IAliasedCertificateFactory certFx, final Object [] params) throws OpenAS2Exception
   {
-    synchronized (certFx)
+    final ListOptions aOptions;
+    try
     {
-      final Map <String, Certificate> certs = certFx.getCertificates ();
-      final Iterator <Entry <String, Certificate>> certIt = certs.entrySet ().iterator ();
-      Map.Entry <String, Certificate> currentCert;
-      final CommandResult cmdRes = new CommandResult (CommandResult.TYPE_OK);
-
-      while (certIt.hasNext ())
-      {
-        currentCert = certIt.next ();
-        cmdRes.getResults ().add (currentCert.getKey ());
-      }
+      aOptions = ListOptions.parse (params);
+    }
+    catch (final CommandException ex)
+    {
+      return new CommandResult (CommandResult.TYPE_ERROR, ex.getMessage () + " - usage: " + getUsage ());
+    }
 
-      if (cmdRes.getResults ().size () == 0)
+    // Sorted list of all aliases
+    List <String> aAliases;
+    if (certFx instanceof ServerPKCS12CertificateFactory)
+    {
+      // Immutable snapshot - no locking required
+      aAliases = ((ServerPKCS12CertificateFactory) certFx).getAliasSnapshot ();
+    }
+    else
+    {
+      synchronized (certFx)
       {
-        cmdRes.getResults ().add ("No certificates available");
+        aAliases = new ArrayList <String> (certFx.getCertificates ().keySet ());
       }
+      Collections.sort (aAliases);
+    }
 
-      return cmdRes;
+    final List <String> aPage = aOptions.apply (aAliases);
+    if (aPage.isEmpty ())
+      return new CommandResult (CommandResult.TYPE_OK, "No certificates available");
 
-    }
+    // The sorted list is not modified afterwards, so the page is streamed
+    return new CommandResult (CommandResult.TYPE_OK, aPage);
   }
 }
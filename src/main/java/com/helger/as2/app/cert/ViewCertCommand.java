@@ -33,7 +33,10 @@
 package com.helger.as2.app.cert;
 
 import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
 
+import com.helger.as2.cert.CertificateSummary;
+import com.helger.as2.cert.ServerPKCS12CertificateFactory;
 import com.helger.as2.cmd.CommandResult;
 import com.helger.as2lib.cert.IAliasedCertificateFactory;
 import com.helger.as2lib.exception.OpenAS2Exception;
@@ -71,15 +74,26 @@ public class ViewCertCommand extends AbstractAliasedCertCommand
       return new CommandResult (CommandResult.TYPE_INVALID_PARAM_COUNT, getUsage ());
     }
 
-    synchronized (certFx)
-    {
-
-      final String alias = params[0].toString ();
-
-      final Certificate cert = certFx.getCertificate (alias);
+    final String alias = params[0].toString ();
 
-      return new CommandResult (CommandResult.TYPE_OK, cert.toString ());
+    if (certFx instanceof ServerPKCS12CertificateFactory)
+    {
+      // Cached summary - no locking required
+      final CertificateSummary aSummary = ((ServerPKCS12CertificateFactory) certFx).getCertificateSummary (alias);
+      if (aSummary == null)
+        return new CommandResult (CommandResult.TYPE_ERROR, "Unknown alias: " + alias);
+      return new CommandResult (CommandResult.TYPE_OK, aSummary.toString ());
+    }
 
+    final Certificate cert;
+    synchronized (certFx)
+    {
+      cert = certFx.getCertificates ().get (alias);
     }
+    if (cert == null)
+      return new CommandResult (CommandResult.TYPE_ERROR, "Unknown alias: " + alias);
+    if (cert instanceof X509Certificate)
+      return new CommandResult (CommandResult.TYPE_OK, new CertificateSummary ((X509Certificate) cert).toString ());
+    return new CommandResult (CommandResult.TYPE_OK, cert.toString ());
   }
 }
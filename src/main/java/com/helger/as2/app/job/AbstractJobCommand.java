@@ -0,0 +1,97 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.app.job;
+
+import javax.annotation.Nonnull;
+
+import com.helger.as2.cmd.AbstractCommand;
+import com.helger.as2.cmd.CommandException;
+import com.helger.as2.cmd.CommandJob;
+import com.helger.as2.cmd.CommandResult;
+import com.helger.as2.cmd.JobManager;
+
+/**
+ * Base class for the commands handling asynchronous jobs
+ */
+public abstract class AbstractJobCommand extends AbstractCommand
+{
+  @Nonnull
+  protected JobManager getJobManager ()
+  {
+    return JobManager.getJobManager ();
+  }
+
+  /**
+   * Resolve the job with the ID passed as first parameter.
+   * 
+   * @param params
+   *        The command parameters
+   * @return The job. Never <code>null</code>.
+   * @throws CommandException
+   *         If the ID is missing, invalid or unknown
+   */
+  @Nonnull
+  protected CommandJob getJob (@Nonnull final Object [] params) throws CommandException
+  {
+    if (params.length < 1)
+      throw new CommandException ("Missing job ID - usage: " + getUsage ());
+    final String sID = params[0].toString ();
+    final CommandJob aJob;
+    try
+    {
+      aJob = getJobManager ().getJob (Long.parseLong (sID));
+    }
+    catch (final NumberFormatException ex)
+    {
+      throw new CommandException ("Invalid job ID '" + sID + "'");
+    }
+    if (aJob == null)
+      throw new CommandException ("Unknown job ID '" + sID + "'");
+    return aJob;
+  }
+
+  @Override
+  public CommandResult execute (final Object [] params)
+  {
+    try
+    {
+      return execute (getJobManager (), params);
+    }
+    catch (final CommandException ex)
+    {
+      return new CommandResult (CommandResult.TYPE_ERROR, ex.getMessage ());
+    }
+  }
+
+  protected abstract CommandResult execute (@Nonnull JobManager aJobMgr, @Nonnull Object [] params) throws CommandException;
+}
@@ -0,0 +1,97 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.app.job;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.annotation.Nonnull;
+
+import com.helger.as2.cmd.CommandException;
+import com.helger.as2.cmd.CommandJob;
+import com.helger.as2.cmd.CommandResult;
+import com.helger.as2.cmd.JobManager;
+
+/**
+ * shows the state, progress and result of a job
+ */
+public class JobStatusCommand extends AbstractJobCommand
+{
+  @Override
+  public String getDefaultDescription ()
+  {
+    return "Shows the state, progress and result of a job";
+  }
+
+  @Override
+  public String getDefaultName ()
+  {
+    return "status";
+  }
+
+  @Override
+  public String getDefaultUsage ()
+  {
+    return "status <id>";
+  }
+
+  @Override
+  protected CommandResult execute (@Nonnull final JobManager aJobMgr, @Nonnull final Object [] params) throws CommandException
+  {
+    final CommandJob aJob = getJob (params);
+    final CommandResult ret = new CommandResult (CommandResult.TYPE_OK);
+    ret.getResults ().add ("id: " + aJob.getID ());
+    ret.getResults ().add ("command: " + aJob.getDescription ());
+    ret.getResults ().add ("state: " + aJob.getState ());
+    ret.getResults ().add ("submitted: " + new Date (aJob.getSubmitTime ()));
+    if (aJob.getProgress () >= 0)
+      ret.getResults ().add ("progress: " +
+                             aJob.getProgress () +
+                             "%" +
+                             (aJob.getProgressMessage () == null ? "" : " " + aJob.getProgressMessage ()));
+    if (aJob.getStartTime () > 0)
+    {
+      final long nEnd = aJob.getEndTime () > 0 ? aJob.getEndTime () : System.currentTimeMillis ();
+      ret.getResults ().add ("duration: " + (nEnd - aJob.getStartTime ()) + "ms");
+    }
+
+    final CommandResult aResult = aJob.getResult ();
+    if (aResult != null)
+    {
+      ret.getResults ().add ("result: " + aResult.getType ());
+      for (final Serializable aItem : aResult.getResultIterable ())
+        ret.getResults ().add (aItem);
+    }
+    return ret;
+  }
+}
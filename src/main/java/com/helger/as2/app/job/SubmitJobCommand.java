@@ -0,0 +1,94 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.app.job;
+
+import javax.annotation.Nonnull;
+
+import com.helger.as2.cmd.CommandException;
+import com.helger.as2.cmd.CommandJob;
+import com.helger.as2.cmd.CommandResult;
+import com.helger.as2.cmd.ICommand;
+import com.helger.as2.cmd.ICommandRegistry;
+import com.helger.as2.cmd.ICommandRegistryFactory;
+import com.helger.as2.cmd.JobManager;
+import com.phloc.commons.collections.ArrayHelper;
+
+/**
+ * submits any command for asynchronous execution
+ */
+public class SubmitJobCommand extends AbstractJobCommand
+{
+  @Override
+  public String getDefaultDescription ()
+  {
+    return "Executes a command in the background and returns its job ID";
+  }
+
+  @Override
+  public String getDefaultName ()
+  {
+    return "submit";
+  }
+
+  @Override
+  public String getDefaultUsage ()
+  {
+    return "submit <command> [<parameter> ...]";
+  }
+
+  @Override
+  protected CommandResult execute (@Nonnull final JobManager aJobMgr, @Nonnull final Object [] params) throws CommandException
+  {
+    if (params.length < 1)
+      return new CommandResult (CommandResult.TYPE_INVALID_PARAM_COUNT, getUsage ());
+
+    if (!(getSession () instanceof ICommandRegistryFactory))
+      return new CommandResult (CommandResult.TYPE_COMMAND_NOT_SUPPORTED, "No command registry available");
+    final ICommandRegistry aRegistry = ((ICommandRegistryFactory) getSession ()).getCommandRegistry ();
+    if (aRegistry == null)
+      return new CommandResult (CommandResult.TYPE_COMMAND_NOT_SUPPORTED, "No command registry available");
+
+    final String sCommandName = params[0].toString ();
+    final ICommand aCommand = aRegistry.getCommandMap ().getCommand (sCommandName);
+    if (aCommand == null)
+      return new CommandResult (CommandResult.TYPE_ERROR, "Unknown command '" + sCommandName + "'");
+
+    final Object [] aCommandParams = ArrayHelper.getCopy (params, 1, params.length - 1);
+    final StringBuilder aDescription = new StringBuilder (sCommandName);
+    for (final Object aParam : aCommandParams)
+      aDescription.append (' ').append (aParam);
+
+    final CommandJob aJob = aJobMgr.submit (aCommand, aCommandParams, aDescription.toString ());
+    return new CommandResult (CommandResult.TYPE_OK, Long.toString (aJob.getID ()));
+  }
+}
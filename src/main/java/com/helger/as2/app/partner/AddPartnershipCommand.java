@@ -121,6 +121,7 @@ public class AddPartnershipCommand extends AbstractAliasedPartnershipsCommand
                                                                                          partFx.getAllPartnerships ());
       // add the partnership to the list of available partnerships
       partFx.addPartnership (aPartnership);
+      ((XMLPartnershipFactory) partFx).invalidateSnapshots ();
 
       return new CommandResult (CommandResult.TYPE_OK);
     }
@@ -0,0 +1,154 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.app.partner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import javax.annotation.Nonnull;
+
+import com.helger.as2.cmd.AbstractCommand;
+import com.helger.as2.cmd.CommandResult;
+import com.helger.as2.cmd.JobManager;
+import com.helger.as2.cmd.processor.StreamCommandProcessor;
+import com.helger.as2.partner.PartnershipBatch;
+import com.helger.as2.partner.XMLPartnershipFactory;
+import com.helger.as2lib.exception.OpenAS2Exception;
+import com.helger.as2lib.exception.WrappedException;
+import com.helger.as2lib.partner.IPartnershipFactory;
+import com.phloc.commons.io.streams.StreamUtils;
+
+/**
+ * executes a script of partner and partnership modifications as one
+ * transaction: either all modifications are applied and stored once, or
+ * nothing is changed. See {@link PartnershipBatch} for the script syntax.
+ */
+public class BatchPartnershipsCommand extends AbstractCommand
+{
+  public static final String OPTION_NO_STORE = "--nostore";
+
+  @Override
+  public String getDefaultDescription ()
+  {
+    return "Applies a script of partner and partnership add/delete commands at once";
+  }
+
+  @Override
+  public String getDefaultName ()
+  {
+    return StreamCommandProcessor.BATCH_COMMAND;
+  }
+
+  @Override
+  public String getDefaultUsage ()
+  {
+    return "batch [" + OPTION_NO_STORE + "] <file> | batch [" + OPTION_NO_STORE + "] " + StreamCommandProcessor.BATCH_SCRIPT_OPTION + " <script>";
+  }
+
+  @Nonnull
+  private static String _readFile (@Nonnull final File aFile) throws OpenAS2Exception
+  {
+    Reader aReader = null;
+    try
+    {
+      aReader = new InputStreamReader (new FileInputStream (aFile), "UTF-8");
+      final StringBuilder aSB = new StringBuilder ();
+      final char [] aBuf = new char [4096];
+      int nRead;
+      while ((nRead = aReader.read (aBuf)) >= 0)
+        aSB.append (aBuf, 0, nRead);
+      return aSB.toString ();
+    }
+    catch (final IOException ex)
+    {
+      throw new WrappedException (ex);
+    }
+    finally
+    {
+      StreamUtils.close (aReader);
+    }
+  }
+
+  @Override
+  public CommandResult execute (final Object [] params)
+  {
+    int nIndex = 0;
+    boolean bStore = true;
+    if (params.length > nIndex && OPTION_NO_STORE.equals (params[nIndex]))
+    {
+      bStore = false;
+      nIndex++;
+    }
+
+    String sScript;
+    if (params.length == nIndex + 2 && StreamCommandProcessor.BATCH_SCRIPT_OPTION.equals (params[nIndex]))
+      sScript = params[nIndex + 1].toString ();
+    else
+      if (params.length == nIndex + 1)
+        sScript = null;
+      else
+        return new CommandResult (CommandResult.TYPE_INVALID_PARAM_COUNT, getUsage ());
+
+    try
+    {
+      final IPartnershipFactory partFx = getSession ().getPartnershipFactory ();
+      if (!(partFx instanceof XMLPartnershipFactory))
+        return new CommandResult (CommandResult.TYPE_COMMAND_NOT_SUPPORTED,
+                                  "Not supported by current partnership store, must be XML");
+
+      if (sScript == null)
+        sScript = _readFile (new File (params[nIndex].toString ()));
+
+      // Validate the whole script before anything is modified
+      final PartnershipBatch aBatch = PartnershipBatch.parse (sScript);
+      JobManager.reportProgress (10, "Parsed " + aBatch.getOperationCount () + " modifications");
+
+      ((XMLPartnershipFactory) partFx).applyBatch (aBatch, bStore);
+      JobManager.reportProgress (100, null);
+
+      return new CommandResult (CommandResult.TYPE_OK, "Applied " +
+                                                       aBatch.getOperationCount () +
+                                                       " modifications" +
+                                                       (bStore ? " and stored partnerships" : ""));
+    }
+    catch (final OpenAS2Exception oae)
+    {
+      oae.terminate ();
+
+      return new CommandResult (oae);
+    }
+  }
+}
@@ -33,6 +33,7 @@
 package com.helger.as2.app.partner;
 
 import com.helger.as2.cmd.CommandResult;
+import com.helger.as2.partner.XMLPartnershipFactory;
 import com.helger.as2lib.exception.OpenAS2Exception;
 import com.helger.as2lib.partner.IPartnershipFactory;
 import com.helger.as2lib.partner.Partnership;
@@ -98,6 +99,8 @@ public class DeletePartnerCommand extends AbstractAliasedPartnershipsCommand
         return new CommandResult (CommandResult.TYPE_ERROR, "Can not delete partner; it is tied to some partnerships");
 
       partFx.getPartners ().remove (name);
+      if (partFx instanceof XMLPartnershipFactory)
+        ((XMLPartnershipFactory) partFx).invalidateSnapshots ();
       return new CommandResult (CommandResult.TYPE_OK);
     }
   }
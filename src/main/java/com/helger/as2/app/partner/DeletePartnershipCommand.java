@@ -33,6 +33,7 @@
 package com.helger.as2.app.partner;
 
 import com.helger.as2.cmd.CommandResult;
+import com.helger.as2.partner.XMLPartnershipFactory;
 import com.helger.as2lib.exception.OpenAS2Exception;
 import com.helger.as2lib.partner.IPartnershipFactory;
 import com.helger.as2lib.partner.Partnership;
@@ -78,6 +79,8 @@ public class DeletePartnershipCommand extends AbstractAliasedPartnershipsCommand
         if (part.getName ().equals (name))
         {
           partFx.removePartnership (part);
+          if (partFx instanceof XMLPartnershipFactory)
+            ((XMLPartnershipFactory) partFx).invalidateSnapshots ();
           return new CommandResult (CommandResult.TYPE_OK, "deleted " + name);
         }
 
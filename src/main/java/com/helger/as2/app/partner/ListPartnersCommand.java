@@ -32,13 +32,16 @@
  */
 package com.helger.as2.app.partner;
 
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+import com.helger.as2.cmd.CommandException;
 import com.helger.as2.cmd.CommandResult;
+import com.helger.as2.cmd.ListOptions;
+import com.helger.as2.partner.XMLPartnershipFactory;
 import com.helger.as2lib.exception.OpenAS2Exception;
 import com.helger.as2lib.partner.IPartnershipFactory;
-import com.helger.as2lib.util.StringMap;
 
 /**
  * list partner entries in partnership store
@@ -62,32 +65,42 @@ public class ListPartnersCommand extends AbstractAliasedPartnershipsCommand
   @Override
   public String getDefaultUsage ()
   {
-    return "list";
+    return "list " + ListOptions.USAGE;
   }
 
   @Override
   public CommandResult execute (final IPartnershipFactory partFx, final Object [] params) throws OpenAS2Exception
   {
-
-    synchronized (partFx)
+    final ListOptions aOptions;
+    try
     {
+      aOptions = ListOptions.parse (params);
+    }
+    catch (final CommandException ex)
+    {
+      return new CommandResult (CommandResult.TYPE_ERROR, ex.getMessage () + " - usage: " + getUsage ());
+    }
 
-      final Map <String, StringMap> partners = partFx.getPartners ();
-      final Iterator <String> partIt = partners.keySet ().iterator ();
-
-      final CommandResult cmdRes = new CommandResult (CommandResult.TYPE_OK);
-
-      while (partIt.hasNext ())
-      {
-        cmdRes.getResults ().add (partIt.next ());
-      }
-
-      if (cmdRes.getResults ().size () == 0)
+    // Sorted list of all names
+    List <String> aNames;
+    if (partFx instanceof XMLPartnershipFactory)
+    {
+      // Immutable snapshot - no locking required
+      aNames = ((XMLPartnershipFactory) partFx).getPartnerNameSnapshot ();
+    }
+    else
+    {
+      synchronized (partFx)
       {
-        cmdRes.getResults ().add ("No partner definitions available");
+        aNames = new ArrayList <String> (partFx.getPartners ().keySet ());
       }
-
-      return cmdRes;
+      Collections.sort (aNames);
     }
+
+    final List <String> aPage = aOptions.apply (aNames);
+    if (aPage.isEmpty ())
+      return new CommandResult (CommandResult.TYPE_OK, "No partner definitions available");
+    // The page is a view on an unmodifiable list, so it can be streamed
+    return new CommandResult (CommandResult.TYPE_OK, aPage);
   }
 }
@@ -32,7 +32,14 @@
  */
 package com.helger.as2.app.partner;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.helger.as2.cmd.CommandException;
 import com.helger.as2.cmd.CommandResult;
+import com.helger.as2.cmd.ListOptions;
+import com.helger.as2.partner.XMLPartnershipFactory;
 import com.helger.as2lib.exception.OpenAS2Exception;
 import com.helger.as2lib.partner.IPartnershipFactory;
 import com.helger.as2lib.partner.Partnership;
@@ -59,23 +66,44 @@ public class ListPartnershipsCommand extends AbstractAliasedPartnershipsCommand
   @Override
   public String getDefaultUsage ()
   {
-    return "list";
+    return "list " + ListOptions.USAGE;
   }
 
   @Override
   public CommandResult execute (final IPartnershipFactory partFx, final Object [] params) throws OpenAS2Exception
   {
-    final CommandResult cmdRes = new CommandResult (CommandResult.TYPE_OK);
-
-    synchronized (partFx)
+    final ListOptions aOptions;
+    try
+    {
+      aOptions = ListOptions.parse (params);
+    }
+    catch (final CommandException ex)
     {
-      for (final Partnership part : partFx.getAllPartnerships ())
-        cmdRes.getResults ().add (part.getName ());
+      return new CommandResult (CommandResult.TYPE_ERROR, ex.getMessage () + " - usage: " + getUsage ());
     }
 
-    if (cmdRes.getResults ().isEmpty ())
-      cmdRes.getResults ().add ("No partnerships available");
+    // Sorted list of all names
+    List <String> aNames;
+    if (partFx instanceof XMLPartnershipFactory)
+    {
+      // Immutable snapshot - no locking required
+      aNames = ((XMLPartnershipFactory) partFx).getPartnershipNameSnapshot ();
+    }
+    else
+    {
+      synchronized (partFx)
+      {
+        aNames = new ArrayList <String> ();
+        for (final Partnership part : partFx.getAllPartnerships ())
+          aNames.add (part.getName ());
+      }
+      Collections.sort (aNames);
+    }
 
-    return cmdRes;
+    final List <String> aPage = aOptions.apply (aNames);
+    if (aPage.isEmpty ())
+      return new CommandResult (CommandResult.TYPE_OK, "No partnerships available");
+    // The page is a view on an unmodifiable list, so it can be streamed
+    return new CommandResult (CommandResult.TYPE_OK, aPage);
   }
 }
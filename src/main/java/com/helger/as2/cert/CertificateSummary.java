@@ -0,0 +1,157 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cert;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Compact, immutable textual summary of an X.509 certificate. Used by the
+ * certificate commands instead of {@link X509Certificate#toString()} which is
+ * both slow and very verbose.
+ */
+@Immutable
+public final class CertificateSummary
+{
+  private static final char [] HEX = "0123456789ABCDEF".toCharArray ();
+
+  private final String m_sSubject;
+  private final String m_sIssuer;
+  private final String m_sSerial;
+  private final Date m_aNotBefore;
+  private final Date m_aNotAfter;
+  private final String m_sFingerprint;
+  private final String m_sAsString;
+
+  public CertificateSummary (@Nonnull final X509Certificate aCert)
+  {
+    m_sSubject = aCert.getSubjectX500Principal ().getName ();
+    m_sIssuer = aCert.getIssuerX500Principal ().getName ();
+    m_sSerial = aCert.getSerialNumber ().toString (16).toUpperCase (Locale.US);
+    m_aNotBefore = aCert.getNotBefore ();
+    m_aNotAfter = aCert.getNotAfter ();
+    m_sFingerprint = _getFingerprint (aCert);
+
+    final SimpleDateFormat aSDF = new SimpleDateFormat ("yyyy-MM-dd HH:mm:ss Z", Locale.US);
+    m_sAsString = "Subject: " +
+                  m_sSubject +
+                  "\r\nIssuer: " +
+                  m_sIssuer +
+                  "\r\nSerial: " +
+                  m_sSerial +
+                  "\r\nValid from: " +
+                  aSDF.format (m_aNotBefore) +
+                  "\r\nValid to: " +
+                  aSDF.format (m_aNotAfter) +
+                  "\r\nSHA-1 fingerprint: " +
+                  m_sFingerprint;
+  }
+
+  @Nonnull
+  private static String _getFingerprint (@Nonnull final X509Certificate aCert)
+  {
+    try
+    {
+      final byte [] aDigest = MessageDigest.getInstance ("SHA-1").digest (aCert.getEncoded ());
+      final StringBuilder aSB = new StringBuilder (aDigest.length * 3);
+      for (final byte b : aDigest)
+      {
+        if (aSB.length () > 0)
+          aSB.append (':');
+        aSB.append (HEX[(b >> 4) & 0x0f]).append (HEX[b & 0x0f]);
+      }
+      return aSB.toString ();
+    }
+    catch (final NoSuchAlgorithmException ex)
+    {
+      return "n/a";
+    }
+    catch (final CertificateEncodingException ex)
+    {
+      return "n/a";
+    }
+  }
+
+  @Nonnull
+  public String getSubject ()
+  {
+    return m_sSubject;
+  }
+
+  @Nonnull
+  public String getIssuer ()
+  {
+    return m_sIssuer;
+  }
+
+  @Nonnull
+  public String getSerialNumber ()
+  {
+    return m_sSerial;
+  }
+
+  @Nonnull
+  public Date getNotBefore ()
+  {
+    return (Date) m_aNotBefore.clone ();
+  }
+
+  @Nonnull
+  public Date getNotAfter ()
+  {
+    return (Date) m_aNotAfter.clone ();
+  }
+
+  /**
+   * @return The SHA-1 fingerprint as colon separated upper case hex string
+   */
+  @Nonnull
+  public String getFingerprint ()
+  {
+    return m_sFingerprint;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return m_sAsString;
+  }
+}
@@ -33,8 +33,41 @@
 package com.helger.as2.cert;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.WillClose;
 
 import org.slf4j.Logger;
@@ -45,20 +78,616 @@ import com.helger.as2.util.IFileMonitorListener;
 import com.helger.as2lib.cert.PKCS12CertificateFactory;
 import com.helger.as2lib.exception.InvalidParameterException;
 import com.helger.as2lib.exception.OpenAS2Exception;
+import com.helger.as2lib.exception.WrappedException;
+import com.phloc.commons.annotations.ReturnsImmutableObject;
+import com.phloc.commons.io.streams.StreamUtils;
 
+/**
+ * Server side PKCS12 certificate factory. Supports file monitoring, a cached
+ * alias snapshot and different strategies for unwrapping private keys on
+ * startup (parameter <code>keyloading</code>):
+ * <ul>
+ * <li><code>eager</code> (default) - all keys are decrypted while loading</li>
+ * <li><code>lazy</code> - only certificates are loaded, private keys are
+ * unwrapped on first use</li>
+ * <li><code>parallel</code> - like lazy, but all private keys are unwrapped in
+ * the background on a bounded pool of <code>keythreads</code> threads</li>
+ * </ul>
+ * In lazy and parallel mode the factory is ready as soon as the private keys
+ * of all local partners (see {@link #setPartnerAliases(Collection)}) are
+ * available.<br>
+ * If the parameter <code>writebehindwindow</code> (in milliseconds) is set,
+ * modifications are only applied to the in-memory store and the PKCS12 file
+ * is written asynchronously, coalescing all modifications within the window.
+ * If the file is changed externally while modifications are pending, the file
+ * is re-read and the pending modifications are applied on top of it.
+ */
 public class ServerPKCS12CertificateFactory extends PKCS12CertificateFactory implements IFileMonitorListener
 {
+  public static final String PARAM_KEY_LOADING = "keyloading";
+  public static final String PARAM_KEY_THREADS = "keythreads";
+  public static final String PARAM_WRITE_BEHIND_WINDOW = "writebehindwindow";
+  public static final String KEY_LOADING_EAGER = "eager";
+  public static final String KEY_LOADING_LAZY = "lazy";
+  public static final String KEY_LOADING_PARALLEL = "parallel";
+
   private static final Logger s_aLogger = LoggerFactory.getLogger (ServerPKCS12CertificateFactory.class);
 
   private FileMonitor m_aFileMonitor;
 
+  // Private keys unwrapped so far (lazy and parallel mode only)
+  private final Map <String, PrivateKey> m_aKeyCache = new ConcurrentHashMap <String, PrivateKey> ();
+  private volatile KeyUnwrapper m_aKeyUnwrapper;
+  private volatile Set <String> m_aRequiredAliases = Collections.emptySet ();
+
+  // Write-behind state - guarded by this
+  private ScheduledExecutorService m_aFlushExecutor;
+  private boolean m_bFlushScheduled = false;
+  private String m_sDirtyFilename;
+  private char [] m_aDirtyPassword;
+  // Aliases modified since the last write
+  private final Set <String> m_aPendingAliases = new HashSet <String> ();
+  // Serializes the file writes of concurrent flushes
+  private final Object m_aFlushLock = new Object ();
+
+  // Sorted, immutable list of all aliases - rebuilt lazily after modification
+  private final AtomicLong m_aModCount = new AtomicLong (0);
+  private volatile List <String> m_aAliasSnapshot;
+  private final Map <String, CertificateSummary> m_aSummaryCache = new ConcurrentHashMap <String, CertificateSummary> ();
+
+  // Must be called with this locked
+  private void _invalidateAll ()
+  {
+    m_aModCount.incrementAndGet ();
+    m_aAliasSnapshot = null;
+    m_aSummaryCache.clear ();
+    m_aKeyCache.clear ();
+  }
+
+  // Must be called with this locked
+  private void _invalidate (@Nonnull final Collection <String> aAliases)
+  {
+    m_aModCount.incrementAndGet ();
+    m_aAliasSnapshot = null;
+    for (final String sAlias : aAliases)
+    {
+      m_aSummaryCache.remove (sAlias);
+      m_aKeyCache.remove (sAlias);
+    }
+    final KeyUnwrapper aUnwrapper = m_aKeyUnwrapper;
+    if (aUnwrapper != null)
+      aUnwrapper.invalidate (aAliases);
+  }
+
+  /**
+   * Replace the key unwrapper after a new keystore was set. Results of the
+   * previous unwrapper are ignored from now on.
+   */
+  private synchronized void _setKeyUnwrapper (@Nullable final KeyUnwrapper aUnwrapper)
+  {
+    final KeyUnwrapper aOld = m_aKeyUnwrapper;
+    m_aKeyUnwrapper = aUnwrapper;
+    _invalidateAll ();
+    if (aOld != null)
+      aOld.cancel ();
+  }
+
+  @Nonnull
+  public String getKeyLoading ()
+  {
+    final String sKeyLoading = getAttributeAsString (PARAM_KEY_LOADING);
+    return sKeyLoading == null ? KEY_LOADING_EAGER : sKeyLoading.toLowerCase (Locale.US);
+  }
+
+  public boolean isEagerKeyLoading ()
+  {
+    return KEY_LOADING_EAGER.equals (getKeyLoading ());
+  }
+
   @Override
   public void load (@WillClose final InputStream in, final char [] password) throws OpenAS2Exception
   {
-    super.load (in, password);
+    final String sKeyLoading = getKeyLoading ();
+    if (KEY_LOADING_EAGER.equals (sKeyLoading))
+    {
+      super.load (in, password);
+      _setKeyUnwrapper (null);
+    }
+    else
+    {
+      if (!KEY_LOADING_LAZY.equals (sKeyLoading) && !KEY_LOADING_PARALLEL.equals (sKeyLoading))
+        throw new OpenAS2Exception ("Invalid " + PARAM_KEY_LOADING + " value '" + sKeyLoading + "'");
+
+      final long nStartNanos = System.nanoTime ();
+      final KeyStore aKeyStore;
+      try
+      {
+        // The JDK PKCS12 implementation keeps the private keys encrypted until
+        // they are requested
+        aKeyStore = KeyStore.getInstance ("PKCS12", "SunJSSE");
+        aKeyStore.load (in, password);
+      }
+      catch (final Exception ex)
+      {
+        throw new WrappedException (ex);
+      }
+      finally
+      {
+        StreamUtils.close (in);
+      }
+      setKeyStore (aKeyStore);
+      _startUnwrappingKeys (aKeyStore, password, KEY_LOADING_PARALLEL.equals (sKeyLoading), nStartNanos);
+    }
     getFileMonitor ();
   }
 
+  /**
+   * Unwraps the private keys of one loaded keystore on a bounded background
+   * pool and keeps track of the aliases that succeeded or failed. Once the
+   * keystore is replaced, the unwrapper is cancelled and its results are
+   * ignored.
+   */
+  private final class KeyUnwrapper
+  {
+    private final KeyStore m_aKeyStore;
+    private final char [] m_aPassword;
+    private final boolean m_bUnwrapAll;
+    private final long m_nStartNanos;
+    private final ThreadPoolExecutor m_aPool;
+    private volatile boolean m_bCancelled = false;
+    // All guarded by this
+    private final Set <String> m_aSubmitted = new HashSet <String> ();
+    private final Set <String> m_aUnwrapped = new HashSet <String> ();
+    private final Map <String, Exception> m_aFailed = new HashMap <String, Exception> ();
+
+    KeyUnwrapper (@Nonnull final KeyStore aKeyStore,
+                  @Nonnull final char [] aPassword,
+                  final boolean bUnwrapAll,
+                  final int nThreads,
+                  final long nStartNanos)
+    {
+      m_aKeyStore = aKeyStore;
+      m_aPassword = aPassword.clone ();
+      m_bUnwrapAll = bUnwrapAll;
+      m_nStartNanos = nStartNanos;
+      m_aPool = new ThreadPoolExecutor (nThreads,
+                                        nThreads,
+                                        1,
+                                        TimeUnit.SECONDS,
+                                        new LinkedBlockingQueue <Runnable> (),
+                                        new ThreadFactory ()
+                                        {
+                                          private final AtomicInteger m_aCount = new AtomicInteger (0);
+
+                                          public Thread newThread (final Runnable aRunnable)
+                                          {
+                                            final Thread aThread = new Thread (aRunnable, "KeyUnwrapper-" +
+                                                                                          m_aCount.incrementAndGet ());
+                                            aThread.setDaemon (true);
+                                            return aThread;
+                                          }
+                                        });
+      // Threads terminate after all keys are unwrapped
+      m_aPool.allowCoreThreadTimeOut (true);
+    }
+
+    synchronized void unwrap (@Nonnull final Collection <String> aAliases)
+    {
+      if (m_bCancelled)
+        return;
+      for (final String sAlias : aAliases)
+        if (m_aSubmitted.add (sAlias))
+          m_aPool.execute (new Runnable ()
+          {
+            public void run ()
+            {
+              _unwrap (sAlias);
+            }
+          });
+    }
+
+    private void _unwrap (@Nonnull final String sAlias)
+    {
+      while (!m_bCancelled)
+      {
+        final long nModCount = m_aModCount.get ();
+        PrivateKey aKey = null;
+        Exception aFailure = null;
+        try
+        {
+          final Key aStoredKey = m_aKeyStore.getKey (sAlias, m_aPassword);
+          if (!(aStoredKey instanceof PrivateKey))
+            throw new KeyStoreException ("Alias '" + sAlias + "' contains no private key");
+          aKey = (PrivateKey) aStoredKey;
+        }
+        catch (final Exception ex)
+        {
+          aFailure = ex;
+        }
+
+        synchronized (ServerPKCS12CertificateFactory.this)
+        {
+          // The keystore was replaced
+          if (m_aKeyUnwrapper != this)
+            return;
+          // The keystore was modified in the meantime, the key may be outdated
+          if (m_aModCount.get () != nModCount)
+            continue;
+          if (aKey != null)
+            m_aKeyCache.put (sAlias, aKey);
+          synchronized (this)
+          {
+            if (aKey != null)
+              m_aUnwrapped.add (sAlias);
+            else
+              m_aFailed.put (sAlias, aFailure);
+            notifyAll ();
+          }
+        }
+        if (aFailure != null)
+          s_aLogger.error ("Failed to unwrap private key of alias '" + sAlias + "'", aFailure);
+        return;
+      }
+    }
+
+    /**
+     * Forget the state of the passed modified aliases and unwrap their new
+     * keys again if they are needed.
+     */
+    synchronized void invalidate (@Nonnull final Collection <String> aAliases)
+    {
+      m_aSubmitted.removeAll (aAliases);
+      m_aUnwrapped.removeAll (aAliases);
+      final Set <String> aRequired = _getRequiredKeyAliases ();
+      final List <String> aResubmit = new ArrayList <String> ();
+      for (final String sAlias : aAliases)
+      {
+        m_aFailed.remove (sAlias);
+        if (aRequired.contains (sAlias) || (m_bUnwrapAll && _isKeyEntry (m_aKeyStore, sAlias)))
+          aResubmit.add (sAlias);
+      }
+      unwrap (aResubmit);
+    }
+
+    void cancel ()
+    {
+      m_bCancelled = true;
+      m_aPool.shutdownNow ();
+      synchronized (this)
+      {
+        notifyAll ();
+      }
+    }
+
+    boolean isCancelled ()
+    {
+      return m_bCancelled;
+    }
+
+    synchronized boolean isUnwrapped (@Nonnull final Collection <String> aAliases)
+    {
+      return m_aUnwrapped.containsAll (aAliases);
+    }
+
+    synchronized boolean await (@Nonnull final Collection <String> aAliases, final long nTimeoutMillis) throws InterruptedException,
+                                                                                                       OpenAS2Exception
+    {
+      final long nEndNanos = System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (nTimeoutMillis);
+      while (!m_bCancelled)
+      {
+        for (final String sAlias : aAliases)
+        {
+          final Exception aFailure = m_aFailed.get (sAlias);
+          if (aFailure != null)
+            throw new WrappedException ("Private key of alias '" + sAlias + "' could not be unwrapped", aFailure);
+        }
+        if (m_aUnwrapped.containsAll (aAliases))
+          return true;
+        final long nRemainingMillis = TimeUnit.NANOSECONDS.toMillis (nEndNanos - System.nanoTime ());
+        if (nRemainingMillis <= 0)
+          return false;
+        wait (nRemainingMillis);
+      }
+      return false;
+    }
+
+    long getMillisSinceStart ()
+    {
+      return _getMillisSince (m_nStartNanos);
+    }
+  }
+
+  private void _startUnwrappingKeys (@Nonnull final KeyStore aKeyStore,
+                                     @Nonnull final char [] aPassword,
+                                     final boolean bUnwrapAll,
+                                     final long nStartNanos) throws OpenAS2Exception
+  {
+    final List <String> aKeyAliases = new ArrayList <String> ();
+    try
+    {
+      final Enumeration <String> aAliases = aKeyStore.aliases ();
+      while (aAliases.hasMoreElements ())
+      {
+        final String sAlias = aAliases.nextElement ();
+        if (aKeyStore.isKeyEntry (sAlias))
+          aKeyAliases.add (sAlias);
+      }
+    }
+    catch (final KeyStoreException ex)
+    {
+      throw new WrappedException (ex);
+    }
+
+    final KeyUnwrapper aUnwrapper = new KeyUnwrapper (aKeyStore,
+                                                      aPassword,
+                                                      bUnwrapAll,
+                                                      getKeyThreads (Math.max (1, aKeyAliases.size ())),
+                                                      nStartNanos);
+    _setKeyUnwrapper (aUnwrapper);
+    if (bUnwrapAll)
+      aUnwrapper.unwrap (aKeyAliases);
+    // Keys of the local partners were requested before this (re)load
+    aUnwrapper.unwrap (_getRequiredKeyAliases ());
+    s_aLogger.info ("Certificates loaded after " + _getMillisSince (nStartNanos) + " ms");
+  }
+
+  private static long _getMillisSince (final long nStartNanos)
+  {
+    return TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStartNanos);
+  }
+
+  public int getKeyThreads (final int nMaxNeeded)
+  {
+    final String sThreads = getAttributeAsString (PARAM_KEY_THREADS);
+    int nThreads = Runtime.getRuntime ().availableProcessors ();
+    if (sThreads != null)
+      try
+      {
+        nThreads = Integer.parseInt (sThreads);
+      }
+      catch (final NumberFormatException ex)
+      {
+        s_aLogger.warn ("Invalid " + PARAM_KEY_THREADS + " value '" + sThreads + "'");
+      }
+    return Math.max (1, Math.min (nThreads, nMaxNeeded));
+  }
+
+  private static boolean _isKeyEntry (@Nonnull final KeyStore aKeyStore, @Nonnull final String sAlias)
+  {
+    try
+    {
+      return aKeyStore.isKeyEntry (sAlias);
+    }
+    catch (final KeyStoreException ex)
+    {
+      s_aLogger.warn ("Failed to check alias '" + sAlias + "'", ex);
+      return false;
+    }
+  }
+
+  @Nonnull
+  private Set <String> _getRequiredKeyAliases ()
+  {
+    final Set <String> ret = new HashSet <String> ();
+    final KeyStore aKeyStore = getKeyStore ();
+    for (final String sAlias : m_aRequiredAliases)
+    {
+      // Only aliases with a private key belong to local partners
+      if (_isKeyEntry (aKeyStore, sAlias))
+        ret.add (sAlias);
+    }
+    return ret;
+  }
+
+  /**
+   * Set the certificate aliases of the configured partners. The private keys
+   * of all of these aliases that are contained in the keystore (i.e. the keys
+   * of the local partners) are unwrapped in the background and are required
+   * before the factory reports to be ready.
+   *
+   * @param aAliases
+   *        The aliases of all configured partners. May not be <code>null</code>
+   *        .
+   */
+  public void setPartnerAliases (@Nonnull final Collection <String> aAliases)
+  {
+    m_aRequiredAliases = Collections.unmodifiableSet (new HashSet <String> (aAliases));
+    final KeyUnwrapper aUnwrapper = m_aKeyUnwrapper;
+    if (aUnwrapper != null)
+      aUnwrapper.unwrap (_getRequiredKeyAliases ());
+  }
+
+  /**
+   * @return <code>true</code> if the private keys of all local partners are
+   *         available
+   */
+  public boolean isReady ()
+  {
+    final KeyUnwrapper aUnwrapper = m_aKeyUnwrapper;
+    return aUnwrapper == null || aUnwrapper.isUnwrapped (_getRequiredKeyAliases ());
+  }
+
+  /**
+   * Block until the private keys of all local partners were unwrapped.
+   *
+   * @param nTimeout
+   *        Maximum time to wait
+   * @param eUnit
+   *        Time unit of the timeout
+   * @return <code>true</code> if the factory is ready, <code>false</code> if the
+   *         timeout elapsed
+   * @throws InterruptedException
+   *         if interrupted while waiting
+   * @throws OpenAS2Exception
+   *         if the private key of a local partner could not be unwrapped
+   */
+  public boolean waitUntilReady (final long nTimeout, @Nonnull final TimeUnit eUnit) throws InterruptedException,
+                                                                                      OpenAS2Exception
+  {
+    final long nEndNanos = System.nanoTime () + eUnit.toNanos (nTimeout);
+    while (true)
+    {
+      final KeyUnwrapper aUnwrapper = m_aKeyUnwrapper;
+      if (aUnwrapper == null)
+        return true;
+      if (aUnwrapper.await (_getRequiredKeyAliases (), TimeUnit.NANOSECONDS.toMillis (nEndNanos - System.nanoTime ())))
+      {
+        s_aLogger.info ("Private keys ready after " + aUnwrapper.getMillisSinceStart () + " ms");
+        return true;
+      }
+      // Wait for the unwrapper of the new keystore if the keystore was replaced
+      if (!aUnwrapper.isCancelled ())
+        return false;
+    }
+  }
+
+  @Override
+  public PrivateKey getPrivateKey (@Nullable final X509Certificate aCert) throws OpenAS2Exception
+  {
+    if (aCert == null || isEagerKeyLoading ())
+      return super.getPrivateKey (aCert);
+
+    final long nModCount = m_aModCount.get ();
+    final String sAlias;
+    try
+    {
+      sAlias = getKeyStore ().getCertificateAlias (aCert);
+    }
+    catch (final KeyStoreException ex)
+    {
+      throw new WrappedException (ex);
+    }
+    if (sAlias == null)
+      return super.getPrivateKey (aCert);
+
+    // Unwrap on first use
+    PrivateKey aKey = m_aKeyCache.get (sAlias);
+    if (aKey == null)
+    {
+      aKey = super.getPrivateKey (aCert);
+      if (aKey != null)
+        synchronized (this)
+        {
+          // Don't cache a key that was replaced in the meantime
+          if (m_aModCount.get () == nModCount)
+            m_aKeyCache.put (sAlias, aKey);
+        }
+    }
+    return aKey;
+  }
+
+  // Must be called with this locked
+  private void _markPending (@Nonnull final Collection <String> aAliases)
+  {
+    if (m_sDirtyFilename != null)
+      m_aPendingAliases.addAll (aAliases);
+  }
+
+  @Override
+  public synchronized void addCertificate (final String sAlias, final X509Certificate aCert, final boolean bOverwrite) throws OpenAS2Exception
+  {
+    super.addCertificate (sAlias, aCert, bOverwrite);
+    _invalidate (Collections.singleton (sAlias));
+    _markPending (Collections.singleton (sAlias));
+  }
+
+  @Override
+  public synchronized void addPrivateKey (final String sAlias, final Key aKey, final String sPassword) throws OpenAS2Exception
+  {
+    super.addPrivateKey (sAlias, aKey, sPassword);
+    _invalidate (Collections.singleton (sAlias));
+    // Keep the plain key, so writing the store does not need to decrypt it
+    if (aKey instanceof PrivateKey)
+      m_aKeyCache.put (sAlias, (PrivateKey) aKey);
+    _markPending (Collections.singleton (sAlias));
+  }
+
+  @Override
+  public synchronized void removeCertificate (final String sAlias) throws OpenAS2Exception
+  {
+    super.removeCertificate (sAlias);
+    _invalidate (Collections.singleton (sAlias));
+    _markPending (Collections.singleton (sAlias));
+  }
+
+  @Override
+  public synchronized void clearCertificates () throws OpenAS2Exception
+  {
+    final List <String> aAliases = getAliasSnapshot ();
+    super.clearCertificates ();
+    _invalidate (aAliases);
+    _markPending (aAliases);
+  }
+
+  /**
+   * Get an immutable, alphabetically sorted snapshot of all aliases in this
+   * store. The snapshot is only rebuilt (with the factory locked) after the
+   * store was modified, so listing does not require the factory lock.
+   *
+   * @return The sorted alias list. Never <code>null</code>.
+   * @throws OpenAS2Exception
+   *         In case the keystore cannot be read
+   */
+  @Nonnull
+  @ReturnsImmutableObject
+  public List <String> getAliasSnapshot () throws OpenAS2Exception
+  {
+    List <String> ret = m_aAliasSnapshot;
+    if (ret == null)
+    {
+      // The modifications lock this as well, so the keystore is not modified
+      // while it is enumerated
+      synchronized (this)
+      {
+        ret = m_aAliasSnapshot;
+        if (ret == null)
+        {
+          final List <String> aAliases = new ArrayList <String> (getCertificates ().keySet ());
+          Collections.sort (aAliases);
+          ret = Collections.unmodifiableList (aAliases);
+          m_aAliasSnapshot = ret;
+        }
+      }
+    }
+    return ret;
+  }
+
+  public boolean containsAlias (@Nullable final String sAlias) throws OpenAS2Exception
+  {
+    return sAlias != null && Collections.binarySearch (getAliasSnapshot (), sAlias) >= 0;
+  }
+
+  /**
+   * Get the compact summary of the certificate with the passed alias. The
+   * summary is computed only once per certificate.
+   *
+   * @param sAlias
+   *        The alias to query
+   * @return <code>null</code> if no such alias exists or if the certificate is
+   *         not an X.509 certificate
+   * @throws OpenAS2Exception
+   *         In case the keystore cannot be read
+   */
+  @Nullable
+  public CertificateSummary getCertificateSummary (@Nullable final String sAlias) throws OpenAS2Exception
+  {
+    final long nModCount = m_aModCount.get ();
+    if (!containsAlias (sAlias))
+      return null;
+
+    CertificateSummary aSummary = m_aSummaryCache.get (sAlias);
+    if (aSummary == null)
+    {
+      final Certificate aCert = getCertificate (sAlias);
+      if (!(aCert instanceof X509Certificate))
+        return null;
+      aSummary = new CertificateSummary ((X509Certificate) aCert);
+      if (m_aModCount.get () == nModCount)
+        m_aSummaryCache.put (sAlias, aSummary);
+    }
+    return aSummary;
+  }
+
   public void setFileMonitor (final FileMonitor fileMonitor)
   {
     m_aFileMonitor = fileMonitor;
@@ -87,6 +716,377 @@ public class ServerPKCS12CertificateFactory extends PKCS12CertificateFactory imp
     return m_aFileMonitor;
   }
 
+  /**
+   * @return The write-behind window in milliseconds. Values &le; 0 mean that
+   *         every modification is written synchronously.
+   */
+  public long getWriteBehindWindow ()
+  {
+    final String sWindow = getAttributeAsString (PARAM_WRITE_BEHIND_WINDOW);
+    if (sWindow != null)
+      try
+      {
+        return Long.parseLong (sWindow);
+      }
+      catch (final NumberFormatException ex)
+      {
+        s_aLogger.warn ("Invalid " + PARAM_WRITE_BEHIND_WINDOW + " value '" + sWindow + "'");
+      }
+    return 0;
+  }
+
+  @Override
+  public void save (final String sFilename, final char [] aPassword) throws OpenAS2Exception
+  {
+    final long nWindow = getWriteBehindWindow ();
+    if (nWindow <= 0)
+    {
+      _saveNow (sFilename, aPassword);
+      return;
+    }
+
+    synchronized (this)
+    {
+      m_sDirtyFilename = sFilename;
+      m_aDirtyPassword = aPassword.clone ();
+      if (!m_bFlushScheduled)
+      {
+        if (m_aFlushExecutor == null)
+          m_aFlushExecutor = Executors.newSingleThreadScheduledExecutor (new ThreadFactory ()
+          {
+            public Thread newThread (final Runnable aRunnable)
+            {
+              final Thread aThread = new Thread (aRunnable, "CertificateFlusher");
+              aThread.setDaemon (true);
+              return aThread;
+            }
+          });
+        m_aFlushExecutor.schedule (new Runnable ()
+        {
+          public void run ()
+          {
+            try
+            {
+              flush ();
+            }
+            catch (final OpenAS2Exception ex)
+            {
+              ex.terminate ();
+            }
+          }
+        }, nWindow, TimeUnit.MILLISECONDS);
+        m_bFlushScheduled = true;
+      }
+    }
+  }
+
+  private void _saveNow (final String sFilename, final char [] aPassword) throws OpenAS2Exception
+  {
+    super.save (sFilename, aPassword);
+
+    // Don't reload what we just wrote
+    final FileMonitor aFileMonitor = m_aFileMonitor;
+    if (aFileMonitor != null && aFileMonitor.getFile () != null)
+      aFileMonitor.setLastModified (new Date (aFileMonitor.getFile ().lastModified ()));
+  }
+
+  /**
+   * @return <code>true</code> if there are in-memory modifications that were
+   *         not yet written to disk
+   */
+  public synchronized boolean isDirty ()
+  {
+    return m_sDirtyFilename != null;
+  }
+
+  @Nonnull
+  private KeyStore _createEmptyKeyStore () throws GeneralSecurityException, IOException
+  {
+    final KeyStore aKeyStore = getKeyStore ();
+    final KeyStore ret = KeyStore.getInstance (aKeyStore.getType (), aKeyStore.getProvider ());
+    ret.load (null, null);
+    return ret;
+  }
+
+  /**
+   * The content of a single alias, taken with the factory locked so that the
+   * entry can be encoded without the lock.
+   */
+  private static final class EntrySnapshot
+  {
+    private final Key m_aKey;
+    private final Certificate [] m_aChain;
+    private final Certificate m_aCert;
+
+    EntrySnapshot (@Nullable final Key aKey, @Nullable final Certificate [] aChain, @Nullable final Certificate aCert)
+    {
+      m_aKey = aKey;
+      m_aChain = aChain;
+      m_aCert = aCert;
+    }
+
+    void applyTo (@Nonnull final KeyStore aTarget, @Nonnull final String sAlias, @Nonnull final char [] aPassword) throws KeyStoreException
+    {
+      if (m_aKey != null)
+        aTarget.setKeyEntry (sAlias, m_aKey, aPassword, m_aChain);
+      else
+        aTarget.setCertificateEntry (sAlias, m_aCert);
+    }
+  }
+
+  /**
+   * Get the content of an alias. Must be called with this locked.
+   *
+   * @return <code>null</code> if the alias does not exist
+   */
+  @Nullable
+  private EntrySnapshot _getEntrySnapshot (@Nonnull final KeyStore aSource,
+                                           @Nonnull final String sAlias,
+                                           @Nonnull final char [] aPassword) throws GeneralSecurityException
+  {
+    if (!aSource.containsAlias (sAlias))
+      return null;
+    if (!aSource.isKeyEntry (sAlias))
+      return new EntrySnapshot (null, null, aSource.getCertificate (sAlias));
+
+    // Keys added or used since loading are already unwrapped
+    Key aKey = m_aKeyCache.get (sAlias);
+    if (aKey == null)
+    {
+      aKey = aSource.getKey (sAlias, aPassword);
+      if (aKey instanceof PrivateKey)
+        m_aKeyCache.put (sAlias, (PrivateKey) aKey);
+    }
+    return new EntrySnapshot (aKey, aSource.getCertificateChain (sAlias), null);
+  }
+
+  private boolean _isChangedOnDisk ()
+  {
+    final FileMonitor aFileMonitor = m_aFileMonitor;
+    if (aFileMonitor == null || aFileMonitor.getFile () == null || aFileMonitor.getLastModified () == null)
+      return false;
+    return aFileMonitor.getFile ().lastModified () != aFileMonitor.getLastModified ().getTime ();
+  }
+
+  /**
+   * Re-read the certificate file and apply the pending in-memory
+   * modifications on top of it, so that neither the external change nor the
+   * not yet written modifications are lost. Must be called with this locked.
+   */
+  private void _mergeChangesOnDisk (@Nonnull final String sFilename, @Nonnull final char [] aPassword) throws OpenAS2Exception
+  {
+    final KeyStore aCurrent = getKeyStore ();
+    final KeyStore aMerged;
+    // The pending keys are taken from memory and stay valid
+    final Map <String, PrivateKey> aPendingKeys = new HashMap <String, PrivateKey> ();
+    InputStream aIS = null;
+    try
+    {
+      aMerged = _createEmptyKeyStore ();
+      aIS = new FileInputStream (sFilename);
+      aMerged.load (aIS, aPassword);
+      for (final String sAlias : m_aPendingAliases)
+      {
+        final EntrySnapshot aEntry = _getEntrySnapshot (aCurrent, sAlias, aPassword);
+        if (aEntry != null)
+        {
+          aEntry.applyTo (aMerged, sAlias, aPassword);
+          final PrivateKey aKey = m_aKeyCache.get (sAlias);
+          if (aKey != null)
+            aPendingKeys.put (sAlias, aKey);
+        }
+        else
+          if (aMerged.containsAlias (sAlias))
+            aMerged.deleteEntry (sAlias);
+      }
+    }
+    catch (final Exception ex)
+    {
+      throw new WrappedException (ex);
+    }
+    finally
+    {
+      StreamUtils.close (aIS);
+    }
+    setKeyStore (aMerged);
+    if (m_aKeyUnwrapper != null)
+    {
+      // Don't let the unwrapper of the previous keystore serve outdated keys
+      _startUnwrappingKeys (aMerged, aPassword, KEY_LOADING_PARALLEL.equals (getKeyLoading ()), System.nanoTime ());
+    }
+    else
+      _invalidateAll ();
+    m_aKeyCache.putAll (aPendingKeys);
+
+    final FileMonitor aFileMonitor = m_aFileMonitor;
+    if (aFileMonitor != null && aFileMonitor.getFile () != null)
+      aFileMonitor.setLastModified (new Date (aFileMonitor.getFile ().lastModified ()));
+    s_aLogger.info ("Merged changed certificate file with " + m_aPendingAliases.size () + " pending modification(s)");
+  }
+
+  /**
+   * Create the keystore to be written: the file on disk with the modified
+   * entries applied, or only the passed entries if all entries are contained.
+   * Decrypting the file and encrypting the keys happens here, without the
+   * factory lock.
+   */
+  @Nonnull
+  private KeyStore _createKeyStoreToWrite (@Nonnull final String sFilename,
+                                           @Nonnull final char [] aPassword,
+                                           final boolean bAllEntries,
+                                           @Nonnull final Map <String, EntrySnapshot> aEntries) throws OpenAS2Exception
+  {
+    InputStream aIS = null;
+    try
+    {
+      final KeyStore ret = _createEmptyKeyStore ();
+      if (!bAllEntries)
+      {
+        aIS = new FileInputStream (sFilename);
+        ret.load (aIS, aPassword);
+      }
+      for (final Map.Entry <String, EntrySnapshot> aEntry : aEntries.entrySet ())
+        if (aEntry.getValue () != null)
+          aEntry.getValue ().applyTo (ret, aEntry.getKey (), aPassword);
+        else
+          if (ret.containsAlias (aEntry.getKey ()))
+            ret.deleteEntry (aEntry.getKey ());
+      return ret;
+    }
+    catch (final Exception ex)
+    {
+      throw new WrappedException (ex);
+    }
+    finally
+    {
+      StreamUtils.close (aIS);
+    }
+  }
+
+  private void _writeKeyStore (@Nonnull final KeyStore aKeyStore,
+                               @Nonnull final String sFilename,
+                               @Nonnull final char [] aPassword,
+                               final boolean bUpdateMonitor) throws OpenAS2Exception
+  {
+    final FileMonitor aFileMonitor = m_aFileMonitor;
+    if (aFileMonitor != null)
+      aFileMonitor.setBusy (true);
+    try
+    {
+      // Write to a temporary file first so the file on disk is always complete
+      final File aFile = new File (sFilename);
+      final File aTmpFile = new File (sFilename + ".tmp");
+      OutputStream aOS = null;
+      try
+      {
+        aOS = new FileOutputStream (aTmpFile);
+        aKeyStore.store (aOS, aPassword);
+      }
+      catch (final Exception ex)
+      {
+        throw new WrappedException (ex);
+      }
+      finally
+      {
+        StreamUtils.close (aOS);
+      }
+      // renameTo does not replace existing files on all platforms
+      if (!aTmpFile.renameTo (aFile) && !(aFile.delete () && aTmpFile.renameTo (aFile)))
+        throw new OpenAS2Exception ("Failed to replace certificate file " + sFilename);
+
+      // Don't reload what we just wrote
+      if (bUpdateMonitor && aFileMonitor != null && aFileMonitor.getFile () != null)
+        aFileMonitor.setLastModified (new Date (aFileMonitor.getFile ().lastModified ()));
+    }
+    finally
+    {
+      if (aFileMonitor != null)
+        aFileMonitor.setBusy (false);
+    }
+  }
+
+  /**
+   * Write all pending in-memory modifications to disk. Does nothing if there
+   * are no pending modifications. Only the modified entries are taken while
+   * the factory is locked; the file is read, the modified entries are applied
+   * and the result is encoded outside the lock.
+   *
+   * @throws OpenAS2Exception
+   *         In case writing fails
+   */
+  public void flush () throws OpenAS2Exception
+  {
+    synchronized (m_aFlushLock)
+    {
+      final long nStartNanos = System.nanoTime ();
+      final String sFilename;
+      final char [] aPassword;
+      final Set <String> aPendingAliases;
+      final boolean bAllEntries;
+      final long nFileModified;
+      final Map <String, EntrySnapshot> aEntries = new HashMap <String, EntrySnapshot> ();
+      synchronized (this)
+      {
+        m_bFlushScheduled = false;
+        if (m_sDirtyFilename == null)
+          return;
+
+        sFilename = m_sDirtyFilename;
+        aPassword = m_aDirtyPassword;
+        // Someone changed the file since it was read last
+        if (_isChangedOnDisk ())
+          _mergeChangesOnDisk (sFilename, aPassword);
+
+        // All unmodified entries are contained in the file
+        final File aFile = new File (sFilename);
+        bAllEntries = !aFile.isFile ();
+        nFileModified = aFile.lastModified ();
+        final KeyStore aKeyStore = getKeyStore ();
+        try
+        {
+          final Collection <String> aAliases = bAllEntries ? Collections.list (aKeyStore.aliases ())
+                                                           : m_aPendingAliases;
+          for (final String sAlias : aAliases)
+            aEntries.put (sAlias, _getEntrySnapshot (aKeyStore, sAlias, aPassword));
+        }
+        catch (final GeneralSecurityException ex)
+        {
+          throw new WrappedException (ex);
+        }
+        aPendingAliases = new HashSet <String> (m_aPendingAliases);
+        m_aPendingAliases.clear ();
+        m_sDirtyFilename = null;
+        m_aDirtyPassword = null;
+      }
+
+      try
+      {
+        // If the file was changed externally in the meantime, the change is
+        // contained in the written file and the monitor reloads it
+        final boolean bUnchanged = new File (sFilename).lastModified () == nFileModified;
+        _writeKeyStore (_createKeyStoreToWrite (sFilename, aPassword, bAllEntries, aEntries),
+                        sFilename,
+                        aPassword,
+                        bUnchanged);
+      }
+      catch (final OpenAS2Exception ex)
+      {
+        // Keep the modifications for the next attempt
+        synchronized (this)
+        {
+          if (m_sDirtyFilename == null)
+          {
+            m_sDirtyFilename = sFilename;
+            m_aDirtyPassword = aPassword;
+          }
+          m_aPendingAliases.addAll (aPendingAliases);
+        }
+        throw ex;
+      }
+      s_aLogger.info ("Certificates written in " + _getMillisSince (nStartNanos) + " ms");
+    }
+  }
+
   public void handle (final FileMonitor monitor, final File file, final int eventID)
   {
     switch (eventID)
@@ -94,6 +1094,15 @@ public class ServerPKCS12CertificateFactory extends PKCS12CertificateFactory imp
       case IFileMonitorListener.EVENT_MODIFIED:
         try
         {
+          synchronized (this)
+          {
+            if (m_sDirtyFilename != null)
+            {
+              // Keep the not yet written modifications
+              _mergeChangesOnDisk (m_sDirtyFilename, m_aDirtyPassword);
+              break;
+            }
+          }
           load ();
           s_aLogger.info ("- Certificates Reloaded -");
         }
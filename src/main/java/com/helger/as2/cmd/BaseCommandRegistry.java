@@ -32,7 +32,7 @@
  */
 package com.helger.as2.cmd;
 
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import javax.annotation.Nonnull;
@@ -41,24 +41,55 @@ import com.helger.as2lib.AbstractDynamicComponent;
 import com.phloc.commons.annotations.ReturnsMutableCopy;
 import com.phloc.commons.collections.ContainerHelper;
 
+/**
+ * Command registry that publishes its commands as an immutable
+ * {@link CommandMap}. Modifications replace the map as a whole, so readers
+ * never see a partially filled registry.
+ */
 public class BaseCommandRegistry extends AbstractDynamicComponent implements ICommandRegistry
 {
-  private final List <ICommand> m_aCommands = new ArrayList <ICommand> ();
+  private volatile CommandMap m_aCommandMap = CommandMap.EMPTY;
 
-  public void clearCommands ()
+  public synchronized void clearCommands ()
   {
-    m_aCommands.clear ();
+    m_aCommandMap = CommandMap.EMPTY;
   }
 
   @Nonnull
   @ReturnsMutableCopy
   public List <ICommand> getAllCommands ()
   {
-    return ContainerHelper.newList (m_aCommands);
+    return ContainerHelper.newList (m_aCommandMap.getAllCommands ());
+  }
+
+  @Nonnull
+  public CommandMap getCommandMap ()
+  {
+    return m_aCommandMap;
+  }
+
+  /**
+   * Add the passed commands to the existing ones. The lookup map is rebuilt
+   * once per call, so add all commands of a batch at once.
+   *
+   * @param aCommands
+   *        The commands to add. May not be <code>null</code>.
+   */
+  public synchronized void addCommands (@Nonnull final Collection <? extends ICommand> aCommands)
+  {
+    final List <ICommand> aAllCommands = getAllCommands ();
+    aAllCommands.addAll (aCommands);
+    m_aCommandMap = new CommandMap (aAllCommands);
   }
 
-  public void addCommand (final ICommand aCmd)
+  /**
+   * Replace all commands at once.
+   *
+   * @param aCommands
+   *        The new commands. May not be <code>null</code>.
+   */
+  public synchronized void setCommands (@Nonnull final Collection <? extends ICommand> aCommands)
   {
-    m_aCommands.add (aCmd);
+    m_aCommandMap = new CommandMap (aCommands);
   }
 }
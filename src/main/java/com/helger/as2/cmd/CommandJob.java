@@ -0,0 +1,230 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd;
+
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A command executed asynchronously by the {@link JobManager}.
+ */
+@ThreadSafe
+public class CommandJob
+{
+  public static enum EState
+  {
+    QUEUED,
+    RUNNING,
+    /** Cancel was requested, but the command did not return yet */
+    CANCELLING,
+    DONE,
+    FAILED,
+    CANCELLED;
+
+    public boolean isFinished ()
+    {
+      return this == DONE || this == FAILED || this == CANCELLED;
+    }
+  }
+
+  private final long m_nID;
+  private final String m_sDescription;
+  private final long m_nSubmitTime;
+  private volatile long m_nStartTime;
+  private volatile long m_nEndTime;
+  private volatile EState m_eState = EState.QUEUED;
+  private volatile int m_nProgress = -1;
+  private volatile String m_sProgressMessage;
+  private volatile CommandResult m_aResult;
+  private volatile Future <?> m_aFuture;
+
+  CommandJob (final long nID, @Nonnull final String sDescription)
+  {
+    m_nID = nID;
+    m_sDescription = sDescription;
+    m_nSubmitTime = System.currentTimeMillis ();
+  }
+
+  public long getID ()
+  {
+    return m_nID;
+  }
+
+  /**
+   * @return The command line of this job
+   */
+  @Nonnull
+  public String getDescription ()
+  {
+    return m_sDescription;
+  }
+
+  public long getSubmitTime ()
+  {
+    return m_nSubmitTime;
+  }
+
+  /**
+   * @return The start time or 0 if the job has not started yet
+   */
+  public long getStartTime ()
+  {
+    return m_nStartTime;
+  }
+
+  /**
+   * @return The end time or 0 if the job is not finished yet
+   */
+  public long getEndTime ()
+  {
+    return m_nEndTime;
+  }
+
+  @Nonnull
+  public EState getState ()
+  {
+    return m_eState;
+  }
+
+  /**
+   * @return The progress in percent or -1 if the command does not report its
+   *         progress
+   */
+  public int getProgress ()
+  {
+    return m_nProgress;
+  }
+
+  @Nullable
+  public String getProgressMessage ()
+  {
+    return m_sProgressMessage;
+  }
+
+  /**
+   * @return The result of the command. <code>null</code> until the job is
+   *         finished.
+   */
+  @Nullable
+  public CommandResult getResult ()
+  {
+    return m_aResult;
+  }
+
+  void setFuture (@Nonnull final Future <?> aFuture)
+  {
+    m_aFuture = aFuture;
+  }
+
+  /**
+   * Report the progress of this job.
+   * 
+   * @param nPercent
+   *        Progress in percent
+   * @param sMessage
+   *        Optional progress message
+   */
+  public void setProgress (final int nPercent, @Nullable final String sMessage)
+  {
+    m_nProgress = Math.max (0, Math.min (100, nPercent));
+    m_sProgressMessage = sMessage;
+  }
+
+  synchronized boolean onStart ()
+  {
+    if (m_eState != EState.QUEUED)
+      return false;
+    m_eState = EState.RUNNING;
+    m_nStartTime = System.currentTimeMillis ();
+    return true;
+  }
+
+  synchronized void onEnd (@Nonnull final EState eState, @Nullable final CommandResult aResult)
+  {
+    if (m_eState.isFinished ())
+      return;
+    if (m_eState == EState.CANCELLING)
+    {
+      // The command returned after it was cancelled
+      m_eState = EState.CANCELLED;
+      m_aResult = new CommandResult (CommandResult.TYPE_ERROR, "Job was cancelled");
+    }
+    else
+    {
+      m_eState = eState;
+      m_aResult = aResult;
+    }
+    m_nEndTime = System.currentTimeMillis ();
+    if (m_eState == EState.DONE)
+      m_nProgress = 100;
+  }
+
+  /**
+   * Cancel this job. A queued job is cancelled immediately. A running job is
+   * interrupted and stays in state {@link EState#CANCELLING} until the command
+   * returns; the command may or may not react on the interruption.
+   * 
+   * @return <code>true</code> if the job was cancelled, <code>false</code> if
+   *         it was already finished
+   */
+  public boolean cancel ()
+  {
+    synchronized (this)
+    {
+      if (m_eState.isFinished ())
+        return false;
+      if (m_eState == EState.QUEUED)
+        onEnd (EState.CANCELLED, new CommandResult (CommandResult.TYPE_ERROR, "Job was cancelled"));
+      else
+        m_eState = EState.CANCELLING;
+    }
+    final Future <?> aFuture = m_aFuture;
+    if (aFuture != null)
+      aFuture.cancel (true);
+    return true;
+  }
+
+  @Override
+  public String toString ()
+  {
+    final StringBuilder aSB = new StringBuilder ();
+    aSB.append (m_nID).append (' ').append (m_eState);
+    if (m_nProgress >= 0 && !m_eState.isFinished ())
+      aSB.append (' ').append (m_nProgress).append ('%');
+    aSB.append (' ').append (m_sDescription);
+    return aSB.toString ();
+  }
+}
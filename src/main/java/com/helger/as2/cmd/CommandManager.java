@@ -34,13 +34,18 @@ package com.helger.as2.cmd;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 
 import com.helger.as2.cmd.processor.AbstractCommandProcessor;
 
 /**
- * command calls the registered command processors
+ * command calls the registered command processors<br>
+ * As soon as one of the processors is terminated (e.g. by the
+ * <code>exit</code> command) a server shutdown is requested and all threads
+ * waiting in {@link #awaitShutdown()} are released.
  * 
  * @author joseph mcverry
  */
@@ -49,6 +54,8 @@ public class CommandManager
   private static CommandManager s_aDefaultManager;
 
   private List <AbstractCommandProcessor> m_aProcessors;
+  private final CountDownLatch m_aShutdownLatch = new CountDownLatch (1);
+  private volatile boolean m_bDrainOnShutdown = false;
 
   @Nonnull
   public static CommandManager getCmdManager ()
@@ -61,6 +68,9 @@ public class CommandManager
   public void setProcessors (final List <AbstractCommandProcessor> aProcessors)
   {
     m_aProcessors = aProcessors;
+    if (aProcessors != null)
+      for (final AbstractCommandProcessor aProcessor : aProcessors)
+        aProcessor.setShutdownLatch (m_aShutdownLatch);
   }
 
   public List <AbstractCommandProcessor> getProcessors ()
@@ -72,6 +82,64 @@ public class CommandManager
 
   public void addProcessor (final AbstractCommandProcessor processor)
   {
+    processor.setShutdownLatch (m_aShutdownLatch);
     getProcessors ().add (processor);
   }
+
+  /**
+   * Request the server shutdown. Called when a processor is terminated.
+   */
+  public void requestShutdown ()
+  {
+    m_aShutdownLatch.countDown ();
+  }
+
+  /**
+   * Define whether in-flight messages should be waited for on shutdown (e.g.
+   * <code>exit --drain</code>).
+   *
+   * @param bDrain
+   *        <code>true</code> to drain
+   */
+  public void setDrainOnShutdown (final boolean bDrain)
+  {
+    m_bDrainOnShutdown = bDrain;
+  }
+
+  public boolean isDrainOnShutdown ()
+  {
+    return m_bDrainOnShutdown;
+  }
+
+  public boolean isShutdownRequested ()
+  {
+    return m_aShutdownLatch.getCount () == 0;
+  }
+
+  /**
+   * Block until a shutdown was requested.
+   * 
+   * @throws InterruptedException
+   *         If the current thread is interrupted while waiting
+   */
+  public void awaitShutdown () throws InterruptedException
+  {
+    m_aShutdownLatch.await ();
+  }
+
+  /**
+   * Block until a shutdown was requested or the timeout elapsed.
+   * 
+   * @param nTimeout
+   *        Maximum time to wait
+   * @param eUnit
+   *        Unit of the timeout
+   * @return <code>true</code> if a shutdown was requested
+   * @throws InterruptedException
+   *         If the current thread is interrupted while waiting
+   */
+  public boolean awaitShutdown (final long nTimeout, @Nonnull final TimeUnit eUnit) throws InterruptedException
+  {
+    return m_aShutdownLatch.await (nTimeout, eUnit);
+  }
 }
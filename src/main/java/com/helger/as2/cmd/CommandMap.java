@@ -0,0 +1,101 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.phloc.commons.annotations.ReturnsImmutableObject;
+
+/**
+ * Immutable, case-insensitive name to command map that keeps the original
+ * command order for listings.
+ */
+@Immutable
+public final class CommandMap
+{
+  public static final CommandMap EMPTY = new CommandMap (Collections.<ICommand> emptyList ());
+
+  private final List <ICommand> m_aCommands;
+  private final Map <String, ICommand> m_aMap;
+
+  public CommandMap (@Nonnull final Collection <? extends ICommand> aCommands)
+  {
+    m_aCommands = Collections.unmodifiableList (new ArrayList <ICommand> (aCommands));
+    final Map <String, ICommand> aMap = new HashMap <String, ICommand> (aCommands.size () * 2);
+    for (final ICommand aCmd : aCommands)
+    {
+      final String sKey = aCmd.getName ().toLowerCase (Locale.US);
+      // First definition wins
+      if (!aMap.containsKey (sKey))
+        aMap.put (sKey, aCmd);
+    }
+    m_aMap = aMap;
+  }
+
+  @Nullable
+  public ICommand getCommand (@Nullable final String sName)
+  {
+    if (sName == null)
+      return null;
+    // Names are usually passed in lower case already
+    final ICommand ret = m_aMap.get (sName);
+    return ret != null ? ret : m_aMap.get (sName.toLowerCase (Locale.US));
+  }
+
+  public boolean containsCommand (@Nullable final String sName)
+  {
+    return getCommand (sName) != null;
+  }
+
+  @Nonnull
+  @ReturnsImmutableObject
+  public List <ICommand> getAllCommands ()
+  {
+    return m_aCommands;
+  }
+
+  public int size ()
+  {
+    return m_aCommands.size ();
+  }
+}
@@ -32,10 +32,19 @@
  */
 package com.helger.as2.cmd;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nonnull;
+
+/**
+ * The result of a command. The results are either collected in a list or, in
+ * streaming mode, produced lazily by an {@link Iterable} while they are
+ * written by an {@link ICommandResultSerializer}.
+ */
 public class CommandResult
 {
   public static final String TYPE_OK = "OK";
@@ -47,6 +56,7 @@ public class CommandResult
 
   private String m_sType;
   private List <Serializable> m_aResults;
+  private Iterable <? extends Serializable> m_aResultSource;
 
   public CommandResult (final String type, final String msg)
   {
@@ -61,6 +71,23 @@ public class CommandResult
     m_sType = type;
   }
 
+  /**
+   * Create a streaming result. The passed source is only iterated when the
+   * result is written, so it must stay valid until then and should not rely
+   * on locks held by the command.
+   * 
+   * @param type
+   *        The result type
+   * @param aResultSource
+   *        The lazy source of the results
+   */
+  public CommandResult (final String type, @Nonnull final Iterable <? extends Serializable> aResultSource)
+  {
+    super ();
+    m_sType = type;
+    m_aResultSource = aResultSource;
+  }
+
   public CommandResult (final Exception e)
   {
     super ();
@@ -68,17 +95,48 @@ public class CommandResult
     getResults ().add (e);
   }
 
+  /**
+   * @return The mutable list of results. A streaming result is materialized by
+   *         this call.
+   */
   public List <Serializable> getResults ()
   {
     if (m_aResults == null)
+    {
       m_aResults = new ArrayList <Serializable> ();
+      if (m_aResultSource != null)
+      {
+        for (final Serializable x : m_aResultSource)
+          m_aResults.add (x);
+        m_aResultSource = null;
+      }
+    }
     return m_aResults;
   }
 
+  /**
+   * @return <code>true</code> if the results are produced lazily
+   */
+  public boolean isStreaming ()
+  {
+    return m_aResultSource != null;
+  }
+
+  /**
+   * @return The results without materializing a streaming result. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public Iterable <? extends Serializable> getResultIterable ()
+  {
+    final Iterable <? extends Serializable> aSource = m_aResultSource;
+    return aSource != null ? aSource : getResults ();
+  }
+
   public String getResult ()
   {
     final StringBuilder results = new StringBuilder ();
-    for (final Serializable x : getResults ())
+    for (final Serializable x : getResultIterable ())
       results.append (x.toString ()).append ("\r\n");
     return results.toString ();
   }
@@ -86,6 +144,7 @@ public class CommandResult
   public void setResults (final List <Serializable> list)
   {
     m_aResults = list;
+    m_aResultSource = null;
   }
 
   public String getType ()
@@ -98,21 +157,33 @@ public class CommandResult
   {
     final StringBuilder buf = new StringBuilder ();
     buf.append (getType ()).append (":\r\n");
-    for (final Serializable x : getResults ())
+    for (final Serializable x : getResultIterable ())
       buf.append (x.toString ()).append ("\r\n");
     return buf.toString ();
   }
 
+  /**
+   * @return All results as escaped <code>&lt;result&gt;</code> elements. Use
+   *         {@link XMLCommandResultSerializer} to write large results.
+   */
   public String toXML ()
   {
-    final StringBuilder buf = new StringBuilder ();
-    for (final Serializable x : getResults ())
+    final StringWriter aSW = new StringWriter ();
+    try
     {
-      buf.append ("<result>");
-      buf.append (x.toString ());
-      buf.append ("</result>");
+      for (final Serializable x : getResultIterable ())
+      {
+        aSW.write ("<result>");
+        XMLCommandResultSerializer.writeEscaped (x.toString (), aSW);
+        aSW.write ("</result>");
+      }
     }
-    return buf.toString ();
+    catch (final IOException ex)
+    {
+      // Cannot happen with a string writer
+      throw new IllegalStateException (ex);
+    }
+    return aSW.toString ();
   }
 
   public void setType (final String string)
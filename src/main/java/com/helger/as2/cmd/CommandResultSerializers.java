@@ -0,0 +1,82 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Registry of the available {@link ICommandResultSerializer} implementations
+ * by name. Contains <code>text</code>, <code>xml</code> and
+ * <code>jsonl</code> by default; additional formats may be registered.
+ */
+@ThreadSafe
+public final class CommandResultSerializers
+{
+  public static final ICommandResultSerializer TEXT = new TextCommandResultSerializer ();
+  public static final ICommandResultSerializer XML = new XMLCommandResultSerializer ();
+  public static final ICommandResultSerializer JSON_LINES = new JSONLinesCommandResultSerializer ();
+
+  private static final Map <String, ICommandResultSerializer> s_aMap = new ConcurrentHashMap <String, ICommandResultSerializer> ();
+
+  static
+  {
+    registerSerializer (TEXT);
+    registerSerializer (XML);
+    registerSerializer (JSON_LINES);
+  }
+
+  private CommandResultSerializers ()
+  {}
+
+  public static void registerSerializer (@Nonnull final ICommandResultSerializer aSerializer)
+  {
+    s_aMap.put (aSerializer.getName ().toLowerCase (Locale.US), aSerializer);
+  }
+
+  /**
+   * @param sName
+   *        The name of the format (case insensitive)
+   * @return <code>null</code> if no such format is registered
+   */
+  @Nullable
+  public static ICommandResultSerializer getSerializer (@Nullable final String sName)
+  {
+    return sName == null ? null : s_aMap.get (sName.toLowerCase (Locale.US));
+  }
+}
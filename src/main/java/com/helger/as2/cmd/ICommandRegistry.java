@@ -44,4 +44,12 @@ public interface ICommandRegistry extends IDynamicComponent
   @Nonnull
   @ReturnsMutableCopy
   List <ICommand> getAllCommands ();
+
+  /**
+   * @return The current immutable snapshot of all commands. Never
+   *         <code>null</code>. A registry that is reloaded publishes a new
+   *         snapshot, so callers should not keep the returned object.
+   */
+  @Nonnull
+  CommandMap getCommandMap ();
 }
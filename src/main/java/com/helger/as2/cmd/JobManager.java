@@ -0,0 +1,297 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.phloc.commons.annotations.ReturnsMutableCopy;
+
+/**
+ * Executes commands asynchronously on a bounded pool so that long running
+ * commands don't block the command processors. Each submitted command is
+ * represented by a {@link CommandJob} identified by a numeric ID. Finished
+ * jobs are kept until more than {@link #MAX_FINISHED_JOBS} finished jobs
+ * exist.<br>
+ * Commands executed as a job can report their progress via
+ * {@link #reportProgress(int, String)}.
+ */
+@ThreadSafe
+public class JobManager
+{
+  public static final int DEFAULT_WORKERS = 2;
+  public static final int DEFAULT_QUEUE_SIZE = 50;
+  public static final int MAX_FINISHED_JOBS = 100;
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (JobManager.class);
+  private static final ThreadLocal <CommandJob> s_aCurrentJob = new ThreadLocal <CommandJob> ();
+  private static JobManager s_aDefaultManager;
+
+  private final ThreadPoolExecutor m_aExecutor;
+  private final AtomicLong m_aNextID = new AtomicLong (1);
+  // Ordered by ID
+  private final Map <Long, CommandJob> m_aJobs = new LinkedHashMap <Long, CommandJob> ();
+
+  public JobManager (final int nWorkers, final int nQueueSize)
+  {
+    m_aExecutor = new ThreadPoolExecutor (nWorkers,
+                                          nWorkers,
+                                          60,
+                                          TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue <Runnable> (nQueueSize),
+                                          new ThreadFactory ()
+                                          {
+                                            private final AtomicInteger m_aCount = new AtomicInteger (0);
+
+                                            public Thread newThread (final Runnable aRunnable)
+                                            {
+                                              final Thread aThread = new Thread (aRunnable,
+                                                                                 "CommandJob-" +
+                                                                                     m_aCount.incrementAndGet ());
+                                              aThread.setDaemon (true);
+                                              return aThread;
+                                            }
+                                          });
+  }
+
+  @Nonnull
+  public static synchronized JobManager getJobManager ()
+  {
+    if (s_aDefaultManager == null)
+      s_aDefaultManager = new JobManager (DEFAULT_WORKERS, DEFAULT_QUEUE_SIZE);
+    return s_aDefaultManager;
+  }
+
+  /**
+   * @return The job executed by the current thread or <code>null</code> if the
+   *         current thread is not executing a job
+   */
+  @Nullable
+  public static CommandJob getCurrentJob ()
+  {
+    return s_aCurrentJob.get ();
+  }
+
+  /**
+   * Report the progress of the job executed by the current thread. Does
+   * nothing if the command is not executed as a job.
+   * 
+   * @param nPercent
+   *        Progress in percent
+   * @param sMessage
+   *        Optional progress message
+   */
+  public static void reportProgress (final int nPercent, @Nullable final String sMessage)
+  {
+    final CommandJob aJob = s_aCurrentJob.get ();
+    if (aJob != null)
+      aJob.setProgress (nPercent, sMessage);
+  }
+
+  private void _evictFinishedJobs ()
+  {
+    int nFinished = 0;
+    for (final CommandJob aJob : m_aJobs.values ())
+      if (aJob.getState ().isFinished ())
+        nFinished++;
+    final Iterator <CommandJob> it = m_aJobs.values ().iterator ();
+    while (nFinished > MAX_FINISHED_JOBS && it.hasNext ())
+      if (it.next ().getState ().isFinished ())
+      {
+        it.remove ();
+        nFinished--;
+      }
+  }
+
+  @Nullable
+  private Future <?> _tryExecute (@Nonnull final Runnable aTask)
+  {
+    try
+    {
+      return m_aExecutor.submit (aTask);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Submit a command for asynchronous execution.
+   * 
+   * @param aCommand
+   *        The command to execute
+   * @param aParams
+   *        The command parameters
+   * @param sDescription
+   *        The command line for display purposes
+   * @return The created job
+   * @throws CommandException
+   *         If too many jobs are pending
+   */
+  @Nonnull
+  public CommandJob submit (@Nonnull final ICommand aCommand,
+                            @Nonnull final Object [] aParams,
+                            @Nonnull final String sDescription) throws CommandException
+  {
+    final CommandJob aJob = new CommandJob (m_aNextID.getAndIncrement (), sDescription);
+    synchronized (m_aJobs)
+    {
+      _evictFinishedJobs ();
+      m_aJobs.put (Long.valueOf (aJob.getID ()), aJob);
+    }
+
+    final Runnable aTask = new Runnable ()
+    {
+      public void run ()
+      {
+        if (!aJob.onStart ())
+          return;
+        s_aCurrentJob.set (aJob);
+        CommandJob.EState eState = CommandJob.EState.FAILED;
+        CommandResult aResult = null;
+        try
+        {
+          aResult = aCommand.execute (aParams);
+          // Make sure streaming results are still available later on
+          aResult.getResults ();
+          if (CommandResult.TYPE_OK.equals (aResult.getType ()))
+            eState = CommandJob.EState.DONE;
+        }
+        catch (final RuntimeException ex)
+        {
+          s_aLogger.error ("Job " + aJob.getID () + " failed", ex);
+          aResult = new CommandResult (ex);
+        }
+        finally
+        {
+          // Errors are not caught, but the job must be finished anyway
+          if (aResult == null)
+            aResult = new CommandResult (CommandResult.TYPE_ERROR, "Job terminated abnormally");
+          aJob.onEnd (eState, aResult);
+          s_aCurrentJob.remove ();
+          // Clear the interrupted flag of a cancelled job
+          Thread.interrupted ();
+        }
+      }
+    };
+
+    Future <?> aFuture = _tryExecute (aTask);
+    if (aFuture == null && !m_aExecutor.isShutdown ())
+    {
+      // Cancelled jobs keep their queue slot until they are purged
+      m_aExecutor.purge ();
+      aFuture = _tryExecute (aTask);
+    }
+    if (aFuture == null)
+    {
+      synchronized (m_aJobs)
+      {
+        m_aJobs.remove (Long.valueOf (aJob.getID ()));
+      }
+      throw new CommandException (m_aExecutor.isShutdown () ? "No more jobs are accepted" : "Too many pending jobs");
+    }
+    aJob.setFuture (aFuture);
+    return aJob;
+  }
+
+  @Nullable
+  public CommandJob getJob (final long nID)
+  {
+    synchronized (m_aJobs)
+    {
+      return m_aJobs.get (Long.valueOf (nID));
+    }
+  }
+
+  /**
+   * @return All known jobs ordered by ID
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public List <CommandJob> getAllJobs ()
+  {
+    synchronized (m_aJobs)
+    {
+      return new ArrayList <CommandJob> (m_aJobs.values ());
+    }
+  }
+
+  /**
+   * @return The number of queued and running jobs
+   */
+  public int getUnfinishedJobCount ()
+  {
+    int ret = 0;
+    for (final CommandJob aJob : getAllJobs ())
+      if (!aJob.getState ().isFinished ())
+        ret++;
+    return ret;
+  }
+
+  /**
+   * Don't accept any new jobs but let the pending jobs finish.
+   */
+  public void stopAccepting ()
+  {
+    m_aExecutor.shutdown ();
+  }
+
+  /**
+   * Cancel all pending jobs and stop the workers.
+   */
+  public void shutdown ()
+  {
+    for (final CommandJob aJob : getAllJobs ())
+      aJob.cancel ();
+    m_aExecutor.shutdownNow ();
+  }
+}
@@ -0,0 +1,256 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The options shared by all <code>list</code> commands:
+ * <code>[--prefix &lt;prefix&gt;] [--match &lt;regex&gt;] [--offset &lt;n&gt;] [--limit &lt;m&gt;] [--sort [asc|desc]]</code>
+ * .<br>
+ * The options are applied to a list of names sorted in ascending order. The
+ * prefix range is determined via binary search, so that a page without
+ * <code>--match</code> costs O(log n + page size). A <code>--sort</code>
+ * without order sorts ascending.
+ */
+@Immutable
+public final class ListOptions
+{
+  public static final String USAGE = "[--prefix <prefix>] [--match <regex>] [--offset <n>] [--limit <m>] [--sort [asc|desc]]";
+
+  private final String m_sPrefix;
+  private final Pattern m_aMatch;
+  private final int m_nOffset;
+  private final int m_nLimit;
+  private final boolean m_bDescending;
+
+  private ListOptions (@Nullable final String sPrefix,
+                       @Nullable final Pattern aMatch,
+                       final int nOffset,
+                       final int nLimit,
+                       final boolean bDescending)
+  {
+    m_sPrefix = sPrefix;
+    m_aMatch = aMatch;
+    m_nOffset = nOffset;
+    m_nLimit = nLimit;
+    m_bDescending = bDescending;
+  }
+
+  @Nullable
+  public String getPrefix ()
+  {
+    return m_sPrefix;
+  }
+
+  @Nullable
+  public Pattern getMatch ()
+  {
+    return m_aMatch;
+  }
+
+  public int getOffset ()
+  {
+    return m_nOffset;
+  }
+
+  public int getLimit ()
+  {
+    return m_nLimit;
+  }
+
+  public boolean isDescending ()
+  {
+    return m_bDescending;
+  }
+
+  private static int _parseInt (@Nonnull final String sParam, @Nonnull final String sValue) throws CommandException
+  {
+    try
+    {
+      return Math.max (0, Integer.parseInt (sValue));
+    }
+    catch (final NumberFormatException ex)
+    {
+      throw new CommandException ("Invalid number for " + sParam + ": '" + sValue + "'");
+    }
+  }
+
+  /**
+   * Parse the list options from the command parameters.
+   * 
+   * @param aParams
+   *        The command parameters
+   * @return The parsed options
+   * @throws CommandException
+   *         In case of an unknown option or an invalid value
+   */
+  @Nonnull
+  public static ListOptions parse (@Nonnull final Object [] aParams) throws CommandException
+  {
+    String sPrefix = null;
+    Pattern aMatch = null;
+    int nOffset = 0;
+    int nLimit = Integer.MAX_VALUE;
+    boolean bDescending = false;
+    for (int i = 0; i < aParams.length; i++)
+    {
+      final String sParam = aParams[i].toString ();
+      if (sParam.equals ("--sort"))
+      {
+        // The order is optional
+        final String sOrder = i + 1 < aParams.length ? aParams[i + 1].toString () : null;
+        if ("desc".equalsIgnoreCase (sOrder))
+        {
+          bDescending = true;
+          i++;
+        }
+        else
+        {
+          bDescending = false;
+          if ("asc".equalsIgnoreCase (sOrder))
+            i++;
+        }
+        continue;
+      }
+      if (i + 1 >= aParams.length)
+        throw new CommandException ("Missing value for option '" + sParam + "'");
+      final String sValue = aParams[++i].toString ();
+      if (sParam.equals ("--prefix"))
+        sPrefix = sValue.length () == 0 ? null : sValue;
+      else
+        if (sParam.equals ("--match"))
+        {
+          try
+          {
+            aMatch = Pattern.compile (sValue);
+          }
+          catch (final PatternSyntaxException ex)
+          {
+            throw new CommandException ("Invalid regular expression: " + ex.getMessage ());
+          }
+        }
+        else
+          if (sParam.equals ("--offset"))
+            nOffset = _parseInt (sParam, sValue);
+          else
+            if (sParam.equals ("--limit"))
+              nLimit = _parseInt (sParam, sValue);
+            else
+              throw new CommandException ("Unknown option '" + sParam + "'");
+    }
+    return new ListOptions (sPrefix, aMatch, nOffset, nLimit, bDescending);
+  }
+
+  private static int _getInsertionPoint (@Nonnull final List <String> aSortedList, @Nonnull final String sKey)
+  {
+    final int nIndex = Collections.binarySearch (aSortedList, sKey);
+    return nIndex >= 0 ? nIndex : -(nIndex + 1);
+  }
+
+  /**
+   * Select the requested page.
+   * 
+   * @param aSortedNames
+   *        All names sorted in ascending order. The list must not be modified
+   *        while the result is in use, as the result may be a view on it.
+   * @return The selected names. Never <code>null</code>.
+   */
+  @Nonnull
+  public List <String> apply (@Nonnull final List <String> aSortedNames)
+  {
+    // Determine the range matching the prefix via binary search
+    int nStart = 0;
+    int nEnd = aSortedNames.size ();
+    if (m_sPrefix != null)
+    {
+      nStart = _getInsertionPoint (aSortedNames, m_sPrefix);
+      // Everything starting with the prefix is smaller than prefix + max char
+      nEnd = _getInsertionPoint (aSortedNames, m_sPrefix + Character.MAX_VALUE);
+    }
+
+    final List <String> aRange = m_bDescending ? _reverse (aSortedNames.subList (nStart, nEnd))
+                                               : aSortedNames.subList (nStart, nEnd);
+    if (m_aMatch == null)
+    {
+      final int nFirst = Math.min (m_nOffset, aRange.size ());
+      final int nLast = (int) Math.min ((long) nFirst + m_nLimit, aRange.size ());
+      return aRange.subList (nFirst, nLast);
+    }
+
+    // Filtering requires a scan, but stops as soon as the page is complete
+    final List <String> ret = new ArrayList <String> ();
+    int nSkip = m_nOffset;
+    for (final String sName : aRange)
+    {
+      if (ret.size () >= m_nLimit)
+        break;
+      if (m_aMatch.matcher (sName).find ())
+      {
+        if (nSkip > 0)
+          nSkip--;
+        else
+          ret.add (sName);
+      }
+    }
+    return ret;
+  }
+
+  @Nonnull
+  private static List <String> _reverse (@Nonnull final List <String> aList)
+  {
+    return new AbstractList <String> ()
+    {
+      @Override
+      public String get (final int nIndex)
+      {
+        return aList.get (aList.size () - 1 - nIndex);
+      }
+
+      @Override
+      public int size ()
+      {
+        return aList.size ();
+      }
+    };
+  }
+}
@@ -32,9 +32,8 @@
  */
 package com.helger.as2.cmd;
 
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Locale;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -42,11 +41,13 @@ import javax.annotation.Nullable;
 import com.helger.as2lib.ISession;
 import com.helger.as2lib.exception.OpenAS2Exception;
 import com.helger.as2lib.util.IStringMap;
+import com.phloc.commons.annotations.ReturnsImmutableObject;
 import com.phloc.commons.collections.ArrayHelper;
 
 public class MultiCommand extends AbstractCommand
 {
-  private List <ICommand> m_aCmds;
+  // Immutable lookup map - replaced as a whole
+  private volatile CommandMap m_aCmdMap = CommandMap.EMPTY;
 
   @Override
   public void initDynamicComponent (@Nonnull final ISession session, @Nullable final IStringMap parameters) throws OpenAS2Exception
@@ -61,19 +62,25 @@ public class MultiCommand extends AbstractCommand
   @Nullable
   public ICommand getCommand (@Nonnull final String name)
   {
-    final String sLCName = name.toLowerCase (Locale.US);
-    for (final ICommand cmd : getCommands ())
-      if (cmd.getName ().equals (sLCName))
-        return cmd;
-    return null;
+    return m_aCmdMap.getCommand (name);
   }
 
   @Nonnull
+  @ReturnsImmutableObject
   public List <ICommand> getCommands ()
   {
-    if (m_aCmds == null)
-      m_aCmds = new ArrayList <ICommand> ();
-    return m_aCmds;
+    return m_aCmdMap.getAllCommands ();
+  }
+
+  /**
+   * Set all sub commands at once, e.g. after they were loaded completely.
+   *
+   * @param aCmds
+   *        The sub commands. May not be <code>null</code>.
+   */
+  public void setCommands (@Nonnull final Collection <? extends ICommand> aCmds)
+  {
+    m_aCmdMap = new CommandMap (aCmds);
   }
 
   public String getDescription (final String name)
@@ -32,25 +32,44 @@
  */
 package com.helger.as2.cmd;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2.util.FileMonitor;
+import com.helger.as2.util.IFileMonitorListener;
 import com.helger.as2.util.ServerXMLUtil;
 import com.helger.as2lib.ISession;
 import com.helger.as2lib.exception.OpenAS2Exception;
 import com.helger.as2lib.exception.WrappedException;
 import com.helger.as2lib.util.IStringMap;
 import com.helger.as2lib.util.XMLUtil;
+import com.phloc.commons.io.streams.StreamUtils;
 import com.phloc.commons.microdom.IMicroDocument;
 import com.phloc.commons.microdom.IMicroElement;
 import com.phloc.commons.microdom.serialize.MicroReader;
 
-public class XMLCommandRegistry extends BaseCommandRegistry
+/**
+ * Command registry read from an XML file. The complete command tree is built
+ * first and published afterwards, so concurrent lookups always see either the
+ * old or the new commands. If the optional <code>interval</code> parameter
+ * (seconds) is present the file is watched and reloaded on modification.
+ */
+public class XMLCommandRegistry extends BaseCommandRegistry implements IFileMonitorListener
 {
   public static final String PARAM_FILENAME = "filename";
+  public static final String PARAM_INTERVAL = "interval";
+  private static final Logger s_aLogger = LoggerFactory.getLogger (XMLCommandRegistry.class);
+
+  private FileMonitor m_aFileMonitor;
 
   @Override
   public void initDynamicComponent (@Nonnull final ISession session, @Nullable final IStringMap parameters) throws OpenAS2Exception
@@ -58,6 +77,36 @@ public class XMLCommandRegistry extends BaseCommandRegistry
     super.initDynamicComponent (session, parameters);
 
     refresh ();
+
+    if (containsAttribute (PARAM_INTERVAL))
+    {
+      m_aFileMonitor = new FileMonitor (new File (getParameterRequired (PARAM_FILENAME)),
+                                        getParameterIntRequired (PARAM_INTERVAL));
+      m_aFileMonitor.addListener (this);
+    }
+  }
+
+  @Nullable
+  public FileMonitor getFileMonitor ()
+  {
+    return m_aFileMonitor;
+  }
+
+  public void handle (final FileMonitor monitor, final File file, final int eventID)
+  {
+    if (eventID == IFileMonitorListener.EVENT_MODIFIED)
+    {
+      try
+      {
+        refresh ();
+        s_aLogger.info ("Commands reloaded from " + file.getAbsolutePath ());
+      }
+      catch (final OpenAS2Exception ex)
+      {
+        // The previous commands stay active
+        s_aLogger.error ("Failed to reload commands from " + file.getAbsolutePath (), ex);
+      }
+    }
   }
 
   public void load (final InputStream in) throws OpenAS2Exception
@@ -65,76 +114,88 @@ public class XMLCommandRegistry extends BaseCommandRegistry
     final IMicroDocument document = MicroReader.readMicroXML (in);
     final IMicroElement root = document.getDocumentElement ();
 
-    clearCommands ();
-
+    final List <ICommand> aCommands = new ArrayList <ICommand> ();
     for (final IMicroElement rootNode : root.getAllChildElements ())
     {
       final String nodeName = rootNode.getTagName ();
       if (nodeName.equals ("command"))
       {
-        loadCommand (rootNode, null);
+        aCommands.add (loadCommand (rootNode));
       }
       else
         if (nodeName.equals ("multicommand"))
         {
-          loadMultiCommand (rootNode, null);
+          aCommands.add (loadMultiCommand (rootNode));
         }
     }
+
+    // Publish all commands at once
+    setCommands (aCommands);
   }
 
   public void refresh () throws OpenAS2Exception
   {
+    InputStream aIS = null;
     try
     {
-      load (new FileInputStream (getParameterRequired (PARAM_FILENAME)));
+      // Reloads happen repeatedly - don't leak the file handle
+      aIS = new FileInputStream (getParameterRequired (PARAM_FILENAME));
+      load (aIS);
+    }
+    catch (final OpenAS2Exception e)
+    {
+      throw e;
     }
     catch (final Exception e)
     {
       throw new WrappedException (e);
     }
+    finally
+    {
+      StreamUtils.close (aIS);
+    }
   }
 
-  protected void loadCommand (final IMicroElement node, final MultiCommand parent) throws OpenAS2Exception
+  /**
+   * Create a single command.
+   *
+   * @return The created command
+   */
+  @Nonnull
+  protected ICommand loadCommand (final IMicroElement node) throws OpenAS2Exception
   {
-    final ICommand cmd = (ICommand) ServerXMLUtil.createComponent (node, getSession ());
-
-    if (parent != null)
-    {
-      parent.getCommands ().add (cmd);
-    }
-    else
-    {
-      addCommand (cmd);
-    }
+    return (ICommand) ServerXMLUtil.createComponent (node, getSession ());
   }
 
-  protected void loadMultiCommand (final IMicroElement node, final MultiCommand parent) throws OpenAS2Exception
+  /**
+   * Create a multi command including all sub commands.
+   *
+   * @return The created multi command
+   */
+  @Nonnull
+  protected MultiCommand loadMultiCommand (final IMicroElement node) throws OpenAS2Exception
   {
     final MultiCommand cmd = new MultiCommand ();
     cmd.initDynamicComponent (getSession (), XMLUtil.getAttrsWithLowercaseName (node));
 
-    if (parent != null)
-    {
-      parent.getCommands ().add (cmd);
-    }
-    else
-    {
-      addCommand (cmd);
-    }
-
+    final List <ICommand> aSubCommands = new ArrayList <ICommand> ();
     for (final IMicroElement childNode : node.getAllChildElements ())
     {
       final String childName = childNode.getNodeName ();
 
       if (childName.equals ("command"))
       {
-        loadCommand (childNode, cmd);
+        aSubCommands.add (loadCommand (childNode));
       }
       else
         if (childName.equals ("multicommand"))
         {
-          loadMultiCommand (childNode, cmd);
+          aSubCommands.add (loadMultiCommand (childNode));
         }
     }
+
+    // Build the lookup map only once
+    cmd.setCommands (aSubCommands);
+    return cmd;
   }
 }
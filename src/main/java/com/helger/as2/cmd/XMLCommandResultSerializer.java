@@ -0,0 +1,134 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.as2.cmd.processor.StreamCommandProcessor;
+
+/**
+ * XML format as used by the socket command processors: each result of a
+ * successful command is written as escaped <code>&lt;result&gt;</code>
+ * element. Failed commands are written as plain text for compatibility with
+ * existing clients.
+ */
+@Immutable
+public class XMLCommandResultSerializer implements ICommandResultSerializer
+{
+  public static final String NAME = "xml";
+
+  @Nonnull
+  public String getName ()
+  {
+    return NAME;
+  }
+
+  /**
+   * Write the passed text with all XML special characters escaped. Control
+   * characters that are not allowed in XML 1.0 are replaced by U+FFFD.
+   * 
+   * @param sText
+   *        The text to write. May be <code>null</code>.
+   * @param aWriter
+   *        The writer to write to
+   * @throws IOException
+   *         In case writing fails
+   */
+  public static void writeEscaped (@Nullable final String sText, @Nonnull final Writer aWriter) throws IOException
+  {
+    if (sText == null)
+      return;
+    final int nLen = sText.length ();
+    int nChunkStart = 0;
+    for (int i = 0; i < nLen; ++i)
+    {
+      final char c = sText.charAt (i);
+      final String sReplacement;
+      switch (c)
+      {
+        case '<':
+          sReplacement = "&lt;";
+          break;
+        case '>':
+          sReplacement = "&gt;";
+          break;
+        case '&':
+          sReplacement = "&amp;";
+          break;
+        case '"':
+          sReplacement = "&quot;";
+          break;
+        case '\t':
+        case '\n':
+        case '\r':
+          continue;
+        default:
+          if (c >= 0x20)
+            continue;
+          sReplacement = "&#xFFFD;";
+      }
+      aWriter.write (sText, nChunkStart, i - nChunkStart);
+      aWriter.write (sReplacement);
+      nChunkStart = i + 1;
+    }
+    aWriter.write (sText, nChunkStart, nLen - nChunkStart);
+  }
+
+  public void write (@Nonnull final CommandResult aResult, @Nonnull final Writer aWriter) throws IOException
+  {
+    if (CommandResult.TYPE_OK.equals (aResult.getType ()))
+    {
+      for (final Serializable aItem : aResult.getResultIterable ())
+      {
+        aWriter.write ("<result>");
+        writeEscaped (String.valueOf (aItem), aWriter);
+        aWriter.write ("</result>");
+      }
+    }
+    else
+    {
+      aWriter.write ("\r\n" + StreamCommandProcessor.COMMAND_ERROR + "\r\n");
+      for (final Serializable aItem : aResult.getResultIterable ())
+      {
+        aWriter.write (String.valueOf (aItem));
+        aWriter.write ("\r\n");
+      }
+    }
+  }
+}
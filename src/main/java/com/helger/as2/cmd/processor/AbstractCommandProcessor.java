@@ -32,14 +32,24 @@
  */
 package com.helger.as2.cmd.processor;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import com.helger.as2.cmd.CommandManager;
+import com.helger.as2.cmd.CommandResult;
+import com.helger.as2.cmd.CommandResultSerializers;
 import com.helger.as2.cmd.ICommand;
 import com.helger.as2.cmd.ICommandRegistry;
+import com.helger.as2.cmd.ICommandResultSerializer;
+import com.helger.as2.util.CommandTokenizer;
 import com.helger.as2lib.IDynamicComponent;
 import com.helger.as2lib.ISession;
 import com.helger.as2lib.exception.OpenAS2Exception;
@@ -47,12 +57,18 @@ import com.helger.as2lib.util.IStringMap;
 import com.helger.as2lib.util.StringMap;
 import com.phloc.commons.annotations.ReturnsMutableCopy;
 import com.phloc.commons.annotations.UnsupportedOperation;
-import com.phloc.commons.collections.ContainerHelper;
 
 public abstract class AbstractCommandProcessor extends StringMap implements ICommandProcessor, IDynamicComponent, Runnable
 {
-  private final List <ICommand> m_aCommands = new ArrayList <ICommand> ();
-  private boolean m_bTerminated = false;
+  /** The name of the result format, see {@link CommandResultSerializers} */
+  public static final String PARAM_FORMAT = "format";
+
+  // The commands are always resolved via the live registries to see reloads
+  private final List <ICommandRegistry> m_aRegistries = new CopyOnWriteArrayList <ICommandRegistry> ();
+  private volatile boolean m_bTerminated = false;
+  private volatile CountDownLatch m_aShutdownLatch;
+  private final AtomicBoolean m_aStarted = new AtomicBoolean (false);
+  private ICommandResultSerializer m_aResultSerializer = CommandResultSerializers.XML;
 
   public AbstractCommandProcessor ()
   {}
@@ -80,15 +96,22 @@ public abstract class AbstractCommandProcessor extends StringMap implements ICom
   @ReturnsMutableCopy
   public List <ICommand> getAllCommands ()
   {
-    return ContainerHelper.newList (m_aCommands);
+    final List <ICommand> ret = new ArrayList <ICommand> ();
+    for (final ICommandRegistry aRegistry : m_aRegistries)
+      ret.addAll (aRegistry.getCommandMap ().getAllCommands ());
+    return ret;
   }
 
   @Nullable
   public ICommand getCommand (final String name)
   {
-    for (final ICommand currentCmd : m_aCommands)
-      if (currentCmd.getName ().equals (name))
-        return currentCmd;
+    // The first registry containing the command wins
+    for (final ICommandRegistry aRegistry : m_aRegistries)
+    {
+      final ICommand ret = aRegistry.getCommandMap ().getCommand (name);
+      if (ret != null)
+        return ret;
+    }
     return null;
   }
 
@@ -103,13 +126,204 @@ public abstract class AbstractCommandProcessor extends StringMap implements ICom
     throw new OpenAS2Exception ("super class method call, not initialized correctly");
   }
 
+  /**
+   * Execute an already authenticated command line and write the response as
+   * used by the socket based processors.
+   *
+   * @param str
+   *        The command line, e.g. <code>partnership list</code>. May be
+   *        <code>null</code>.
+   * @param aWriter
+   *        The writer to write the response to. Not flushed.
+   * @return The result type of the command. Never <code>null</code>.
+   * @throws IOException
+   *         In case writing fails
+   */
+  @Nonnull
+  protected String executeCommandText (@Nullable final CharSequence str, @Nonnull final Writer aWriter) throws IOException
+  {
+    if (str != null && str.length () > 0)
+    {
+      final String sBatchScript = getBatchBlockScript (str);
+      if (sBatchScript != null)
+      {
+        final ICommand cmd = getCommand (StreamCommandProcessor.BATCH_COMMAND);
+        if (cmd != null)
+        {
+          final CommandResult result = cmd.execute (new Object [] { StreamCommandProcessor.BATCH_SCRIPT_OPTION,
+                                                                    sBatchScript });
+          m_aResultSerializer.write (result, aWriter);
+          return result.getType ();
+        }
+      }
+
+      final CommandTokenizer cmdTkn = new CommandTokenizer (str);
+
+      if (cmdTkn.hasMoreTokens ())
+      {
+        final String commandName = cmdTkn.nextToken ().toLowerCase ();
+        final List <String> params = new ArrayList <String> ();
+
+        while (cmdTkn.hasMoreTokens ())
+        {
+          params.add (cmdTkn.nextToken ());
+        }
+
+        if (commandName.equals (StreamCommandProcessor.EXIT_COMMAND))
+        {
+          exit (params);
+        }
+        else
+        {
+
+          final ICommand cmd = getCommand (commandName);
+
+          if (cmd != null)
+          {
+            final CommandResult result = cmd.execute (params.toArray ());
+
+            // Results are written as they are produced
+            m_aResultSerializer.write (result, aWriter);
+            return result.getType ();
+          }
+
+          aWriter.write (StreamCommandProcessor.COMMAND_NOT_FOUND + "> " + commandName + "\r\n");
+          aWriter.write ("List of commands:" + "\r\n");
+          for (final ICommand aCurCmd : getAllCommands ())
+            aWriter.write (aCurCmd.getName () + "\r\n");
+          return CommandResult.TYPE_ERROR;
+        }
+      }
+    }
+    return CommandResult.TYPE_OK;
+  }
+
+  /**
+   * Check if the passed command text is a multi line batch block: the first
+   * line contains only the batch command and each following line is a line of
+   * the batch script. A final end line is optional.
+   *
+   * @param aText
+   *        The command text. May not be <code>null</code>.
+   * @return The batch script or <code>null</code> if the text is no batch
+   *         block.
+   */
+  @Nullable
+  protected static String getBatchBlockScript (@Nonnull final CharSequence aText)
+  {
+    final String sText = aText.toString ();
+    final int nEOL = sText.indexOf ('\n');
+    if (nEOL < 0 || !sText.substring (0, nEOL).trim ().equalsIgnoreCase (StreamCommandProcessor.BATCH_COMMAND))
+      return null;
+
+    String sScript = sText.substring (nEOL + 1);
+    // Strip an optional end line
+    final String sTrimmed = sScript.trim ();
+    final int nLastEOL = sTrimmed.lastIndexOf ('\n');
+    if (sTrimmed.substring (nLastEOL + 1).trim ().equalsIgnoreCase (StreamCommandProcessor.BATCH_END))
+      sScript = sTrimmed.substring (0, nLastEOL + 1);
+    return sScript;
+  }
+
+  @Nonnull
+  public ICommandResultSerializer getResultSerializer ()
+  {
+    return m_aResultSerializer;
+  }
+
+  public void setResultSerializer (@Nonnull final ICommandResultSerializer aResultSerializer)
+  {
+    if (aResultSerializer == null)
+      throw new NullPointerException ("resultSerializer");
+    m_aResultSerializer = aResultSerializer;
+  }
+
+  /**
+   * Set the result serializer from the <code>format</code> parameter, if
+   * present.
+   * 
+   * @param aParameters
+   *        The configuration parameters
+   * @throws OpenAS2Exception
+   *         If the format is unknown
+   */
+  protected void initResultSerializer (@Nonnull final StringMap aParameters) throws OpenAS2Exception
+  {
+    final String sFormat = aParameters.getAttributeAsString (PARAM_FORMAT);
+    if (sFormat != null)
+    {
+      final ICommandResultSerializer aSerializer = CommandResultSerializers.getSerializer (sFormat);
+      if (aSerializer == null)
+        throw new OpenAS2Exception ("Unknown result format '" + sFormat + "'");
+      setResultSerializer (aSerializer);
+    }
+  }
+
   public void addCommands (@Nonnull final ICommandRegistry reg)
   {
-    m_aCommands.addAll (reg.getAllCommands ());
+    if (!m_aRegistries.contains (reg))
+      m_aRegistries.add (reg);
   }
 
+  /**
+   * Set the latch to count down when this processor is terminated. Called by
+   * the command manager.
+   * 
+   * @param aShutdownLatch
+   *        The latch. May be <code>null</code>.
+   */
+  public void setShutdownLatch (@Nullable final CountDownLatch aShutdownLatch)
+  {
+    m_aShutdownLatch = aShutdownLatch;
+  }
+
+  /**
+   * Handle the exit command: terminate this processor and thereby request the
+   * shutdown of the server. With the drain option the server waits for
+   * in-flight messages before shutting down.
+   *
+   * @param aParams
+   *        The parameters of the exit command
+   */
+  protected void exit (@Nonnull final List <?> aParams)
+  {
+    if (aParams.contains (StreamCommandProcessor.EXIT_DRAIN_OPTION))
+      CommandManager.getCmdManager ().setDrainOnShutdown (true);
+    terminate ();
+  }
+
+  /**
+   * Must be called at the beginning of {@link #run()} by processors that
+   * override {@link #releaseResources()}.
+   *
+   * @return <code>false</code> if this processor was already started or was
+   *         terminated before it was started. {@link #run()} must return
+   *         immediately then.
+   */
+  protected final boolean markStarted ()
+  {
+    return m_aStarted.compareAndSet (false, true);
+  }
+
+  /**
+   * Release the resources allocated in <code>initDynamicComponent</code>, e.g.
+   * a server socket. Called when {@link #run()} ends, or by
+   * {@link #terminate()} if the processor was never started.
+   */
+  protected void releaseResources ()
+  {}
+
+  /**
+   * Terminate this processor and request the shutdown of the server.
+   */
   public void terminate ()
   {
     m_bTerminated = true;
+    final CountDownLatch aShutdownLatch = m_aShutdownLatch;
+    if (aShutdownLatch != null)
+      aShutdownLatch.countDown ();
+    // A processor that was never started does not release anything itself
+    if (markStarted ())
+      releaseResources ();
   }
 }
@@ -0,0 +1,374 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd.processor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2.cmd.CommandResult;
+import com.helger.as2.cmd.ICommand;
+import com.helger.as2.util.JSONHelper;
+import com.helger.as2lib.ISession;
+import com.helger.as2lib.exception.OpenAS2Exception;
+import com.helger.as2lib.util.IStringMap;
+import com.helger.as2lib.util.StringMap;
+import com.phloc.commons.string.StringHelper;
+import com.sun.net.httpserver.BasicAuthenticator;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Command processor exposing all commands via HTTP and JSON. Each command is
+ * executed with <code>POST /cmd/&lt;command&gt;/&lt;subcommand&gt;</code>,
+ * e.g. <code>POST /cmd/cert/view</code>. The optional request body contains
+ * the additional arguments either as JSON array (<code>["alias"]</code>) or as
+ * object with an <code>args</code> array. The response is a JSON object like
+ * <code>{"type":"OK","results":["..."]}</code>.<br>
+ * Parameters:
+ * <ul>
+ * <li><code>port</code> - the port to listen on (required)</li>
+ * <li><code>address</code> - the address to bind to (default: 127.0.0.1)</li>
+ * <li><code>userid</code> and <code>password</code> - credentials for the
+ * required HTTP basic authentication (required)</li>
+ * <li><code>workers</code> and <code>queuesize</code> - size of the worker
+ * pool and its queue</li>
+ * <li><code>maxrequestsize</code> - maximum size of a request body in bytes
+ * (default: 1 MB)</li>
+ * </ul>
+ * Connections are kept alive between requests, as all responses have a fixed
+ * content length.
+ */
+public class HttpCommandProcessor extends AbstractCommandProcessor
+{
+  public static final String PARAM_PORT = "port";
+  public static final String PARAM_ADDRESS = "address";
+  public static final String DEFAULT_ADDRESS = "127.0.0.1";
+  public static final String CONTEXT_PATH = "/cmd/";
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (HttpCommandProcessor.class);
+  private static final String CHARSET = "UTF-8";
+
+  private HttpServer m_aServer;
+  private ThreadPoolExecutor m_aWorkers;
+  private int m_nMaxRequestSize;
+  private final CountDownLatch m_aStopped = new CountDownLatch (1);
+
+  public HttpCommandProcessor ()
+  {}
+
+  @Override
+  public void initDynamicComponent (@Nonnull final ISession aSession, @Nullable final IStringMap aParams) throws OpenAS2Exception
+  {
+    final StringMap aParameters = aParams == null ? new StringMap () : new StringMap (aParams);
+    final String sPort = aParameters.getAttributeAsString (PARAM_PORT);
+    final int nPort;
+    try
+    {
+      nPort = Integer.parseInt (sPort);
+    }
+    catch (final NumberFormatException ex)
+    {
+      throw new OpenAS2Exception ("error converting port parameter '" + sPort + "': " + ex);
+    }
+    // All commands including "exit" are served - never without authentication
+    final String sUserID = aParameters.getAttributeAsString (SocketCommandProcessor.PARAM_USERID);
+    if (StringHelper.hasNoText (sUserID))
+      throw new OpenAS2Exception ("missing userid parameter");
+    final String sPassword = aParameters.getAttributeAsString (SocketCommandProcessor.PARAM_PASSWORD);
+    if (StringHelper.hasNoText (sPassword))
+      throw new OpenAS2Exception ("missing password parameter");
+
+    String sAddress = aParameters.getAttributeAsString (PARAM_ADDRESS);
+    if (StringHelper.hasNoText (sAddress))
+      sAddress = DEFAULT_ADDRESS;
+    m_nMaxRequestSize = Math.max (1, SocketCommandProcessor.getIntParameter (aParameters,
+                                                                            SocketCommandProcessor.PARAM_MAX_REQUEST_SIZE,
+                                                                            SocketCommandProcessor.DEFAULT_MAX_REQUEST_SIZE));
+
+    try
+    {
+      m_aServer = HttpServer.create (new InetSocketAddress (sAddress, nPort), 0);
+    }
+    catch (final IOException ex)
+    {
+      throw new OpenAS2Exception (ex);
+    }
+
+    // Let the dispatcher handle requests itself if the queue is full
+    m_aWorkers = SocketCommandProcessor.createWorkerPool (aParameters, "HttpCommandWorker");
+    m_aWorkers.setRejectedExecutionHandler (new ThreadPoolExecutor.CallerRunsPolicy ());
+    m_aServer.setExecutor (m_aWorkers);
+
+    final HttpContext aContext = m_aServer.createContext (CONTEXT_PATH, new HttpHandler ()
+    {
+      public void handle (@Nonnull final HttpExchange aExchange) throws IOException
+      {
+        handleExchange (aExchange);
+      }
+    });
+
+    aContext.setAuthenticator (new BasicAuthenticator ("OpenAS2")
+    {
+      @Override
+      public boolean checkCredentials (final String sUser, final String sPwd)
+      {
+        return sUserID.equals (sUser) && sPassword.equals (sPwd);
+      }
+    });
+  }
+
+  private static void _sendJSON (@Nonnull final HttpExchange aExchange,
+                                 final int nStatus,
+                                 @Nonnull final CharSequence aJSON) throws IOException
+  {
+    final byte [] aBytes = aJSON.toString ().getBytes (CHARSET);
+    aExchange.getResponseHeaders ().set ("Content-Type", "application/json; charset=" + CHARSET);
+    // A fixed length keeps the connection alive
+    aExchange.sendResponseHeaders (nStatus, aBytes.length);
+    final OutputStream aOS = aExchange.getResponseBody ();
+    aOS.write (aBytes);
+    aOS.close ();
+  }
+
+  private static void _sendResult (@Nonnull final HttpExchange aExchange,
+                                   final int nStatus,
+                                   @Nonnull final String sType,
+                                   @Nonnull final Iterable <?> aResults) throws IOException
+  {
+    final StringBuilder aSB = new StringBuilder ("{\"type\":");
+    JSONHelper.appendString (aSB, sType).append (",\"results\":[");
+    boolean bFirst = true;
+    for (final Object aResult : aResults)
+    {
+      if (bFirst)
+        bFirst = false;
+      else
+        aSB.append (',');
+      JSONHelper.appendString (aSB, aResult == null ? null : aResult.toString ());
+    }
+    aSB.append ("]}");
+    _sendJSON (aExchange, nStatus, aSB);
+  }
+
+  private static void _sendError (@Nonnull final HttpExchange aExchange, final int nStatus, @Nonnull final String sMsg) throws IOException
+  {
+    final List <String> aResults = new ArrayList <String> (1);
+    aResults.add (sMsg);
+    _sendResult (aExchange, nStatus, CommandResult.TYPE_ERROR, aResults);
+  }
+
+  /**
+   * Read the request body up to the maximum request size.
+   * 
+   * @return <code>null</code> if the body is too large
+   */
+  @Nullable
+  private String _readBody (@Nonnull final HttpExchange aExchange) throws IOException
+  {
+    final InputStream aIS = aExchange.getRequestBody ();
+    try
+    {
+      final ByteArrayOutputStream aBAOS = new ByteArrayOutputStream ();
+      final byte [] aBuf = new byte [8192];
+      int nRead;
+      while ((nRead = aIS.read (aBuf)) > 0)
+      {
+        if (aBAOS.size () + nRead > m_nMaxRequestSize)
+          return null;
+        aBAOS.write (aBuf, 0, nRead);
+      }
+      return aBAOS.toString (CHARSET);
+    }
+    finally
+    {
+      aIS.close ();
+    }
+  }
+
+  /**
+   * Convert the JSON request body to command arguments.
+   */
+  private static void _addArguments (@Nonnull final String sBody, @Nonnull final List <Object> aArgs)
+  {
+    if (sBody.trim ().length () == 0)
+      return;
+
+    Object aJSON = JSONHelper.parse (sBody);
+    if (aJSON instanceof Map <?, ?>)
+      aJSON = ((Map <?, ?>) aJSON).get ("args");
+    if (aJSON == null)
+      return;
+    if (!(aJSON instanceof List <?>))
+      throw new IllegalArgumentException ("Expected a JSON array of arguments");
+    for (final Object aArg : (List <?>) aJSON)
+    {
+      if (aArg instanceof List <?> || aArg instanceof Map <?, ?>)
+        throw new IllegalArgumentException ("Arguments must be scalar values");
+      aArgs.add (aArg == null ? "" : aArg.toString ());
+    }
+  }
+
+  protected void handleExchange (@Nonnull final HttpExchange aExchange) throws IOException
+  {
+    try
+    {
+      if (!"POST".equalsIgnoreCase (aExchange.getRequestMethod ()))
+      {
+        aExchange.getResponseHeaders ().set ("Allow", "POST");
+        _sendError (aExchange, 405, "Only POST is supported");
+        return;
+      }
+
+      // Path segments after the context path
+      final List <Object> aArgs = new ArrayList <Object> ();
+      final String sPath = aExchange.getRequestURI ().getPath ();
+      for (final String sSegment : sPath.substring (Math.min (sPath.length (), CONTEXT_PATH.length ())).split ("/"))
+        if (sSegment.length () > 0)
+          aArgs.add (sSegment);
+      if (aArgs.isEmpty ())
+      {
+        _sendError (aExchange, 404, "No command specified");
+        return;
+      }
+
+      final String sBody = _readBody (aExchange);
+      if (sBody == null)
+      {
+        _sendError (aExchange, 413, "Request exceeds the maximum size of " + m_nMaxRequestSize + " bytes");
+        return;
+      }
+      try
+      {
+        _addArguments (sBody, aArgs);
+      }
+      catch (final IllegalArgumentException ex)
+      {
+        _sendError (aExchange, 400, "Invalid JSON: " + ex.getMessage ());
+        return;
+      }
+
+      final String sCommandName = ((String) aArgs.remove (0)).toLowerCase (Locale.US);
+      if (sCommandName.equals (StreamCommandProcessor.EXIT_COMMAND))
+      {
+        _sendResult (aExchange, 200, CommandResult.TYPE_OK, new ArrayList <String> ());
+        exit (aArgs);
+        return;
+      }
+
+      final ICommand aCommand = getCommand (sCommandName);
+      if (aCommand == null)
+      {
+        _sendError (aExchange, 404, StreamCommandProcessor.COMMAND_NOT_FOUND + "> " + sCommandName);
+        return;
+      }
+
+      final CommandResult aResult = aCommand.execute (aArgs.toArray ());
+      // Builds the complete body (including lazily produced results) first
+      _sendResult (aExchange, 200, aResult.getType (), aResult.getResultIterable ());
+    }
+    catch (final RuntimeException ex)
+    {
+      s_aLogger.error ("Failed to handle HTTP command", ex);
+      // The body is buffered before the headers are sent, so the headers are
+      // only out if the failure happened afterwards - just close then
+      if (aExchange.getResponseCode () == -1)
+        _sendError (aExchange, 500, ex.toString ());
+    }
+    finally
+    {
+      aExchange.close ();
+    }
+  }
+
+  @Override
+  public void terminate ()
+  {
+    super.terminate ();
+    m_aStopped.countDown ();
+  }
+
+  @Override
+  public void run ()
+  {
+    if (!markStarted ())
+      return;
+    m_aServer.start ();
+    s_aLogger.info ("HTTP command processor listening on " + m_aServer.getAddress ());
+    try
+    {
+      m_aStopped.await ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    finally
+    {
+      releaseResources ();
+    }
+  }
+
+  @Override
+  protected void releaseResources ()
+  {
+    // Also releases the port of a server that was never started
+    m_aServer.stop (1);
+    m_aWorkers.shutdown ();
+    try
+    {
+      m_aWorkers.awaitTermination (5, TimeUnit.SECONDS);
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+}
@@ -49,6 +49,14 @@ public interface ICommandProcessor
 
   boolean isTerminated ();
 
+  /**
+   * Make the commands of the passed registry available. The registry is
+   * queried on each lookup, so commands reloaded by the registry are visible
+   * immediately.
+   *
+   * @param reg
+   *        The registry to use
+   */
   void addCommands (@Nonnull ICommandRegistry reg);
 
   void init () throws OpenAS2Exception;
@@ -0,0 +1,539 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd.processor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.exception.OpenAS2Exception;
+import com.helger.as2lib.util.StringMap;
+import com.phloc.commons.io.streams.StreamUtils;
+
+/**
+ * Non-blocking variant of the {@link SocketCommandProcessor}. All connections
+ * are served by a single selector thread using an {@link SSLEngine} per
+ * connection. Request lines are assembled incrementally and complete requests
+ * are handed to a bounded worker pool, so slow clients do not block others.
+ * <br>
+ * Additional parameters:
+ * <ul>
+ * <li><code>workers</code> - number of worker threads (default: number of
+ * processors)</li>
+ * <li><code>queuesize</code> - maximum number of queued requests (default:
+ * 100)</li>
+ * <li><code>maxrequestsize</code> - maximum size of a request line in bytes
+ * (default: 1 MB)</li>
+ * <li><code>readtimeout</code> - milliseconds a client may take to send its
+ * request (default: 2000)</li>
+ * </ul>
+ * See {@link SocketTLSConfig} for the TLS related parameters.
+ */
+public class NIOSocketCommandProcessor extends SocketCommandProcessor
+{
+  public static final String PARAM_READ_TIMEOUT = "readtimeout";
+
+  public static final int DEFAULT_READ_TIMEOUT = 2000;
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (NIOSocketCommandProcessor.class);
+  private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate (0);
+
+  /**
+   * State of a single client connection. Only accessed by the selector thread.
+   */
+  private static final class Connection
+  {
+    private final SocketChannel m_aChannel;
+    private final SSLEngine m_aEngine;
+    private ByteBuffer m_aNetIn;
+    private ByteBuffer m_aAppIn;
+    private ByteBuffer m_aNetOut;
+    private ByteBuffer m_aAppOut;
+    private final ByteArrayOutputStream m_aLine = new ByteArrayOutputStream ();
+    private long m_nLastActivity = System.currentTimeMillis ();
+    private boolean m_bRequestSubmitted = false;
+    private boolean m_bCloseAfterWrite = false;
+    private boolean m_bOutboundClosed = false;
+
+    Connection (@Nonnull final SocketChannel aChannel, @Nonnull final SSLEngine aEngine)
+    {
+      m_aChannel = aChannel;
+      m_aEngine = aEngine;
+      m_aNetIn = ByteBuffer.allocate (aEngine.getSession ().getPacketBufferSize ());
+      m_aAppIn = ByteBuffer.allocate (aEngine.getSession ().getApplicationBufferSize ());
+      m_aNetOut = ByteBuffer.allocate (aEngine.getSession ().getPacketBufferSize ());
+    }
+  }
+
+  /**
+   * A response produced by a worker, waiting to be written by the selector
+   * thread.
+   */
+  private static final class Response
+  {
+    private final Connection m_aConnection;
+    private final byte [] m_aData;
+
+    Response (@Nonnull final Connection aConnection, @Nonnull final byte [] aData)
+    {
+      m_aConnection = aConnection;
+      m_aData = aData;
+    }
+  }
+
+  private Selector m_aSelector;
+  private ServerSocketChannel m_aServerChannel;
+  private SocketTLSConfig m_aTLSConfig;
+  private ThreadPoolExecutor m_aWorkers;
+  private int m_nMaxRequestSize;
+  private int m_nReadTimeout;
+  private final Queue <Response> m_aResponses = new ConcurrentLinkedQueue <Response> ();
+
+  public NIOSocketCommandProcessor ()
+  {}
+
+  @Override
+  protected void initServerSocket (final int nPort, @Nonnull final StringMap aParameters) throws IOException,
+                                                                                         OpenAS2Exception
+  {
+    m_nMaxRequestSize = getIntParameter (aParameters, PARAM_MAX_REQUEST_SIZE, DEFAULT_MAX_REQUEST_SIZE);
+    m_nReadTimeout = getIntParameter (aParameters, PARAM_READ_TIMEOUT, DEFAULT_READ_TIMEOUT);
+
+    m_aTLSConfig = SocketTLSConfig.create (aParameters);
+
+    m_aSelector = Selector.open ();
+    m_aServerChannel = ServerSocketChannel.open ();
+    m_aServerChannel.configureBlocking (false);
+    m_aServerChannel.socket ().setReuseAddress (true);
+    m_aServerChannel.socket ().bind (new InetSocketAddress (nPort));
+    m_aServerChannel.register (m_aSelector, SelectionKey.OP_ACCEPT);
+
+    m_aWorkers = createWorkerPool (aParameters, "SocketCommandWorker");
+  }
+
+  @Override
+  public void processCommand () throws OpenAS2Exception
+  {
+    try
+    {
+      m_aSelector.select (Math.max (100, m_nReadTimeout / 4));
+
+      final Iterator <SelectionKey> aIt = m_aSelector.selectedKeys ().iterator ();
+      while (aIt.hasNext ())
+      {
+        final SelectionKey aKey = aIt.next ();
+        aIt.remove ();
+        if (!aKey.isValid ())
+          continue;
+
+        if (aKey.isAcceptable ())
+          _accept ();
+        else
+        {
+          final Connection aConnection = (Connection) aKey.attachment ();
+          try
+          {
+            if (aKey.isReadable ())
+              _read (aConnection);
+            if (aKey.isValid ())
+              _pump (aConnection);
+          }
+          catch (final IOException ex)
+          {
+            s_aLogger.debug ("Closing connection after error", ex);
+            _close (aConnection);
+          }
+        }
+      }
+
+      // Responses produced by the workers
+      Response aResponse;
+      while ((aResponse = m_aResponses.poll ()) != null)
+      {
+        final Connection aConnection = aResponse.m_aConnection;
+        if (!aConnection.m_aChannel.isOpen ())
+          continue;
+        aConnection.m_aAppOut = ByteBuffer.wrap (aResponse.m_aData);
+        aConnection.m_bCloseAfterWrite = true;
+        aConnection.m_nLastActivity = System.currentTimeMillis ();
+        try
+        {
+          _pump (aConnection);
+        }
+        catch (final IOException ex)
+        {
+          s_aLogger.debug ("Closing connection after error", ex);
+          _close (aConnection);
+        }
+      }
+
+      _closeIdleConnections ();
+    }
+    catch (final IOException ex)
+    {
+      throw new OpenAS2Exception (ex);
+    }
+  }
+
+  private void _accept () throws IOException
+  {
+    final SocketChannel aChannel = m_aServerChannel.accept ();
+    if (aChannel == null)
+      return;
+
+    aChannel.configureBlocking (false);
+    aChannel.socket ().setTcpNoDelay (true);
+    final SSLEngine aEngine = m_aTLSConfig.getSSLContext ().createSSLEngine ();
+    m_aTLSConfig.configure (aEngine);
+    aEngine.beginHandshake ();
+
+    final Connection aConnection = new Connection (aChannel, aEngine);
+    aChannel.register (m_aSelector, SelectionKey.OP_READ, aConnection);
+  }
+
+  private void _read (@Nonnull final Connection aConnection) throws IOException
+  {
+    if (!aConnection.m_aNetIn.hasRemaining ())
+      aConnection.m_aNetIn = _enlarge (aConnection.m_aNetIn, aConnection.m_aEngine.getSession ()
+                                                                                   .getPacketBufferSize ());
+    final int nRead = aConnection.m_aChannel.read (aConnection.m_aNetIn);
+    if (nRead < 0)
+    {
+      // Peer closed the connection
+      try
+      {
+        aConnection.m_aEngine.closeInbound ();
+      }
+      catch (final SSLException ex)
+      {
+        // Connection closed without close_notify
+      }
+      if (!aConnection.m_bRequestSubmitted)
+        _close (aConnection);
+      return;
+    }
+    if (nRead > 0)
+      aConnection.m_nLastActivity = System.currentTimeMillis ();
+  }
+
+  @Nonnull
+  private static ByteBuffer _enlarge (@Nonnull final ByteBuffer aBuffer, final int nMinExtra)
+  {
+    final ByteBuffer ret = ByteBuffer.allocate (aBuffer.capacity () + Math.max (nMinExtra, aBuffer.capacity ()));
+    aBuffer.flip ();
+    ret.put (aBuffer);
+    return ret;
+  }
+
+  private static void _runDelegatedTasks (@Nonnull final SSLEngine aEngine)
+  {
+    Runnable aTask;
+    while ((aTask = aEngine.getDelegatedTask ()) != null)
+      aTask.run ();
+  }
+
+  /**
+   * Drive the SSL engine as far as possible: unwrap received data, perform
+   * handshake steps, wrap pending response data and write it to the channel.
+   */
+  private void _pump (@Nonnull final Connection aConnection) throws IOException
+  {
+    if (!aConnection.m_aChannel.isOpen ())
+      return;
+
+    final SSLEngine aEngine = aConnection.m_aEngine;
+    boolean bProgress = true;
+    while (bProgress)
+    {
+      bProgress = false;
+
+      HandshakeStatus eHS = aEngine.getHandshakeStatus ();
+      if (eHS == HandshakeStatus.NEED_TASK)
+      {
+        _runDelegatedTasks (aEngine);
+        bProgress = true;
+        continue;
+      }
+
+      // Unwrap incoming data
+      if (eHS != HandshakeStatus.NEED_WRAP && !aEngine.isInboundDone ())
+      {
+        aConnection.m_aNetIn.flip ();
+        final SSLEngineResult aResult = aEngine.unwrap (aConnection.m_aNetIn, aConnection.m_aAppIn);
+        aConnection.m_aNetIn.compact ();
+        switch (aResult.getStatus ())
+        {
+          case BUFFER_OVERFLOW:
+            aConnection.m_aAppIn = _enlarge (aConnection.m_aAppIn, aEngine.getSession ().getApplicationBufferSize ());
+            bProgress = true;
+            break;
+          case OK:
+            if (aResult.bytesConsumed () > 0 || aResult.bytesProduced () > 0)
+              bProgress = true;
+            break;
+          default:
+            // BUFFER_UNDERFLOW: wait for more data; CLOSED: nothing more to read
+            break;
+        }
+        if (aConnection.m_aAppIn.position () > 0)
+        {
+          aConnection.m_aAppIn.flip ();
+          _consumeApplicationData (aConnection);
+          aConnection.m_aAppIn.clear ();
+        }
+      }
+
+      // Wrap handshake data, response data or close_notify
+      eHS = aEngine.getHandshakeStatus ();
+      final boolean bHasAppOut = aConnection.m_aAppOut != null && aConnection.m_aAppOut.hasRemaining ();
+      if (aConnection.m_bCloseAfterWrite && !bHasAppOut && !aConnection.m_bOutboundClosed)
+      {
+        aEngine.closeOutbound ();
+        aConnection.m_bOutboundClosed = true;
+      }
+      if (!aEngine.isOutboundDone () &&
+          (eHS == HandshakeStatus.NEED_WRAP ||
+           (bHasAppOut && eHS == HandshakeStatus.NOT_HANDSHAKING) || aConnection.m_bOutboundClosed))
+      {
+        final SSLEngineResult aResult = aEngine.wrap (bHasAppOut ? aConnection.m_aAppOut : EMPTY_BUFFER,
+                                                      aConnection.m_aNetOut);
+        if (aResult.getStatus () == SSLEngineResult.Status.BUFFER_OVERFLOW)
+        {
+          if (_flush (aConnection) > 0)
+            bProgress = true;
+          else
+            if (aConnection.m_aNetOut.position () == 0)
+            {
+              aConnection.m_aNetOut = _enlarge (aConnection.m_aNetOut, aEngine.getSession ().getPacketBufferSize ());
+              bProgress = true;
+            }
+        }
+        else
+          if (aResult.bytesConsumed () > 0 || aResult.bytesProduced () > 0)
+            bProgress = true;
+      }
+
+      if (_flush (aConnection) > 0)
+        bProgress = true;
+    }
+
+    if (aEngine.isOutboundDone () && aConnection.m_aNetOut.position () == 0)
+    {
+      _close (aConnection);
+      return;
+    }
+
+    // Update the interest set
+    final SelectionKey aKey = aConnection.m_aChannel.keyFor (m_aSelector);
+    if (aKey != null && aKey.isValid ())
+    {
+      int nOps = 0;
+      if (!aEngine.isInboundDone ())
+        nOps |= SelectionKey.OP_READ;
+      if (aConnection.m_aNetOut.position () > 0)
+        nOps |= SelectionKey.OP_WRITE;
+      aKey.interestOps (nOps);
+    }
+  }
+
+  private static int _flush (@Nonnull final Connection aConnection) throws IOException
+  {
+    if (aConnection.m_aNetOut.position () == 0)
+      return 0;
+    aConnection.m_aNetOut.flip ();
+    final int nWritten = aConnection.m_aChannel.write (aConnection.m_aNetOut);
+    aConnection.m_aNetOut.compact ();
+    return nWritten;
+  }
+
+  /**
+   * Collect decrypted bytes until the request line is complete and hand it
+   * over to the worker pool.
+   */
+  private void _consumeApplicationData (@Nonnull final Connection aConnection) throws IOException
+  {
+    final ByteBuffer aAppIn = aConnection.m_aAppIn;
+    while (aAppIn.hasRemaining () && !aConnection.m_bRequestSubmitted)
+    {
+      final byte b = aAppIn.get ();
+      if (b == '\n')
+      {
+        _submitRequest (aConnection);
+        break;
+      }
+      if (aConnection.m_aLine.size () >= m_nMaxRequestSize)
+      {
+        s_aLogger.warn ("Request exceeds the maximum size of " + m_nMaxRequestSize + " bytes");
+        aConnection.m_aLine.reset ();
+        _respond (aConnection, "Request too large");
+        break;
+      }
+      aConnection.m_aLine.write (b);
+    }
+    // Everything after the first line is ignored
+    aAppIn.position (aAppIn.limit ());
+  }
+
+  private void _submitRequest (@Nonnull final Connection aConnection)
+  {
+    aConnection.m_bRequestSubmitted = true;
+    String sLine = new String (aConnection.m_aLine.toByteArray (), CHARSET);
+    aConnection.m_aLine.reset ();
+    if (sLine.endsWith ("\r"))
+      sLine = sLine.substring (0, sLine.length () - 1);
+
+    final String sRequest = sLine;
+    try
+    {
+      m_aWorkers.execute (new Runnable ()
+      {
+        public void run ()
+        {
+          final StringWriter aSW = new StringWriter ();
+          try
+          {
+            handleRequest (sRequest, aSW);
+          }
+          catch (final Exception ex)
+          {
+            s_aLogger.warn ("Failed to process socket command: " + ex.getMessage ());
+          }
+          m_aResponses.add (new Response (aConnection, aSW.toString ().getBytes (CHARSET)));
+          m_aSelector.wakeup ();
+        }
+      });
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      s_aLogger.warn ("Too many pending socket commands - rejecting request");
+      _respond (aConnection, "Server busy");
+    }
+  }
+
+  private void _respond (@Nonnull final Connection aConnection, @Nonnull final String sText)
+  {
+    aConnection.m_bRequestSubmitted = true;
+    m_aResponses.add (new Response (aConnection, sText.getBytes (CHARSET)));
+  }
+
+  private void _closeIdleConnections ()
+  {
+    final long nNow = System.currentTimeMillis ();
+    final List <Connection> aIdle = new ArrayList <Connection> ();
+    for (final SelectionKey aKey : m_aSelector.keys ())
+    {
+      final Object aAttachment = aKey.attachment ();
+      if (aAttachment instanceof Connection)
+      {
+        final Connection aConnection = (Connection) aAttachment;
+        if (!aConnection.m_bRequestSubmitted && nNow - aConnection.m_nLastActivity > m_nReadTimeout)
+          aIdle.add (aConnection);
+      }
+    }
+    for (final Connection aConnection : aIdle)
+      _close (aConnection);
+  }
+
+  private void _close (@Nullable final Connection aConnection)
+  {
+    if (aConnection != null)
+    {
+      final SelectionKey aKey = aConnection.m_aChannel.keyFor (m_aSelector);
+      if (aKey != null)
+        aKey.cancel ();
+      StreamUtils.close (aConnection.m_aChannel);
+    }
+  }
+
+  @Override
+  public void run ()
+  {
+    if (!markStarted ())
+      return;
+    try
+    {
+      while (!isTerminated ())
+        processCommand ();
+    }
+    catch (final OpenAS2Exception e)
+    {
+      e.printStackTrace ();
+    }
+    finally
+    {
+      releaseResources ();
+    }
+  }
+
+  @Override
+  protected void releaseResources ()
+  {
+    super.releaseResources ();
+    m_aWorkers.shutdown ();
+    for (final SelectionKey aKey : m_aSelector.keys ())
+      if (aKey.attachment () instanceof Connection)
+        _close ((Connection) aKey.attachment ());
+    StreamUtils.close (m_aServerChannel);
+    try
+    {
+      m_aSelector.close ();
+    }
+    catch (final IOException ex)
+    {
+      // ignore
+    }
+  }
+}
@@ -32,97 +32,365 @@
  */
 package com.helger.as2.cmd.processor;
 
-import java.io.CharArrayWriter;
 import java.io.IOException;
+import java.io.Reader;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
-import org.xml.sax.Attributes;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import javax.annotation.concurrent.NotThreadSafe;
 
+import com.helger.as2lib.exception.OpenAS2Exception;
 import com.phloc.commons.io.streams.NonBlockingStringReader;
 
 /**
  * used to parse commands from the socket command processor message format
- * <command userid="abc" pasword="xyz"> the actual command </command>
+ * <command userid="abc" pasword="xyz"> the actual command </command><br>
+ * Also understands the session start element
+ * <code>&lt;session id="abc" password="xyz"/&gt;</code> and the optional
+ * <code>rid</code> request ID attribute of commands sent within a session.<br>
+ * This is a small pull parser that only understands this envelope: attribute
+ * values, predefined and numeric entities and CDATA sections. It reads
+ * directly from the connection, so one instance must be used per connection.
+ * Requests exceeding the maximum size are rejected as soon as the limit is
+ * reached.
  * 
  * @author joseph mcverry
  */
-
-public class SocketCommandParser extends DefaultHandler
+@NotThreadSafe
+public class SocketCommandParser
 {
-  private final SAXParser m_aParser;
+  public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+  // Don't keep huge command buffers alive between requests
+  private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+  private final int m_nMaxSize;
+  private final char [] m_aBuf = new char [4096];
+  private int m_nBufPos;
+  private int m_nBufLen;
+  private Reader m_aReader;
+  private int m_nConsumed;
+
   private String m_sUserID;
   private String m_sPassword;
-  private String m_sCommandText;
+  private String m_sRequestID;
+  private boolean m_bSessionStart;
+  private StringBuilder m_aContents = new StringBuilder ();
+  private final StringBuilder m_aToken = new StringBuilder ();
 
-  /** simple string processor */
-  protected CharArrayWriter m_aContents = new CharArrayWriter ();
+  public SocketCommandParser ()
+  {
+    this (DEFAULT_MAX_SIZE);
+  }
 
   /**
-   * construct the factory with a xml parser
-   * 
-   * @throws Exception
-   *         an xml parser exception
+   * @param nMaxSize
+   *        The maximum number of characters of a single request.
    */
+  public SocketCommandParser (final int nMaxSize)
+  {
+    if (nMaxSize <= 0)
+      throw new IllegalArgumentException ("MaxSize must be positive: " + nMaxSize);
+    m_nMaxSize = nMaxSize;
+  }
 
-  public SocketCommandParser () throws Exception
+  /**
+   * Set the reader to parse requests from. All data buffered from a previous
+   * reader is discarded.
+   * 
+   * @param aReader
+   *        The reader, usually the one of the connection
+   */
+  public void setSource (@Nonnull final Reader aReader)
   {
-    final SAXParserFactory spf = SAXParserFactory.newInstance ();
-    m_aParser = spf.newSAXParser ();
+    m_aReader = aReader;
+    m_nBufPos = 0;
+    m_nBufLen = 0;
   }
 
-  public void parse (@Nullable final String inLine) throws SAXException, IOException
+  private void _reset ()
   {
     m_sUserID = "";
     m_sPassword = "";
-    m_sCommandText = "";
-    m_aContents.reset ();
+    m_sRequestID = null;
+    m_bSessionStart = false;
+    if (m_aContents.capacity () > MAX_RETAINED_CAPACITY)
+      m_aContents = new StringBuilder ();
+    else
+      m_aContents.setLength (0);
+    m_nConsumed = 0;
+  }
 
+  /**
+   * Parse a single request line.
+   * 
+   * @param inLine
+   *        The request. If <code>null</code> an empty request is assumed.
+   * @throws IOException
+   *         Never
+   * @throws OpenAS2Exception
+   *         In case of a syntax error or if the request is too large
+   */
+  public void parse (@Nullable final String inLine) throws IOException, OpenAS2Exception
+  {
+    _reset ();
     if (inLine != null)
     {
-      final NonBlockingStringReader aReader = new NonBlockingStringReader (inLine);
-      m_aParser.parse (new InputSource (aReader), this);
+      setSource (new NonBlockingStringReader (inLine));
+      if (!next ())
+        throw new OpenAS2Exception ("Empty request");
+    }
+  }
+
+  private int _read () throws IOException, OpenAS2Exception
+  {
+    if (m_nBufPos == m_nBufLen)
+    {
+      if (m_aReader == null)
+        return -1;
+      m_nBufLen = m_aReader.read (m_aBuf, 0, m_aBuf.length);
+      m_nBufPos = 0;
+      if (m_nBufLen <= 0)
+      {
+        m_nBufLen = 0;
+        return -1;
+      }
     }
+    if (++m_nConsumed > m_nMaxSize)
+      throw new OpenAS2Exception ("Request exceeds the maximum size of " + m_nMaxSize + " characters");
+    return m_aBuf[m_nBufPos++];
+  }
+
+  private int _readRequired () throws IOException, OpenAS2Exception
+  {
+    final int c = _read ();
+    if (c < 0)
+      throw new OpenAS2Exception ("Unexpected end of request");
+    return c;
+  }
+
+  private static boolean _isWhitespace (final int c)
+  {
+    return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+  }
+
+  private int _skipWhitespace (final int cFirst) throws IOException, OpenAS2Exception
+  {
+    int c = cFirst;
+    while (_isWhitespace (c))
+      c = _readRequired ();
+    return c;
+  }
+
+  private void _expect (@Nonnull final String sExpected) throws IOException, OpenAS2Exception
+  {
+    for (int i = 0; i < sExpected.length (); ++i)
+      if (_readRequired () != sExpected.charAt (i))
+        throw new OpenAS2Exception ("Invalid request: expected '" + sExpected + "'");
   }
 
   /**
-   * Method handles #PCDATA
+   * Read a name into m_aToken.
    * 
-   * @param ch
-   *        array
-   * @param start
-   *        position in array where next has been placed
-   * @param length
-   *        int
+   * @return the first character after the name
+   */
+  private int _readName (final int cFirst) throws IOException, OpenAS2Exception
+  {
+    m_aToken.setLength (0);
+    int c = cFirst;
+    while (!_isWhitespace (c) && c != '=' && c != '>' && c != '/')
+    {
+      m_aToken.append ((char) c);
+      c = _readRequired ();
+    }
+    return c;
+  }
+
+  /**
+   * Decode the entity after an '&amp;' and append it
    */
-  @Override
-  public void characters (final char [] ch, final int start, final int length)
+  private void _readEntity (@Nonnull final StringBuilder aTarget) throws IOException, OpenAS2Exception
   {
-    m_aContents.write (ch, start, length);
+    final int nStart = aTarget.length ();
+    int c;
+    while ((c = _readRequired ()) != ';')
+    {
+      if (aTarget.length () - nStart > 10)
+        throw new OpenAS2Exception ("Invalid entity reference");
+      aTarget.append ((char) c);
+    }
+    final String sEntity = aTarget.substring (nStart);
+    aTarget.setLength (nStart);
+    if (sEntity.equals ("lt"))
+      aTarget.append ('<');
+    else
+      if (sEntity.equals ("gt"))
+        aTarget.append ('>');
+      else
+        if (sEntity.equals ("amp"))
+          aTarget.append ('&');
+        else
+          if (sEntity.equals ("quot"))
+            aTarget.append ('"');
+          else
+            if (sEntity.equals ("apos"))
+              aTarget.append ('\'');
+            else
+              if (sEntity.startsWith ("#"))
+              {
+                try
+                {
+                  final int nCodePoint = sEntity.startsWith ("#x") ? Integer.parseInt (sEntity.substring (2), 16)
+                                                                  : Integer.parseInt (sEntity.substring (1));
+                  aTarget.appendCodePoint (nCodePoint);
+                }
+                catch (final IllegalArgumentException ex)
+                {
+                  throw new OpenAS2Exception ("Invalid character reference '&" + sEntity + ";'");
+                }
+              }
+              else
+                throw new OpenAS2Exception ("Unknown entity '&" + sEntity + ";'");
   }
 
-  @Override
-  public void startElement (final String sURI,
-                            final String sLocalName,
-                            final String sQName,
-                            final Attributes aAttributes) throws SAXException
+  /**
+   * Read the next request from the source set via {@link #setSource(Reader)}.
+   * 
+   * @return <code>false</code> if the end of the input was reached before a
+   *         request started.
+   * @throws IOException
+   *         In case reading fails
+   * @throws OpenAS2Exception
+   *         In case of a syntax error or if the request is too large
+   */
+  public boolean next () throws IOException, OpenAS2Exception
   {
-    if (sQName.equals ("command"))
+    _reset ();
+
+    // Skip leading whitespace and an optional XML declaration
+    int c;
+    while (true)
+    {
+      c = _read ();
+      while (_isWhitespace (c))
+        c = _read ();
+      if (c < 0)
+        return false;
+      if (c != '<')
+        throw new OpenAS2Exception ("Invalid request: expected '<'");
+      c = _readRequired ();
+      if (c != '?')
+        break;
+      int cPrev = 0;
+      while ((c = _readRequired ()) != '>' || cPrev != '?')
+        cPrev = c;
+    }
+
+    // Element name
+    c = _readName (c);
+    final String sElement = m_aToken.toString ();
+    if (sElement.equals ("session"))
+      m_bSessionStart = true;
+    else
+      if (!sElement.equals ("command"))
+        throw new OpenAS2Exception ("Invalid request: unexpected element '" + sElement + "'");
+    m_sUserID = null;
+    m_sPassword = null;
+
+    // Attributes
+    while (true)
+    {
+      c = _skipWhitespace (c);
+      if (c == '/')
+      {
+        _expect (">");
+        return true;
+      }
+      if (c == '>')
+        break;
+
+      c = _readName (c);
+      final String sAttrName = m_aToken.toString ();
+      c = _skipWhitespace (c);
+      if (c != '=')
+        throw new OpenAS2Exception ("Invalid request: expected '=' after attribute '" + sAttrName + "'");
+      final int cQuote = _skipWhitespace (_readRequired ());
+      if (cQuote != '"' && cQuote != '\'')
+        throw new OpenAS2Exception ("Invalid request: attribute value of '" + sAttrName + "' is not quoted");
+      m_aToken.setLength (0);
+      while ((c = _readRequired ()) != cQuote)
+        if (c == '&')
+          _readEntity (m_aToken);
+        else
+          m_aToken.append ((char) c);
+      final String sAttrValue = m_aToken.toString ();
+      if (sAttrName.equals ("id"))
+        m_sUserID = sAttrValue;
+      else
+        if (sAttrName.equals ("password"))
+          m_sPassword = sAttrValue;
+        else
+          if (sAttrName.equals ("rid"))
+            m_sRequestID = sAttrValue;
+      c = _readRequired ();
+    }
+
+    // Content up to the end element
+    while (true)
     {
-      m_sUserID = aAttributes.getValue ("id");
-      m_sPassword = aAttributes.getValue ("password");
+      c = _readRequired ();
+      if (c == '&')
+        _readEntity (m_aContents);
+      else
+        if (c == '<')
+        {
+          c = _readRequired ();
+          if (c == '/')
+          {
+            c = _skipWhitespace (_readName (_readRequired ()));
+            if (c != '>' || !m_aToken.toString ().equals (sElement))
+              throw new OpenAS2Exception ("Invalid request: expected '</" + sElement + ">'");
+            return true;
+          }
+          if (c != '!')
+            throw new OpenAS2Exception ("Invalid request: nested elements are not supported");
+          _expect ("[CDATA[");
+          int nBrackets = 0;
+          while (true)
+          {
+            c = _readRequired ();
+            if (c == '>' && nBrackets >= 2)
+            {
+              // Remove the "]]" that was already appended
+              m_aContents.setLength (m_aContents.length () - 2);
+              break;
+            }
+            nBrackets = c == ']' ? nBrackets + 1 : 0;
+            m_aContents.append ((char) c);
+          }
+        }
+        else
+          m_aContents.append ((char) c);
     }
   }
 
+  /**
+   * @return The command text of the last parsed request. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
   public String getCommandText ()
   {
-    return m_sCommandText;
+    return m_aContents.toString ();
+  }
+
+  /**
+   * @return The command text of the last parsed request without copying it.
+   *         Only valid until the next request is parsed.
+   */
+  @Nonnull
+  public CharSequence getCommandChars ()
+  {
+    return m_aContents;
   }
 
   public String getPassword ()
@@ -135,14 +403,30 @@ public class SocketCommandParser extends DefaultHandler
     return m_sUserID;
   }
 
-  @Override
-  public void endElement (final String sURI, final String sLocalName, @Nonnull final String sQName) throws SAXException
+  /**
+   * @return The request ID of a command sent within a session. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public String getRequestID ()
   {
-    if (sQName.equals ("command"))
-    {
-      m_sCommandText = m_aContents.toString ();
-    }
-    else
-      m_aContents.flush ();
+    return m_sRequestID;
+  }
+
+  /**
+   * @return <code>true</code> if the last parsed request was a session start
+   *         element
+   */
+  public boolean isSessionStart ()
+  {
+    return m_bSessionStart;
+  }
+
+  /**
+   * @return The maximum number of characters of a single request
+   */
+  public int getMaxSize ()
+  {
+    return m_nMaxSize;
   }
 }
@@ -32,13 +32,23 @@
  */
 package com.helger.as2.cmd.processor;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -46,11 +56,10 @@ import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
 
-import org.xml.sax.SAXException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.helger.as2.cmd.CommandResult;
-import com.helger.as2.cmd.ICommand;
-import com.helger.as2.util.CommandTokenizer;
 import com.helger.as2lib.ISession;
 import com.helger.as2lib.exception.OpenAS2Exception;
 import com.helger.as2lib.util.IStringMap;
@@ -63,19 +72,63 @@ import com.phloc.commons.string.StringHelper;
  * them to the OpenAS2Server message format <command userid="abc" pasword="xyz">
  * the actual command </command> when inited the valid userid and password is
  * passed, then as each command is processed the processCommand method verifies
- * the two fields correctness
+ * the two fields correctness<br>
+ * The attribute <code>threading</code> defines how accepted connections are
+ * handled: <code>single</code> (default) handles each connection on the
+ * processor thread, <code>pool</code> uses a bounded pool of
+ * <code>workers</code> threads and <code>virtual</code> uses one virtual thread
+ * per connection on JDKs supporting it (falling back to <code>pool</code>
+ * otherwise).<br>
+ * Clients may also open a persistent session by sending
+ * <code>&lt;session id="abc" password="xyz"/&gt;</code> as the first line.
+ * Afterwards each line contains one command in the format
+ * <code>&lt;command rid="1"&gt;the actual command&lt;/command&gt;</code>. Up
+ * to <code>maxinflight</code> commands of a session are executed concurrently
+ * and each answer is written as
+ * <code>&lt;response rid="1" type="OK"&gt;...&lt;/response&gt;</code> as soon
+ * as it is available, so answers may arrive out of order. Sessions require the
+ * <code>pool</code> or <code>virtual</code> threading mode and are rejected in
+ * <code>single</code> mode, where a session would block all other clients.<br>
+ * Requests larger than <code>maxrequestsize</code> characters (default: 1 MB)
+ * are rejected.<br>
+ * See {@link SocketTLSConfig} for the TLS related parameters.
  *
  * @author joseph mcverry
  */
 public class SocketCommandProcessor extends AbstractCommandProcessor
 {
-  private BufferedReader m_aReader;
-  private BufferedWriter m_aWriter;
+  public static final String PARAM_PORTID = "portid";
+  public static final String PARAM_USERID = "userid";
+  public static final String PARAM_PASSWORD = "password";
+  public static final String PARAM_THREADING = "threading";
+  public static final String PARAM_WORKERS = "workers";
+  public static final String PARAM_QUEUE_SIZE = "queuesize";
+  public static final String THREADING_SINGLE = "single";
+  public static final String THREADING_POOL = "pool";
+  public static final String THREADING_VIRTUAL = "virtual";
+  public static final String PARAM_MAX_IN_FLIGHT = "maxinflight";
+  public static final String PARAM_SESSION_TIMEOUT = "sessiontimeout";
+  public static final String PARAM_MAX_REQUEST_SIZE = "maxrequestsize";
+  public static final int DEFAULT_QUEUE_SIZE = 100;
+  public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+  public static final int DEFAULT_SESSION_TIMEOUT = 60000;
+  public static final int DEFAULT_MAX_REQUEST_SIZE = SocketCommandParser.DEFAULT_MAX_SIZE;
+  // Encoding of the command protocol - independent of the platform default
+  protected static final Charset CHARSET = Charset.forName ("UTF-8");
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (SocketCommandProcessor.class);
+
   private SSLServerSocket m_aSSLServerSocket;
+  // null in single threaded mode
+  private ExecutorService m_aConnectionExecutor;
+  // Executes the commands of persistent sessions
+  private ExecutorService m_aSessionExecutor;
+  private int m_nMaxInFlight;
+  private int m_nSessionTimeout;
+  private int m_nMaxRequestSize;
 
   private String m_sUserID;
   private String m_sPassword;
-  private SocketCommandParser m_aParser;
 
   public SocketCommandProcessor ()
   {}
@@ -84,15 +137,11 @@ public class SocketCommandProcessor extends AbstractCommandProcessor
   public void initDynamicComponent (@Nonnull final ISession aSession, @Nullable final IStringMap aParams) throws OpenAS2Exception
   {
     final StringMap aParameters = aParams == null ? new StringMap () : new StringMap (aParams);
-    final String p = aParameters.getAttributeAsString ("portid");
+    final String p = aParameters.getAttributeAsString (PARAM_PORTID);
     try
     {
       final int nPort = Integer.parseInt (p);
-
-      final SSLServerSocketFactory aSSLServerSocketFactory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault ();
-      m_aSSLServerSocket = (SSLServerSocket) aSSLServerSocketFactory.createServerSocket (nPort);
-      final String [] enabledCipherSuites = { "SSL_DH_anon_WITH_RC4_128_MD5" };
-      m_aSSLServerSocket.setEnabledCipherSuites (enabledCipherSuites);
+      initServerSocket (nPort, aParameters);
     }
     catch (final IOException e)
     {
@@ -104,109 +153,395 @@ public class SocketCommandProcessor extends AbstractCommandProcessor
       e.printStackTrace ();
       throw new OpenAS2Exception ("error converting portid parameter '" + p + "': " + e);
     }
-    m_sUserID = aParameters.getAttributeAsString ("userid");
+    m_sUserID = aParameters.getAttributeAsString (PARAM_USERID);
     if (StringHelper.hasNoText (m_sUserID))
       throw new OpenAS2Exception ("missing userid parameter");
 
-    m_sPassword = aParameters.getAttributeAsString ("password");
+    m_sPassword = aParameters.getAttributeAsString (PARAM_PASSWORD);
     if (StringHelper.hasNoText (m_sPassword))
       throw new OpenAS2Exception ("missing password parameter");
 
+    m_nMaxInFlight = Math.max (1, getIntParameter (aParameters, PARAM_MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT));
+    m_nSessionTimeout = getIntParameter (aParameters, PARAM_SESSION_TIMEOUT, DEFAULT_SESSION_TIMEOUT);
+    m_nMaxRequestSize = Math.max (1, getIntParameter (aParameters, PARAM_MAX_REQUEST_SIZE, DEFAULT_MAX_REQUEST_SIZE));
+    m_aSessionExecutor = createWorkerPool (aParameters, "SocketSessionWorker");
+    initResultSerializer (aParameters);
+  }
+
+  /**
+   * Open the server socket this processor is listening on.
+   *
+   * @param nPort
+   *        The port to listen on
+   * @param aParameters
+   *        All configuration parameters
+   * @throws IOException
+   *         If the socket cannot be opened
+   * @throws OpenAS2Exception
+   *         If the configuration is invalid
+   */
+  protected void initServerSocket (final int nPort, @Nonnull final StringMap aParameters) throws IOException,
+                                                                                         OpenAS2Exception
+  {
+    final SocketTLSConfig aTLSConfig = SocketTLSConfig.create (aParameters);
+    final SSLServerSocketFactory aSSLServerSocketFactory = aTLSConfig.getSSLContext ().getServerSocketFactory ();
+    m_aSSLServerSocket = (SSLServerSocket) aSSLServerSocketFactory.createServerSocket (nPort);
+    aTLSConfig.configure (m_aSSLServerSocket);
+
+    final String sThreading = aParameters.getAttributeAsString (PARAM_THREADING);
+    if (sThreading == null || sThreading.equalsIgnoreCase (THREADING_SINGLE))
+      m_aConnectionExecutor = null;
+    else
+      if (sThreading.equalsIgnoreCase (THREADING_VIRTUAL))
+      {
+        m_aConnectionExecutor = createVirtualThreadExecutor ();
+        if (m_aConnectionExecutor == null)
+        {
+          s_aLogger.warn ("Virtual threads are not supported by this JDK - using a thread pool instead");
+          m_aConnectionExecutor = createWorkerPool (aParameters, "SocketCommandWorker");
+        }
+      }
+      else
+        if (sThreading.equalsIgnoreCase (THREADING_POOL))
+          m_aConnectionExecutor = createWorkerPool (aParameters, "SocketCommandWorker");
+        else
+          throw new OpenAS2Exception ("Invalid " + PARAM_THREADING + " parameter '" + sThreading + "'");
+  }
+
+  protected static int getIntParameter (@Nonnull final StringMap aParameters,
+                                        @Nonnull final String sName,
+                                        final int nDefault) throws OpenAS2Exception
+  {
+    final String sValue = aParameters.getAttributeAsString (sName);
+    if (sValue == null)
+      return nDefault;
     try
     {
-      m_aParser = new SocketCommandParser ();
+      return Integer.parseInt (sValue);
     }
-    catch (final Exception e)
+    catch (final NumberFormatException ex)
     {
-      throw new OpenAS2Exception (e);
+      throw new OpenAS2Exception ("error converting " + sName + " parameter '" + sValue + "': " + ex);
     }
   }
 
-  @Override
-  public void processCommand () throws OpenAS2Exception
+  /**
+   * Create a bounded pool of daemon threads based on the <code>workers</code>
+   * and <code>queuesize</code> parameters.
+   *
+   * @param aParameters
+   *        The configuration parameters
+   * @param sThreadNamePrefix
+   *        The prefix for the thread names
+   * @return The new executor. Never <code>null</code>.
+   * @throws OpenAS2Exception
+   *         In case of invalid parameters
+   */
+  @Nonnull
+  protected static ThreadPoolExecutor createWorkerPool (@Nonnull final StringMap aParameters,
+                                                        @Nonnull final String sThreadNamePrefix) throws OpenAS2Exception
+  {
+    final int nWorkers = Math.max (1,
+                                   getIntParameter (aParameters,
+                                                    PARAM_WORKERS,
+                                                    Runtime.getRuntime ().availableProcessors ()));
+    final int nQueueSize = Math.max (1, getIntParameter (aParameters, PARAM_QUEUE_SIZE, DEFAULT_QUEUE_SIZE));
+    return new ThreadPoolExecutor (nWorkers,
+                                   nWorkers,
+                                   60,
+                                   TimeUnit.SECONDS,
+                                   new ArrayBlockingQueue <Runnable> (nQueueSize),
+                                   new ThreadFactory ()
+                                   {
+                                     private final AtomicInteger m_aCount = new AtomicInteger (0);
+
+                                     public Thread newThread (final Runnable aRunnable)
+                                     {
+                                       final Thread aThread = new Thread (aRunnable, sThreadNamePrefix +
+                                                                                     "-" +
+                                                                                     m_aCount.incrementAndGet ());
+                                       aThread.setDaemon (true);
+                                       return aThread;
+                                     }
+                                   });
+  }
+
+  /**
+   * @return An executor creating a new virtual thread per task or
+   *         <code>null</code> if the running JDK does not support virtual
+   *         threads.
+   */
+  @Nullable
+  protected static ExecutorService createVirtualThreadExecutor ()
   {
-    SSLSocket socket = null;
     try
     {
-      socket = (SSLSocket) m_aSSLServerSocket.accept ();
-      socket.setSoTimeout (2000);
-      m_aReader = new BufferedReader (new InputStreamReader (socket.getInputStream ()));
-      m_aWriter = new BufferedWriter (new OutputStreamWriter (socket.getOutputStream ()));
-
-      final String line = m_aReader.readLine ();
+      // Only available in Java 21+
+      final Method aFactory = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) aFactory.invoke (null);
+    }
+    catch (final Exception ex)
+    {
+      return null;
+    }
+  }
 
-      m_aParser.parse (line);
+  /**
+   * @return A new parser for a single connection, limited to the configured
+   *         maximum request size.
+   */
+  @Nonnull
+  protected SocketCommandParser createParser ()
+  {
+    return new SocketCommandParser (m_nMaxRequestSize);
+  }
 
-      if (!m_aParser.getUserid ().equals (m_sUserID))
-      {
-        m_aWriter.write ("Bad userid/password");
-        throw new OpenAS2Exception ("Bad userid");
-      }
+  private void _checkCredentials (@Nonnull final SocketCommandParser aParser, @Nonnull final Writer aWriter) throws IOException,
+                                                                                                           OpenAS2Exception
+  {
+    if (!m_sUserID.equals (aParser.getUserid ()))
+    {
+      aWriter.write ("Bad userid/password");
+      throw new OpenAS2Exception ("Bad userid");
+    }
 
-      if (!m_aParser.getPassword ().equals (m_sPassword))
-      {
-        m_aWriter.write ("Bad userid/password");
-        throw new OpenAS2Exception ("Bad password");
-      }
+    if (!m_sPassword.equals (aParser.getPassword ()))
+    {
+      aWriter.write ("Bad userid/password");
+      throw new OpenAS2Exception ("Bad password");
+    }
+  }
 
-      final String str = m_aParser.getCommandText ();
-      if (str != null && str.length () > 0)
-      {
-        final CommandTokenizer cmdTkn = new CommandTokenizer (str);
+  /**
+   * Authenticate and execute a single request line and write the response.
+   * May be called concurrently from different threads.
+   *
+   * @param sLine
+   *        The request line in the format
+   *        <code>&lt;command id="..." password="..."&gt;...&lt;/command&gt;</code>
+   * @param aWriter
+   *        The writer to write the response to. Not flushed.
+   * @throws IOException
+   *         In case writing fails
+   * @throws OpenAS2Exception
+   *         In case of an invalid request or wrong credentials
+   */
+  protected void handleRequest (@Nullable final String sLine, @Nonnull final Writer aWriter) throws IOException,
+                                                                                           OpenAS2Exception
+  {
+    final SocketCommandParser aParser = createParser ();
+    aParser.parse (sLine);
+    _checkCredentials (aParser, aWriter);
+    executeCommandText (aParser.getCommandChars (), aWriter);
+  }
 
-        if (cmdTkn.hasMoreTokens ())
-        {
-          final String commandName = cmdTkn.nextToken ().toLowerCase ();
+  @Nonnull
+  private static String _escapeAttr (@Nullable final String sValue)
+  {
+    if (sValue == null)
+      return "";
+    return sValue.replace ("&", "&amp;").replace ("\"", "&quot;").replace ("<", "&lt;");
+  }
 
-          if (commandName.equals (StreamCommandProcessor.EXIT_COMMAND))
-          {
-            terminate ();
-          }
-          else
-          {
-            final List <String> params = new ArrayList <String> ();
+  /**
+   * Serve a persistent session: the client authenticated once and now sends
+   * one command per line. Commands are executed concurrently and answered as
+   * soon as they are done.
+   *
+   * @param aSocket
+   *        The connection socket
+   * @param aWriter
+   *        The writer of the connection
+   * @param aParser
+   *        The parser of the connection, containing the session start element
+   * @throws IOException
+   *         In case of an I/O error
+   * @throws OpenAS2Exception
+   *         In case of wrong credentials
+   */
+  protected void handleSession (@Nonnull final SSLSocket aSocket,
+                                @Nonnull final Writer aWriter,
+                                @Nonnull final SocketCommandParser aParser) throws IOException, OpenAS2Exception
+  {
+    _checkCredentials (aParser, aWriter);
+    aWriter.write ("<session status=\"OK\"/>\r\n");
+    aWriter.flush ();
+    aSocket.setSoTimeout (m_nSessionTimeout);
 
-            while (cmdTkn.hasMoreTokens ())
-            {
-              params.add (cmdTkn.nextToken ());
-            }
+    final Semaphore aInFlight = new Semaphore (m_nMaxInFlight);
+    try
+    {
+      while (!isTerminated ())
+      {
+        try
+        {
+          if (!aParser.next ())
+            break;
+        }
+        catch (final OpenAS2Exception ex)
+        {
+          // The position in the stream is undefined - end the session
+          _writeResponse (aWriter, aParser.getRequestID (), CommandResult.TYPE_ERROR, ex.getMessage ());
+          break;
+        }
 
-            final ICommand cmd = getCommand (commandName);
+        final String sFinalRID = aParser.getRequestID ();
+        final String sFinalCommandText = aParser.getCommandText ();
 
-            if (cmd != null)
+        // Limit the number of concurrently executed commands per session
+        aInFlight.acquire ();
+        try
+        {
+          m_aSessionExecutor.execute (new Runnable ()
+          {
+            public void run ()
             {
-              final CommandResult result = cmd.execute (params.toArray ());
-
-              if (result.getType () == CommandResult.TYPE_OK)
+              try
               {
-                m_aWriter.write (result.toXML ());
+                final StringWriter aSW = new StringWriter ();
+                final String sType = executeCommandText (sFinalCommandText, aSW);
+                _writeResponse (aWriter, sFinalRID, sType, aSW.toString ());
               }
-              else
+              catch (final IOException ex)
               {
-                m_aWriter.write ("\r\n" + StreamCommandProcessor.COMMAND_ERROR + "\r\n");
-                m_aWriter.write (result.getResult ());
+                s_aLogger.debug ("Failed to write session response", ex);
+              }
+              finally
+              {
+                aInFlight.release ();
               }
             }
-            else
-            {
-              m_aWriter.write (StreamCommandProcessor.COMMAND_NOT_FOUND + "> " + commandName + "\r\n");
-              m_aWriter.write ("List of commands:" + "\r\n");
-              for (final ICommand aCurCmd : getAllCommands ())
-                m_aWriter.write (aCurCmd.getName () + "\r\n");
-            }
+          });
+        }
+        catch (final RejectedExecutionException ex)
+        {
+          aInFlight.release ();
+          _writeResponse (aWriter, sFinalRID, CommandResult.TYPE_ERROR, "Server busy");
+        }
+      }
+
+      // Wait until all pending commands were answered
+      aInFlight.acquire (m_nMaxInFlight);
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  private static void _writeResponse (@Nonnull final Writer aWriter,
+                                      @Nullable final String sRID,
+                                      @Nonnull final String sType,
+                                      @Nonnull final String sBody) throws IOException
+  {
+    final String sResponse = "<response rid=\"" +
+                             _escapeAttr (sRID) +
+                             "\" type=\"" +
+                             _escapeAttr (sType) +
+                             "\">" +
+                             sBody +
+                             "</response>\r\n";
+    // Responses of concurrently executed commands must not interleave
+    synchronized (aWriter)
+    {
+      aWriter.write (sResponse);
+      aWriter.flush ();
+    }
+  }
+
+  @Override
+  public void processCommand () throws OpenAS2Exception
+  {
+    final SSLSocket socket;
+    try
+    {
+      socket = (SSLSocket) m_aSSLServerSocket.accept ();
+    }
+    catch (final IOException ioe)
+    {
+      // The server socket is closed on termination
+      if (!isTerminated ())
+        ioe.printStackTrace ();
+      return;
+    }
+
+    if (m_aConnectionExecutor == null)
+    {
+      handleConnection (socket);
+      return;
+    }
+
+    // The accept loop never executes commands itself
+    try
+    {
+      m_aConnectionExecutor.execute (new Runnable ()
+      {
+        public void run ()
+        {
+          try
+          {
+            handleConnection (socket);
+          }
+          catch (final OpenAS2Exception ex)
+          {
+            s_aLogger.warn ("Failed to process socket command: " + ex.getMessage ());
           }
         }
+      });
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      s_aLogger.warn ("Too many pending socket commands - rejecting connection");
+      StreamUtils.close (socket);
+    }
+  }
 
+  /**
+   * Read, execute and answer the request of a single accepted connection and
+   * close the connection afterwards.
+   *
+   * @param socket
+   *        The accepted socket
+   * @throws OpenAS2Exception
+   *         In case of an invalid request
+   */
+  protected void handleConnection (@Nonnull final SSLSocket socket) throws OpenAS2Exception
+  {
+    try
+    {
+      socket.setSoTimeout (2000);
+      final BufferedWriter aWriter = new BufferedWriter (new OutputStreamWriter (socket.getOutputStream (), CHARSET));
+
+      // The parser buffers the input itself
+      final SocketCommandParser aParser = createParser ();
+      aParser.setSource (new InputStreamReader (socket.getInputStream (), CHARSET));
+      aParser.next ();
+      if (aParser.isSessionStart ())
+      {
+        // A session would block the accept thread for all other clients
+        if (m_aConnectionExecutor == null)
+          aWriter.write ("<session status=\"ERROR\">Sessions are not supported with " +
+                         PARAM_THREADING +
+                         "=\"" +
+                         THREADING_SINGLE +
+                         "\"</session>\r\n");
+        else
+          handleSession (socket, aWriter, aParser);
       }
-      m_aWriter.flush ();
+      else
+      {
+        _checkCredentials (aParser, aWriter);
+        executeCommandText (aParser.getCommandChars (), aWriter);
+      }
+      aWriter.flush ();
     }
     catch (final IOException ioe)
     {
       ioe.printStackTrace ();
     }
-    catch (final SAXException e)
+    catch (final OpenAS2Exception e)
     {
-      throw new OpenAS2Exception (e);
+      throw e;
     }
     catch (final Exception e)
     {
@@ -221,9 +556,11 @@ public class SocketCommandProcessor extends AbstractCommandProcessor
   @Override
   public void run ()
   {
+    if (!markStarted ())
+      return;
     try
     {
-      while (true)
+      while (!isTerminated ())
       {
         processCommand ();
       }
@@ -232,5 +569,50 @@ public class SocketCommandProcessor extends AbstractCommandProcessor
     {
       e.printStackTrace ();
     }
+    finally
+    {
+      releaseResources ();
+    }
+  }
+
+  private void _closeServerSocket ()
+  {
+    final SSLServerSocket aServerSocket = m_aSSLServerSocket;
+    if (aServerSocket != null)
+      try
+      {
+        aServerSocket.close ();
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.warn ("Failed to close the command server socket", ex);
+      }
+  }
+
+  @Override
+  public void terminate ()
+  {
+    super.terminate ();
+    // Unblock the accepting thread
+    _closeServerSocket ();
+  }
+
+  @Override
+  protected void releaseResources ()
+  {
+    _closeServerSocket ();
+    shutdownExecutors ();
+  }
+
+  /**
+   * Shut down the worker pools created by this class. Called by
+   * {@link #releaseResources()}.
+   */
+  protected void shutdownExecutors ()
+  {
+    if (m_aConnectionExecutor != null)
+      m_aConnectionExecutor.shutdown ();
+    if (m_aSessionExecutor != null)
+      m_aSessionExecutor.shutdown ();
   }
 }
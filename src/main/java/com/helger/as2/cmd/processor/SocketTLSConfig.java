@@ -0,0 +1,254 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd.processor;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.exception.OpenAS2Exception;
+import com.helger.as2lib.util.StringMap;
+import com.phloc.commons.io.streams.StreamUtils;
+
+/**
+ * TLS configuration of the socket based command processors.<br>
+ * If the parameter <code>keystore</code> is present, an {@link SSLContext} is
+ * built from that keystore (<code>keystoretype</code>, default PKCS12,
+ * <code>keystorepassword</code>) and the protocols in <code>protocols</code>
+ * (default <code>TLSv1.2,TLSv1.3</code>) as well as the optional
+ * <code>ciphersuites</code> are enabled. Server side session caching is
+ * configured via <code>tlssessioncachesize</code> and
+ * <code>tlssessiontimeout</code> (seconds) so that reconnecting clients can
+ * resume their sessions; JDKs supporting stateless session tickets use them
+ * by default.<br>
+ * Without a keystore the server refuses to start, unless the legacy
+ * anonymous cipher suite is explicitly allowed via
+ * <code>allowlegacyanon="true"</code>. That suite neither authenticates the
+ * server nor provides adequate encryption.
+ */
+@Immutable
+public final class SocketTLSConfig
+{
+  public static final String PARAM_KEYSTORE = "keystore";
+  public static final String PARAM_KEYSTORE_TYPE = "keystoretype";
+  public static final String PARAM_KEYSTORE_PASSWORD = "keystorepassword";
+  public static final String PARAM_PROTOCOLS = "protocols";
+  public static final String PARAM_CIPHER_SUITES = "ciphersuites";
+  public static final String PARAM_TLS_SESSION_CACHE_SIZE = "tlssessioncachesize";
+  public static final String PARAM_TLS_SESSION_TIMEOUT = "tlssessiontimeout";
+  public static final String PARAM_ALLOW_LEGACY_ANON = "allowlegacyanon";
+
+  public static final String DEFAULT_KEYSTORE_TYPE = "PKCS12";
+  public static final String DEFAULT_PROTOCOLS = "TLSv1.2,TLSv1.3";
+  public static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 1000;
+  public static final int DEFAULT_TLS_SESSION_TIMEOUT = 24 * 60 * 60;
+  /** The only cipher suite supported by the legacy command line clients */
+  public static final String [] LEGACY_CIPHER_SUITES = { "SSL_DH_anon_WITH_RC4_128_MD5" };
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (SocketTLSConfig.class);
+
+  private final SSLContext m_aSSLContext;
+  private final String [] m_aProtocols;
+  private final String [] m_aCipherSuites;
+
+  private SocketTLSConfig (@Nonnull final SSLContext aSSLContext,
+                           @Nullable final String [] aProtocols,
+                           @Nonnull final String [] aCipherSuites)
+  {
+    m_aSSLContext = aSSLContext;
+    m_aProtocols = aProtocols;
+    m_aCipherSuites = aCipherSuites;
+  }
+
+  @Nonnull
+  public SSLContext getSSLContext ()
+  {
+    return m_aSSLContext;
+  }
+
+  public void configure (@Nonnull final SSLServerSocket aServerSocket)
+  {
+    if (m_aProtocols != null)
+      aServerSocket.setEnabledProtocols (m_aProtocols);
+    aServerSocket.setEnabledCipherSuites (m_aCipherSuites);
+  }
+
+  public void configure (@Nonnull final SSLEngine aEngine)
+  {
+    aEngine.setUseClientMode (false);
+    if (m_aProtocols != null)
+      aEngine.setEnabledProtocols (m_aProtocols);
+    aEngine.setEnabledCipherSuites (m_aCipherSuites);
+  }
+
+  @Nullable
+  private static String [] _split (@Nullable final String sValue)
+  {
+    if (sValue == null)
+      return null;
+    final List <String> ret = new ArrayList <String> ();
+    for (final String sPart : sValue.split (","))
+      if (sPart.trim ().length () > 0)
+        ret.add (sPart.trim ());
+    return ret.toArray (new String [ret.size ()]);
+  }
+
+  /**
+   * Keep only the requested values that are supported.
+   */
+  @Nonnull
+  private static String [] _filter (@Nonnull final String [] aRequested,
+                                    @Nonnull final String [] aSupported,
+                                    @Nonnull final String sWhat) throws OpenAS2Exception
+  {
+    final Set <String> aSupportedSet = new TreeSet <String> (Arrays.asList (aSupported));
+    final List <String> ret = new ArrayList <String> ();
+    for (final String sRequested : aRequested)
+      if (aSupportedSet.contains (sRequested))
+        ret.add (sRequested);
+      else
+        s_aLogger.warn ("Ignoring unsupported TLS " + sWhat + " '" + sRequested + "'");
+    if (ret.isEmpty ())
+      throw new OpenAS2Exception ("None of the configured TLS " + sWhat + "s is supported");
+    return ret.toArray (new String [ret.size ()]);
+  }
+
+  @Nonnull
+  public static SocketTLSConfig create (@Nonnull final StringMap aParameters) throws OpenAS2Exception
+  {
+    final String sKeyStore = aParameters.getAttributeAsString (PARAM_KEYSTORE);
+    if (sKeyStore == null)
+    {
+      // Legacy mode - only if explicitly requested
+      if (!"true".equalsIgnoreCase (aParameters.getAttributeAsString (PARAM_ALLOW_LEGACY_ANON)))
+        throw new OpenAS2Exception ("No TLS " +
+                                    PARAM_KEYSTORE +
+                                    " configured for the command processor. Configure a keystore or set " +
+                                    PARAM_ALLOW_LEGACY_ANON +
+                                    "=\"true\" to use the insecure legacy anonymous cipher suite");
+
+      final SSLContext aSSLContext;
+      try
+      {
+        aSSLContext = SSLContext.getInstance ("TLS");
+        aSSLContext.init (null, null, null);
+      }
+      catch (final Exception ex)
+      {
+        throw new OpenAS2Exception (ex);
+      }
+      final String [] aCipherSuites = _filter (LEGACY_CIPHER_SUITES,
+                                               aSSLContext.getSupportedSSLParameters ().getCipherSuites (),
+                                               "cipher suite");
+      s_aLogger.warn ("**********************************************************************");
+      s_aLogger.warn ("* INSECURE: the command processor uses the legacy anonymous cipher   *");
+      s_aLogger.warn ("* suite. The server is not authenticated and the traffic is weakly   *");
+      s_aLogger.warn ("* encrypted. Configure a keystore to enable modern TLS.              *");
+      s_aLogger.warn ("**********************************************************************");
+      return new SocketTLSConfig (aSSLContext, null, aCipherSuites);
+    }
+
+    final String sPassword = aParameters.getAttributeAsString (PARAM_KEYSTORE_PASSWORD);
+    final char [] aPassword = sPassword == null ? new char [0] : sPassword.toCharArray ();
+    String sKeyStoreType = aParameters.getAttributeAsString (PARAM_KEYSTORE_TYPE);
+    if (sKeyStoreType == null)
+      sKeyStoreType = DEFAULT_KEYSTORE_TYPE;
+
+    final SSLContext aSSLContext;
+    InputStream aIS = null;
+    try
+    {
+      final KeyStore aKeyStore = KeyStore.getInstance (sKeyStoreType);
+      aIS = new FileInputStream (sKeyStore);
+      aKeyStore.load (aIS, aPassword);
+
+      final KeyManagerFactory aKMF = KeyManagerFactory.getInstance (KeyManagerFactory.getDefaultAlgorithm ());
+      aKMF.init (aKeyStore, aPassword);
+
+      aSSLContext = SSLContext.getInstance ("TLS");
+      aSSLContext.init (aKMF.getKeyManagers (), null, null);
+    }
+    catch (final Exception ex)
+    {
+      throw new OpenAS2Exception ("Failed to initialize TLS from keystore '" + sKeyStore + "': " + ex.getMessage ());
+    }
+    finally
+    {
+      StreamUtils.close (aIS);
+    }
+
+    // Enable session resumption
+    final SSLSessionContext aSessionContext = aSSLContext.getServerSessionContext ();
+    if (aSessionContext != null)
+    {
+      aSessionContext.setSessionCacheSize (SocketCommandProcessor.getIntParameter (aParameters,
+                                                                                  PARAM_TLS_SESSION_CACHE_SIZE,
+                                                                                  DEFAULT_TLS_SESSION_CACHE_SIZE));
+      aSessionContext.setSessionTimeout (SocketCommandProcessor.getIntParameter (aParameters,
+                                                                                PARAM_TLS_SESSION_TIMEOUT,
+                                                                                DEFAULT_TLS_SESSION_TIMEOUT));
+    }
+
+    final String [] aSupportedProtocols = aSSLContext.getSupportedSSLParameters ().getProtocols ();
+    String sProtocols = aParameters.getAttributeAsString (PARAM_PROTOCOLS);
+    if (sProtocols == null)
+      sProtocols = DEFAULT_PROTOCOLS;
+    final String [] aProtocols = _filter (_split (sProtocols), aSupportedProtocols, "protocol");
+
+    final String [] aRequestedSuites = _split (aParameters.getAttributeAsString (PARAM_CIPHER_SUITES));
+    final String [] aCipherSuites = aRequestedSuites == null ? aSSLContext.getDefaultSSLParameters ()
+                                                                          .getCipherSuites ()
+                                                             : _filter (aRequestedSuites,
+                                                                        aSSLContext.getSupportedSSLParameters ()
+                                                                                   .getCipherSuites (),
+                                                                        "cipher suite");
+    return new SocketTLSConfig (aSSLContext, aProtocols, aCipherSuites);
+  }
+}
@@ -44,19 +44,29 @@ import java.util.Locale;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.helger.as2.cmd.CommandResult;
+import com.helger.as2.cmd.CommandResultSerializers;
 import com.helger.as2.cmd.ICommand;
 import com.helger.as2.util.CommandTokenizer;
+import com.helger.as2lib.ISession;
 import com.helger.as2lib.exception.OpenAS2Exception;
 import com.helger.as2lib.exception.WrappedException;
-import com.phloc.commons.concurrent.ThreadUtils;
+import com.helger.as2lib.util.IStringMap;
+import com.helger.as2lib.util.StringMap;
 import com.phloc.commons.string.StringHelper;
 
 /**
  * original author unknown in this release made the process a thread so it can
  * be shared with other command processors like the SocketCommandProcessor
  * created innerclass CommandTokenizer so it could handle quotes and spaces
- * within quotes
+ * within quotes<br>
+ * When the end of the input stream is reached (e.g. stdin is closed when
+ * running as a service) only this processor ends - the server keeps running.<br>
+ * A line containing only "batch" starts a batch block. All lines up to a line
+ * containing only "end" are passed as one script to the batch command.
  * 
  * @author joseph mcverry
  */
@@ -65,14 +75,34 @@ public class StreamCommandProcessor extends AbstractCommandProcessor
   public static final String COMMAND_NOT_FOUND = "Error: command not found";
   public static final String COMMAND_ERROR = "Error executing command";
   public static final String EXIT_COMMAND = "exit";
+  /** Exit option to wait for in-flight messages before shutting down */
+  public static final String EXIT_DRAIN_OPTION = "--drain";
+  /** A line consisting of this command only starts a multi line batch block */
+  public static final String BATCH_COMMAND = "batch";
+  /** A line consisting of this word only ends a batch block */
+  public static final String BATCH_END = "end";
+  /** The batch command option passing the script of a batch block */
+  public static final String BATCH_SCRIPT_OPTION = "--script";
   public static final String PROMPT = "#>";
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (StreamCommandProcessor.class);
+
   private BufferedReader reader = null;
   private BufferedWriter writer = null;
+  private volatile boolean m_bEndOfStream = false;
 
   public StreamCommandProcessor ()
   {
     reader = new BufferedReader (new InputStreamReader (System.in));
     writer = new BufferedWriter (new OutputStreamWriter (System.out));
+    setResultSerializer (CommandResultSerializers.TEXT);
+  }
+
+  @Override
+  public void initDynamicComponent (@Nonnull final ISession aSession, @Nullable final IStringMap aParams) throws OpenAS2Exception
+  {
+    if (aParams != null)
+      initResultSerializer (new StringMap (aParams));
   }
 
   @Nonnull
@@ -92,7 +122,7 @@ public class StreamCommandProcessor extends AbstractCommandProcessor
   {
     try
     {
-      while (true)
+      while (!isTerminated () && !m_bEndOfStream)
         processCommand ();
     }
     catch (final OpenAS2Exception e)
@@ -115,37 +145,46 @@ public class StreamCommandProcessor extends AbstractCommandProcessor
         {
           final String sCommandName = aTokenizer.nextToken ().toLowerCase (Locale.US);
 
+          final List <String> aParams = new ArrayList <String> ();
+          while (aTokenizer.hasMoreTokens ())
+          {
+            aParams.add (aTokenizer.nextToken ());
+          }
+
           if (sCommandName.equals (EXIT_COMMAND))
           {
-            terminate ();
+            exit (aParams);
           }
           else
           {
-            final List <String> aParams = new ArrayList <String> ();
-            while (aTokenizer.hasMoreTokens ())
+
+            if (sCommandName.equals (BATCH_COMMAND) && aParams.isEmpty ())
             {
-              aParams.add (aTokenizer.nextToken ());
+              final String sScript = _readBatchBlock ();
+              if (sScript == null)
+              {
+                // Never apply a truncated batch
+                s_aLogger.warn ("End of command input stream reached within a batch block - batch discarded");
+                m_bEndOfStream = true;
+                return;
+              }
+              aParams.add (BATCH_SCRIPT_OPTION);
+              aParams.add (sScript);
             }
 
             final ICommand aCommand = getCommand (sCommandName);
             if (aCommand != null)
             {
               final CommandResult aResult = aCommand.execute (aParams.toArray ());
-              if (aResult.getType () == CommandResult.TYPE_OK)
-              {
-                writeLine (aResult.toString ());
-              }
-              else
-              {
-                writeLine (COMMAND_ERROR);
-                writeLine (aResult.getResult ());
-              }
+              final BufferedWriter aWriter = getWriter ();
+              getResultSerializer ().write (aResult, aWriter);
+              aWriter.flush ();
             }
             else
             {
               writeLine (COMMAND_NOT_FOUND + "> " + sCommandName);
               writeLine ("List of commands:");
-              writeLine (EXIT_COMMAND);
+              writeLine (EXIT_COMMAND + " [" + EXIT_DRAIN_OPTION + "]");
               for (final ICommand aCurCmd : getAllCommands ())
                 writeLine (aCurCmd.getName ());
             }
@@ -156,7 +195,9 @@ public class StreamCommandProcessor extends AbstractCommandProcessor
       }
       else
       {
-        ThreadUtils.sleep (100);
+        // End of input - nothing more to read
+        s_aLogger.info ("End of command input stream reached - stopping the stream command processor");
+        m_bEndOfStream = true;
       }
     }
     catch (final IOException ex)
@@ -165,6 +206,29 @@ public class StreamCommandProcessor extends AbstractCommandProcessor
     }
   }
 
+  /**
+   * Read all lines of a batch block up to the end line.
+   *
+   * @return The script or <code>null</code> if the end of the stream was
+   *         reached before the end line.
+   * @throws IOException
+   *         on read error
+   */
+  @Nullable
+  private String _readBatchBlock () throws IOException
+  {
+    final StringBuilder aScript = new StringBuilder ();
+    while (true)
+    {
+      final String sLine = readLine ();
+      if (sLine == null)
+        return null;
+      if (sLine.equalsIgnoreCase (BATCH_END))
+        return aScript.toString ();
+      aScript.append (sLine).append ('\n');
+    }
+  }
+
   @Nullable
   public String readLine () throws IOException
   {
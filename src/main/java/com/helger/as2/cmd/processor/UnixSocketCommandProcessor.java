@@ -0,0 +1,378 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd.processor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.ISession;
+import com.helger.as2lib.exception.OpenAS2Exception;
+import com.helger.as2lib.util.IStringMap;
+import com.helger.as2lib.util.StringMap;
+import com.phloc.commons.io.streams.StreamUtils;
+import com.phloc.commons.string.StringHelper;
+
+/**
+ * Command processor listening on a Unix domain socket for local
+ * administration without the TLS and TCP overhead of the
+ * {@link SocketCommandProcessor}. The request format is the same:
+ * <code>&lt;command id="abc" password="xyz"&gt;the actual command&lt;/command&gt;</code>
+ * and one request is handled per connection.<br>
+ * Access is controlled by the file system: the socket file is only readable
+ * and writable by the owner of the server process. It is created in a
+ * temporary directory only accessible by the owner and moved to its final
+ * path after its permissions were restricted, so it is never accessible by
+ * other users. An existing file at the path is only replaced if it is a stale
+ * socket. <code>userid</code> and <code>password</code> are optional and
+ * checked in addition if present.<br>
+ * Parameters:
+ * <ul>
+ * <li><code>path</code> - the path of the socket file (required)</li>
+ * <li><code>workers</code> and <code>queuesize</code> - size of the worker
+ * pool and its queue</li>
+ * <li><code>maxrequestsize</code> - maximum number of characters of a
+ * request (default: 1 MB)</li>
+ * </ul>
+ * Unix domain socket channels are available since Java 16 and are accessed via
+ * reflection.
+ */
+public class UnixSocketCommandProcessor extends AbstractCommandProcessor
+{
+  public static final String PARAM_PATH = "path";
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (UnixSocketCommandProcessor.class);
+
+  private File m_aSocketFile;
+  private ServerSocketChannel m_aServerChannel;
+  private ThreadPoolExecutor m_aWorkers;
+  private String m_sUserID;
+  private String m_sPassword;
+  private int m_nMaxRequestSize;
+
+  public UnixSocketCommandProcessor ()
+  {}
+
+  @Override
+  public void initDynamicComponent (@Nonnull final ISession aSession, @Nullable final IStringMap aParams) throws OpenAS2Exception
+  {
+    final StringMap aParameters = aParams == null ? new StringMap () : new StringMap (aParams);
+    final String sPath = aParameters.getAttributeAsString (PARAM_PATH);
+    if (StringHelper.hasNoText (sPath))
+      throw new OpenAS2Exception ("missing path parameter");
+
+    m_sUserID = aParameters.getAttributeAsString (SocketCommandProcessor.PARAM_USERID);
+    m_sPassword = aParameters.getAttributeAsString (SocketCommandProcessor.PARAM_PASSWORD);
+    m_nMaxRequestSize = Math.max (1, SocketCommandProcessor.getIntParameter (aParameters,
+                                                                            SocketCommandProcessor.PARAM_MAX_REQUEST_SIZE,
+                                                                            SocketCommandProcessor.DEFAULT_MAX_REQUEST_SIZE));
+
+    m_aSocketFile = new File (sPath).getAbsoluteFile ();
+    _removeStaleSocketFile (m_aSocketFile);
+    m_aServerChannel = _openPrivateServerChannel (m_aSocketFile);
+
+    m_aWorkers = SocketCommandProcessor.createWorkerPool (aParameters, "UnixSocketCommandWorker");
+    initResultSerializer (aParameters);
+  }
+
+  @Nonnull
+  private static SocketAddress _createAddress (@Nonnull final File aSocketFile) throws Exception
+  {
+    return (SocketAddress) Class.forName ("java.net.UnixDomainSocketAddress")
+                                .getMethod ("of", String.class)
+                                .invoke (null, aSocketFile.getPath ());
+  }
+
+  /**
+   * @return <code>true</code> if the passed file is a Unix domain socket,
+   *         <code>false</code> if it is not or if this cannot be determined
+   */
+  private static boolean _isSocketFile (@Nonnull final File aFile)
+  {
+    try
+    {
+      final Class <?> aLinkOptionClass = Class.forName ("java.nio.file.LinkOption");
+      final Object aOptions = Array.newInstance (aLinkOptionClass, 1);
+      Array.set (aOptions, 0, aLinkOptionClass.getField ("NOFOLLOW_LINKS").get (null));
+      final Object aPath = File.class.getMethod ("toPath").invoke (aFile);
+      final Object aMode = Class.forName ("java.nio.file.Files")
+                                .getMethod ("getAttribute",
+                                            Class.forName ("java.nio.file.Path"),
+                                            String.class,
+                                            aOptions.getClass ())
+                                .invoke (null, aPath, "unix:mode", aOptions);
+      // File type bits (S_IFMT) equal to S_IFSOCK
+      return aMode instanceof Integer && (((Integer) aMode).intValue () & 0170000) == 0140000;
+    }
+    catch (final Exception ex)
+    {
+      return false;
+    }
+  }
+
+  private static boolean _isListening (@Nonnull final File aSocketFile)
+  {
+    SocketChannel aChannel = null;
+    try
+    {
+      aChannel = SocketChannel.open (_createAddress (aSocketFile));
+      return true;
+    }
+    catch (final Exception ex)
+    {
+      return false;
+    }
+    finally
+    {
+      StreamUtils.close (aChannel);
+    }
+  }
+
+  /**
+   * Delete a socket file left over from a previous run, which prevents
+   * binding. Any other file is never deleted.
+   */
+  private static void _removeStaleSocketFile (@Nonnull final File aSocketFile) throws OpenAS2Exception
+  {
+    if (!aSocketFile.exists ())
+      return;
+    if (!_isSocketFile (aSocketFile))
+      throw new OpenAS2Exception ("Refusing to replace " + aSocketFile + " - it is not a socket file");
+    if (_isListening (aSocketFile))
+      throw new OpenAS2Exception ("Socket file " + aSocketFile + " is in use by another process");
+    if (!aSocketFile.delete ())
+      throw new OpenAS2Exception ("Failed to delete stale socket file " + aSocketFile);
+  }
+
+  /**
+   * Bind the socket in a new directory only accessible by the owner, restrict
+   * the permissions of the socket file and only then move it to its final
+   * path.
+   */
+  @Nonnull
+  private static ServerSocketChannel _openPrivateServerChannel (@Nonnull final File aSocketFile) throws OpenAS2Exception
+  {
+    final File aTmpDir = new File (aSocketFile.getParentFile (), "." + aSocketFile.getName () + "." + System.nanoTime ());
+    if (!aTmpDir.mkdir ())
+      throw new OpenAS2Exception ("Failed to create directory " + aTmpDir);
+    final File aTmpSocketFile = new File (aTmpDir, "s");
+    ServerSocketChannel ret = null;
+    try
+    {
+      if (!_restrictToOwner (aTmpDir, true))
+        throw new OpenAS2Exception ("Failed to restrict the permissions of " + aTmpDir);
+      ret = _openServerChannel (aTmpSocketFile);
+      if (!_restrictToOwner (aTmpSocketFile, false))
+        throw new OpenAS2Exception ("Failed to restrict the permissions of " + aTmpSocketFile);
+      if (!aTmpSocketFile.renameTo (aSocketFile))
+        throw new OpenAS2Exception ("Failed to move socket file to " + aSocketFile);
+      return ret;
+    }
+    catch (final OpenAS2Exception ex)
+    {
+      StreamUtils.close (ret);
+      aTmpSocketFile.delete ();
+      throw ex;
+    }
+    finally
+    {
+      aTmpDir.delete ();
+    }
+  }
+
+  @Nonnull
+  private static ServerSocketChannel _openServerChannel (@Nonnull final File aSocketFile) throws OpenAS2Exception
+  {
+    ServerSocketChannel aChannel = null;
+    try
+    {
+      final Class <?> aProtocolFamilyClass = Class.forName ("java.net.ProtocolFamily");
+      final Object aUnixFamily = Class.forName ("java.net.StandardProtocolFamily").getField ("UNIX").get (null);
+      final Object aAddress = _createAddress (aSocketFile);
+      aChannel = (ServerSocketChannel) ServerSocketChannel.class.getMethod ("open", aProtocolFamilyClass)
+                                                                .invoke (null, aUnixFamily);
+      ServerSocketChannel.class.getMethod ("bind", SocketAddress.class).invoke (aChannel, aAddress);
+      return aChannel;
+    }
+    catch (final InvocationTargetException ex)
+    {
+      StreamUtils.close (aChannel);
+      throw new OpenAS2Exception ("Failed to bind Unix domain socket " + aSocketFile + ": " + ex.getCause ());
+    }
+    catch (final Exception ex)
+    {
+      StreamUtils.close (aChannel);
+      throw new OpenAS2Exception ("Unix domain sockets are not supported by this JVM (Java 16 or later is required): " +
+                                  ex);
+    }
+  }
+
+  private static boolean _restrictToOwner (@Nonnull final File aFile, final boolean bExecutable)
+  {
+    return aFile.setReadable (false, false) &&
+           aFile.setReadable (true, true) &&
+           aFile.setWritable (false, false) &&
+           aFile.setWritable (true, true) &&
+           aFile.setExecutable (false, false) &&
+           (!bExecutable || aFile.setExecutable (true, true));
+  }
+
+  private boolean _isAuthorized (@Nonnull final SocketCommandParser aParser)
+  {
+    if (StringHelper.hasText (m_sUserID) && !m_sUserID.equals (aParser.getUserid ()))
+      return false;
+    if (StringHelper.hasText (m_sPassword) && !m_sPassword.equals (aParser.getPassword ()))
+      return false;
+    return true;
+  }
+
+  /**
+   * Read, execute and answer the request of a single accepted connection and
+   * close the connection afterwards.
+   * 
+   * @param aChannel
+   *        The accepted channel
+   */
+  protected void handleConnection (@Nonnull final SocketChannel aChannel)
+  {
+    try
+    {
+      final Writer aWriter = new BufferedWriter (new OutputStreamWriter (Channels.newOutputStream (aChannel),
+                                                                         SocketCommandProcessor.CHARSET));
+      final SocketCommandParser aParser = new SocketCommandParser (m_nMaxRequestSize);
+      aParser.setSource (new InputStreamReader (Channels.newInputStream (aChannel),
+                                                SocketCommandProcessor.CHARSET));
+      try
+      {
+        if (!aParser.next ())
+          return;
+        if (aParser.isSessionStart ())
+          aWriter.write ("Sessions are not supported");
+        else
+          if (!_isAuthorized (aParser))
+            aWriter.write ("Bad userid/password");
+          else
+            executeCommandText (aParser.getCommandChars (), aWriter);
+      }
+      catch (final OpenAS2Exception ex)
+      {
+        aWriter.write (ex.getMessage ());
+      }
+      aWriter.flush ();
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.debug ("Failed to handle Unix socket connection", ex);
+    }
+    finally
+    {
+      StreamUtils.close (aChannel);
+    }
+  }
+
+  @Override
+  public void terminate ()
+  {
+    super.terminate ();
+    // Unblock the accepting thread
+    StreamUtils.close (m_aServerChannel);
+  }
+
+  @Override
+  public void run ()
+  {
+    if (!markStarted ())
+      return;
+    try
+    {
+      while (!isTerminated ())
+      {
+        final SocketChannel aChannel = m_aServerChannel.accept ();
+        try
+        {
+          m_aWorkers.execute (new Runnable ()
+          {
+            public void run ()
+            {
+              handleConnection (aChannel);
+            }
+          });
+        }
+        catch (final RejectedExecutionException ex)
+        {
+          s_aLogger.warn ("Too many pending Unix socket connections - rejecting");
+          StreamUtils.close (aChannel);
+        }
+      }
+    }
+    catch (final ClosedChannelException ex)
+    {
+      // terminated
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.error ("Error accepting Unix socket connection", ex);
+    }
+    finally
+    {
+      releaseResources ();
+    }
+  }
+
+  @Override
+  protected void releaseResources ()
+  {
+    StreamUtils.close (m_aServerChannel);
+    m_aWorkers.shutdown ();
+    if (m_aSocketFile.exists () && !m_aSocketFile.delete ())
+      s_aLogger.warn ("Failed to delete socket file " + m_aSocketFile);
+  }
+}
@@ -0,0 +1,275 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.partner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.as2.util.CommandTokenizer;
+import com.helger.as2lib.exception.OpenAS2Exception;
+import com.phloc.commons.annotations.ReturnsMutableCopy;
+import com.phloc.commons.microdom.IMicroElement;
+import com.phloc.commons.microdom.impl.MicroDocument;
+
+/**
+ * A parsed batch script of partner and partnership modifications. The whole
+ * script is validated syntactically before anything is applied. Use
+ * {@link XMLPartnershipFactory#applyBatch(PartnershipBatch, boolean)} to apply
+ * all modifications at once.<br>
+ * Each line contains one of the following commands (the same syntax as the
+ * respective console commands):
+ *
+ * <pre>
+ * partner add name &lt;attribute=value&gt; ...
+ * partner delete name
+ * partnership add name senderId receiverId &lt;attribute=value&gt; ...
+ * partnership delete name
+ * partnership store
+ * </pre>
+ *
+ * Empty lines and lines starting with '#' are ignored. As a batch is always
+ * stored at most once, "partnership store" lines have no effect.
+ */
+@NotThreadSafe
+public class PartnershipBatch
+{
+  public static final char COMMENT_CHAR = '#';
+
+  static enum EOperationType
+  {
+    ADD_PARTNER,
+    DELETE_PARTNER,
+    ADD_PARTNERSHIP,
+    DELETE_PARTNERSHIP;
+  }
+
+  /**
+   * A single modification of the batch.
+   */
+  static final class Operation
+  {
+    private final int m_nLineNumber;
+    private final EOperationType m_eType;
+    private final String m_sName;
+    private final IMicroElement m_aElement;
+
+    Operation (final int nLineNumber,
+               @Nonnull final EOperationType eType,
+               @Nonnull final String sName,
+               @Nullable final IMicroElement aElement)
+    {
+      m_nLineNumber = nLineNumber;
+      m_eType = eType;
+      m_sName = sName;
+      m_aElement = aElement;
+    }
+
+    int getLineNumber ()
+    {
+      return m_nLineNumber;
+    }
+
+    @Nonnull
+    EOperationType getType ()
+    {
+      return m_eType;
+    }
+
+    @Nonnull
+    String getName ()
+    {
+      return m_sName;
+    }
+
+    /**
+     * @return The element as expected by the XML partnership factory. Only
+     *         present for the add operations.
+     */
+    @Nullable
+    IMicroElement getElement ()
+    {
+      return m_aElement;
+    }
+  }
+
+  private final List <Operation> m_aOperations = new ArrayList <Operation> ();
+
+  public PartnershipBatch ()
+  {}
+
+  /**
+   * Parse a complete batch script.
+   *
+   * @param aScript
+   *        The script to parse. May not be <code>null</code>.
+   * @return The parsed batch. Never <code>null</code>.
+   * @throws OpenAS2Exception
+   *         If any line of the script is invalid
+   */
+  @Nonnull
+  public static PartnershipBatch parse (@Nonnull final CharSequence aScript) throws OpenAS2Exception
+  {
+    final PartnershipBatch ret = new PartnershipBatch ();
+    final int nLength = aScript.length ();
+    int nLineNumber = 1;
+    int nLineStart = 0;
+    for (int i = 0; i <= nLength; ++i)
+      if (i == nLength || aScript.charAt (i) == '\n')
+      {
+        ret.addLine (nLineNumber, aScript.subSequence (nLineStart, i));
+        nLineNumber++;
+        nLineStart = i + 1;
+      }
+    return ret;
+  }
+
+  /**
+   * Parse and add a single script line.
+   *
+   * @param nLineNumber
+   *        The 1-based line number used in error messages
+   * @param aLine
+   *        The line to add. May not be <code>null</code>.
+   * @throws OpenAS2Exception
+   *         If the line is invalid
+   */
+  public void addLine (final int nLineNumber, @Nonnull final CharSequence aLine) throws OpenAS2Exception
+  {
+    final CommandTokenizer aTokenizer = new CommandTokenizer (aLine);
+    if (!aTokenizer.hasMoreTokens ())
+      return;
+
+    final String sGroup = aTokenizer.nextToken ();
+    if (sGroup.charAt (0) == COMMENT_CHAR)
+      return;
+
+    final List <String> aParams = new ArrayList <String> ();
+    while (aTokenizer.hasMoreTokens ())
+      aParams.add (aTokenizer.nextToken ());
+    if (aParams.isEmpty ())
+      throw _error (nLineNumber, "command is missing a sub command");
+
+    final String sCommand = sGroup.toLowerCase (Locale.US) + ' ' + aParams.remove (0).toLowerCase (Locale.US);
+    if (sCommand.equals ("partner add"))
+    {
+      if (aParams.isEmpty ())
+        throw _error (nLineNumber, "usage: partner add name <attribute=value> ...");
+      final IMicroElement eRoot = new MicroDocument ().appendElement ("partner");
+      eRoot.setAttribute ("name", aParams.get (0));
+      for (final String sAttr : aParams.subList (1, aParams.size ()))
+      {
+        final int nPos = _getAttributeSeparator (nLineNumber, sAttr);
+        eRoot.setAttribute (sAttr.substring (0, nPos), sAttr.substring (nPos + 1));
+      }
+      m_aOperations.add (new Operation (nLineNumber, EOperationType.ADD_PARTNER, aParams.get (0), eRoot));
+    }
+    else
+      if (sCommand.equals ("partner delete"))
+      {
+        if (aParams.size () != 1)
+          throw _error (nLineNumber, "usage: partner delete name");
+        m_aOperations.add (new Operation (nLineNumber, EOperationType.DELETE_PARTNER, aParams.get (0), null));
+      }
+      else
+        if (sCommand.equals ("partnership add"))
+        {
+          if (aParams.size () < 3)
+            throw _error (nLineNumber, "usage: partnership add name senderId receiverId <attribute=value> ...");
+          final IMicroElement eRoot = new MicroDocument ().appendElement ("partnership");
+          eRoot.setAttribute ("name", aParams.get (0));
+          eRoot.appendElement ("sender").setAttribute ("name", aParams.get (1));
+          eRoot.appendElement ("receiver").setAttribute ("name", aParams.get (2));
+          for (final String sAttr : aParams.subList (3, aParams.size ()))
+          {
+            final int nPos = _getAttributeSeparator (nLineNumber, sAttr);
+            eRoot.appendElement ("attribute")
+                 .setAttribute ("name", sAttr.substring (0, nPos))
+                 .setAttribute ("value", sAttr.substring (nPos + 1));
+          }
+          m_aOperations.add (new Operation (nLineNumber, EOperationType.ADD_PARTNERSHIP, aParams.get (0), eRoot));
+        }
+        else
+          if (sCommand.equals ("partnership delete"))
+          {
+            if (aParams.size () != 1)
+              throw _error (nLineNumber, "usage: partnership delete name");
+            m_aOperations.add (new Operation (nLineNumber, EOperationType.DELETE_PARTNERSHIP, aParams.get (0), null));
+          }
+          else
+            if (!sCommand.equals ("partnership store"))
+              throw _error (nLineNumber, "'" +
+                                         sCommand +
+                                         "' is not allowed in a batch - only partner and partnership add/delete are supported");
+  }
+
+  private static int _getAttributeSeparator (final int nLineNumber, @Nonnull final String sAttr) throws OpenAS2Exception
+  {
+    final int nPos = sAttr.indexOf ('=');
+    if (nPos == 0)
+      throw _error (nLineNumber, "parameter '" + sAttr + "' is missing a name");
+    if (nPos < 0)
+      throw _error (nLineNumber, "parameter '" + sAttr + "' is missing a value");
+    return nPos;
+  }
+
+  @Nonnull
+  private static OpenAS2Exception _error (final int nLineNumber, @Nonnull final String sMsg)
+  {
+    return new OpenAS2Exception ("Batch line " + nLineNumber + ": " + sMsg);
+  }
+
+  /**
+   * @return The number of modifications contained in this batch.
+   */
+  public int getOperationCount ()
+  {
+    return m_aOperations.size ();
+  }
+
+  public boolean isEmpty ()
+  {
+    return m_aOperations.isEmpty ();
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  List <Operation> getAllOperations ()
+  {
+    return new ArrayList <Operation> (m_aOperations);
+  }
+}
@@ -36,9 +36,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -57,6 +59,7 @@ import com.helger.as2lib.partner.Partnership;
 import com.helger.as2lib.util.IStringMap;
 import com.helger.as2lib.util.StringMap;
 import com.helger.as2lib.util.XMLUtil;
+import com.phloc.commons.annotations.ReturnsImmutableObject;
 import com.phloc.commons.microdom.IMicroDocument;
 import com.phloc.commons.microdom.IMicroElement;
 import com.phloc.commons.microdom.impl.MicroDocument;
@@ -66,7 +69,10 @@ import com.phloc.commons.string.StringHelper;
 
 /**
  * original author unknown this release added logic to store partnerships and
- * provide methods for partner/partnership command line processor
+ * provide methods for partner/partnership command line processor<br>
+ * Sorted snapshots of the partner and partnership names are kept for the list
+ * commands. Code modifying the partners or partnerships from outside this
+ * class must call {@link #invalidateSnapshots()} afterwards.
  *
  * @author joseph mcverry
  */
@@ -78,6 +84,9 @@ public class XMLPartnershipFactory extends AbstractPartnershipFactory implements
 
   private FileMonitor m_aFileMonitor;
   private Map <String, StringMap> m_aPartners;
+  private final AtomicLong m_aModCount = new AtomicLong (0);
+  private volatile List <String> m_aPartnerNameSnapshot;
+  private volatile List <String> m_aPartnershipNameSnapshot;
 
   public void setFileMonitor (final FileMonitor fileMonitor)
   {
@@ -121,6 +130,76 @@ public class XMLPartnershipFactory extends AbstractPartnershipFactory implements
   public void setPartners (final Map <String, StringMap> map)
   {
     m_aPartners = map;
+    invalidateSnapshots ();
+  }
+
+  /**
+   * Discard the sorted name snapshots after the partners or partnerships were
+   * modified.
+   */
+  public synchronized void invalidateSnapshots ()
+  {
+    m_aModCount.incrementAndGet ();
+    m_aPartnerNameSnapshot = null;
+    m_aPartnershipNameSnapshot = null;
+  }
+
+  /**
+   * @return An immutable, sorted snapshot of all partner names. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsImmutableObject
+  public List <String> getPartnerNameSnapshot ()
+  {
+    List <String> ret = m_aPartnerNameSnapshot;
+    if (ret == null)
+    {
+      final long nModCount = m_aModCount.get ();
+      final List <String> aNames;
+      synchronized (this)
+      {
+        aNames = new ArrayList <String> (getPartners ().keySet ());
+      }
+      Collections.sort (aNames);
+      ret = Collections.unmodifiableList (aNames);
+      // Only publish if no modification happened in the meantime
+      synchronized (this)
+      {
+        if (m_aModCount.get () == nModCount)
+          m_aPartnerNameSnapshot = ret;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return An immutable, sorted snapshot of all partnership names. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsImmutableObject
+  public List <String> getPartnershipNameSnapshot ()
+  {
+    List <String> ret = m_aPartnershipNameSnapshot;
+    if (ret == null)
+    {
+      final long nModCount = m_aModCount.get ();
+      final List <String> aNames = new ArrayList <String> ();
+      synchronized (this)
+      {
+        for (final Partnership aPartnership : getAllPartnerships ())
+          aNames.add (aPartnership.getName ());
+      }
+      Collections.sort (aNames);
+      ret = Collections.unmodifiableList (aNames);
+      synchronized (this)
+      {
+        if (m_aModCount.get () == nModCount)
+          m_aPartnershipNameSnapshot = ret;
+      }
+    }
+    return ret;
   }
 
   @Nonnull
@@ -200,6 +279,7 @@ public class XMLPartnershipFactory extends AbstractPartnershipFactory implements
     {
       setPartners (aNewPartners);
       setPartnerships (aNewPartnerships);
+      invalidateSnapshots ();
     }
   }
 
@@ -217,6 +297,7 @@ public class XMLPartnershipFactory extends AbstractPartnershipFactory implements
       throw new OpenAS2Exception ("Partner is defined more than once: '" + sName + "'");
 
     aPartners.put (sName, aNewPartner);
+    invalidateSnapshots ();
   }
 
   protected void loadPartnerIDs (@Nonnull final IMicroElement aElement,
@@ -283,6 +364,101 @@ public class XMLPartnershipFactory extends AbstractPartnershipFactory implements
     return aPartnership;
   }
 
+  /**
+   * Apply all modifications of the passed batch as one transaction. The
+   * modifications are applied on copies of the current partners and
+   * partnerships which replace the current ones only if all modifications
+   * succeeded. Otherwise nothing is changed.
+   *
+   * @param aBatch
+   *        The batch to apply. May not be <code>null</code>.
+   * @param bStore
+   *        <code>true</code> to store the partnerships once after the batch was
+   *        applied. If storing fails the previous state is restored.
+   * @throws OpenAS2Exception
+   *         If any modification is invalid or storing failed
+   */
+  public void applyBatch (@Nonnull final PartnershipBatch aBatch, final boolean bStore) throws OpenAS2Exception
+  {
+    synchronized (this)
+    {
+      final Map <String, StringMap> aOldPartners = getPartners ();
+      final List <Partnership> aOldPartnerships = new ArrayList <Partnership> (getAllPartnerships ());
+      final Map <String, StringMap> aNewPartners = new HashMap <String, StringMap> (aOldPartners);
+      final List <Partnership> aNewPartnerships = new ArrayList <Partnership> (aOldPartnerships);
+
+      for (final PartnershipBatch.Operation aOperation : aBatch.getAllOperations ())
+      {
+        try
+        {
+          _applyOperation (aOperation, aNewPartners, aNewPartnerships);
+        }
+        catch (final OpenAS2Exception ex)
+        {
+          throw new OpenAS2Exception ("Batch line " +
+                                      aOperation.getLineNumber () +
+                                      ": " +
+                                      ex.getMessage () +
+                                      " - no changes were applied");
+        }
+      }
+
+      setPartners (aNewPartners);
+      setPartnerships (aNewPartnerships);
+      invalidateSnapshots ();
+
+      if (bStore)
+      {
+        try
+        {
+          storePartnership ();
+        }
+        catch (final OpenAS2Exception ex)
+        {
+          // Roll back
+          setPartners (aOldPartners);
+          setPartnerships (aOldPartnerships);
+          invalidateSnapshots ();
+          throw ex;
+        }
+      }
+    }
+  }
+
+  private void _applyOperation (@Nonnull final PartnershipBatch.Operation aOperation,
+                                @Nonnull final Map <String, StringMap> aPartners,
+                                @Nonnull final List <Partnership> aPartnerships) throws OpenAS2Exception
+  {
+    final String sName = aOperation.getName ();
+    switch (aOperation.getType ())
+    {
+      case ADD_PARTNER:
+        loadPartner (aOperation.getElement (), aPartners);
+        break;
+      case DELETE_PARTNER:
+        if (!aPartners.containsKey (sName))
+          throw new OpenAS2Exception ("Unknown partner name '" + sName + "'");
+        for (final Partnership aPartnership : aPartnerships)
+          if (sName.equals (aPartnership.getSenderID ("name")) || sName.equals (aPartnership.getReceiverID ("name")))
+            throw new OpenAS2Exception ("Can not delete partner '" +
+                                        sName +
+                                        "'; it is tied to partnership '" +
+                                        aPartnership.getName () +
+                                        "'");
+        aPartners.remove (sName);
+        break;
+      case ADD_PARTNERSHIP:
+        aPartnerships.add (loadPartnership (aOperation.getElement (), aPartners, aPartnerships));
+        break;
+      case DELETE_PARTNERSHIP:
+        final Partnership aDeleted = getPartnershipOfName (aPartnerships, sName);
+        if (aDeleted == null)
+          throw new OpenAS2Exception ("Unknown partnership name '" + sName + "'");
+        aPartnerships.remove (aDeleted);
+        break;
+    }
+  }
+
   public void storePartnership () throws OpenAS2Exception
   {
     final String sFilename = getFilename ();
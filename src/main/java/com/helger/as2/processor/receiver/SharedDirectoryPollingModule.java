@@ -0,0 +1,146 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.processor.receiver;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2.processor.InFlightMessages;
+import com.helger.as2.util.DirectoryWatchEngine;
+import com.helger.as2lib.ISession;
+import com.helger.as2lib.exception.OpenAS2Exception;
+import com.helger.as2lib.processor.receiver.AS2DirectoryPollingModule;
+import com.helger.as2lib.util.IStringMap;
+
+/**
+ * Drop-in replacement for {@link AS2DirectoryPollingModule} that does not use
+ * a timer of its own. The outbox directory is watched by the shared
+ * {@link DirectoryWatchEngine}, so new files are sent within milliseconds
+ * while hundreds of outboxes need only a few threads. The
+ * <code>interval</code> parameter (seconds) is the interval of the periodic
+ * full rescan. The optional <code>pollthreads</code> parameter enlarges the
+ * thread pool shared by all outboxes (default
+ * {@link DirectoryWatchEngine#DEFAULT_POLL_THREADS}). Files are processed by
+ * the regular {@link AS2DirectoryPollingModule} pipeline. While a poll is
+ * running it is counted in {@link InFlightMessages}.<br>
+ * Opt-in: the shipped configuration still uses
+ * {@link AS2DirectoryPollingModule}; set this class name on the outbox modules
+ * to use it.
+ */
+public class SharedDirectoryPollingModule extends AS2DirectoryPollingModule
+{
+  public static final String PARAM_OUTBOX_DIRECTORY = "outboxdir";
+  public static final String PARAM_INTERVAL = "interval";
+  /** Minimum number of threads of the shared poll thread pool */
+  public static final String PARAM_POLL_THREADS = "pollthreads";
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (SharedDirectoryPollingModule.class);
+
+  private File m_aOutboxDir;
+  private long m_nRescanMillis;
+  private int m_nPollThreads;
+  private DirectoryWatchEngine.Registration m_aRegistration;
+
+  @Override
+  public void initDynamicComponent (@Nonnull final ISession aSession, @Nullable final IStringMap aParams) throws OpenAS2Exception
+  {
+    super.initDynamicComponent (aSession, aParams);
+    m_aOutboxDir = new File (getParameterRequired (PARAM_OUTBOX_DIRECTORY));
+    m_nRescanMillis = TimeUnit.SECONDS.toMillis (getParameterIntRequired (PARAM_INTERVAL));
+
+    final String sPollThreads = getAttributeAsString (PARAM_POLL_THREADS);
+    if (sPollThreads != null)
+      try
+      {
+        m_nPollThreads = Integer.parseInt (sPollThreads);
+      }
+      catch (final NumberFormatException ex)
+      {
+        s_aLogger.warn ("Invalid " + PARAM_POLL_THREADS + " value '" + sPollThreads + "'");
+      }
+  }
+
+  @Override
+  public void doStart ()
+  {
+    synchronized (this)
+    {
+      if (m_aRegistration == null)
+      {
+        final DirectoryWatchEngine aEngine = DirectoryWatchEngine.getDefaultInstance ();
+        if (m_nPollThreads > 0)
+          aEngine.ensurePollThreads (m_nPollThreads);
+        m_aRegistration = aEngine.register (m_aOutboxDir, m_nRescanMillis, new Runnable ()
+        {
+          public void run ()
+          {
+            poll ();
+          }
+        });
+      }
+    }
+  }
+
+  @Override
+  public void doStop ()
+  {
+    synchronized (this)
+    {
+      if (m_aRegistration != null)
+      {
+        DirectoryWatchEngine.getDefaultInstance ().unregister (m_aRegistration);
+        m_aRegistration = null;
+      }
+    }
+  }
+
+  @Override
+  public void poll ()
+  {
+    InFlightMessages.begin ();
+    try
+    {
+      super.poll ();
+    }
+    finally
+    {
+      InFlightMessages.end ();
+    }
+  }
+}
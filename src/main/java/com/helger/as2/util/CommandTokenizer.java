@@ -32,93 +32,182 @@
  */
 package com.helger.as2.util;
 
-import com.helger.as2lib.exception.WrappedException;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
 
 /**
- * emulates StringTokenizer
+ * emulates StringTokenizer<br>
+ * Tokens are separated by whitespace. Double quotes group a token containing
+ * whitespace; within quotes <code>\"</code> denotes a literal quote and
+ * <code>\\</code> a literal backslash. Every other backslash is kept as is, so
+ * that Windows paths need no escaping. A <code>\"</code> that is followed by
+ * whitespace or the end of the input and after which the remaining quotes
+ * pair up is the closing quote of a value ending with a backslash, e.g.
+ * <code>"C:\certs\"</code>.<br>
+ * The input is scanned once and tokens without escape sequences are returned
+ * as sub sequences of the input without copying character by character.
  * 
  * @author joseph mcverry
  */
+@NotThreadSafe
 public class CommandTokenizer
 {
-  private final String workString;
+  private final CharSequence workString;
   private int pos = 0;
-  private int len = -1;
+  private final int len;
+  // Number of quotes from position m_nQuoteCountFrom on - computed on demand
+  private int m_nQuoteCountFrom = -1;
+  private int m_nQuoteCount;
 
   /**
    * constructor
    * 
    * @param inString
+   *        The command line to tokenize
    */
-  public CommandTokenizer (final String inString)
+  public CommandTokenizer (@Nonnull final CharSequence inString)
   {
     workString = inString;
     len = workString.length ();
   }
 
+  private static boolean _isWhitespace (final char c)
+  {
+    return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+  }
+
+  private void _skipWhitespace ()
+  {
+    while (pos < len && _isWhitespace (workString.charAt (pos)))
+      pos++;
+  }
+
+  private int _getQuoteCountFrom (final int nFrom)
+  {
+    if (m_nQuoteCountFrom < 0)
+    {
+      m_nQuoteCount = 0;
+      for (int i = nFrom; i < len; ++i)
+        if (workString.charAt (i) == '"')
+          m_nQuoteCount++;
+    }
+    else
+    {
+      // Positions only move forward
+      for (int i = m_nQuoteCountFrom; i < nFrom; ++i)
+        if (workString.charAt (i) == '"')
+          m_nQuoteCount--;
+    }
+    m_nQuoteCountFrom = nFrom;
+    return m_nQuoteCount;
+  }
+
+  /**
+   * Check if the escaped looking quote at the passed position actually closes
+   * the quoted token, as in <code>"C:\certs\" alias</code>.
+   */
+  private boolean _isClosingQuote (final int nQuotePos)
+  {
+    final int nNext = nQuotePos + 1;
+    if (nNext < len && !_isWhitespace (workString.charAt (nNext)))
+      return false;
+    // The remaining quotes must form complete pairs
+    return _getQuoteCountFrom (nNext) % 2 == 0;
+  }
+
   /**
    * any more tokens in String
    * 
    * @return true if there are any more tokens
-   * @throws WrappedException
    */
-  public boolean hasMoreTokens () throws WrappedException
+  public boolean hasMoreTokens ()
   {
-    try
-    {
-      while (pos < len - 1 && workString.charAt (pos) == ' ')
-        pos++;
+    _skipWhitespace ();
+    return pos < len;
+  }
 
-      if (pos < len)
-        return true;
+  /**
+   * returns the next token, this handles spaces and quotes
+   * 
+   * @return a string, empty if there are no more tokens
+   */
+  @Nonnull
+  public String nextToken ()
+  {
+    _skipWhitespace ();
 
-      return false;
-    }
-    catch (final Exception e)
+    final int nStart = pos;
+    while (pos < len)
     {
-      throw new WrappedException (e);
+      final char c = workString.charAt (pos);
+      if (_isWhitespace (c))
+        break;
+      if (c == '"')
+        return _nextQuotedToken (nStart);
+      pos++;
     }
+    return workString.subSequence (nStart, pos).toString ();
   }
 
   /**
-   * returns the next token, this handles spaces and quotes
+   * Handle the rest of a token from the opening quote at the current position
+   * up to the closing quote.
    * 
-   * @return a string
-   * @throws WrappedException
+   * @param nStart
+   *        Start of the unquoted prefix of the token
+   * @return the token
    */
-  public String nextToken () throws WrappedException
+  @Nonnull
+  private String _nextQuotedToken (final int nStart)
   {
-
-    try
+    // pos is at the opening quote
+    StringBuilder aSB = null;
+    final int nPrefixEnd = pos;
+    pos++;
+    int nChunkStart = pos;
+    while (pos < len)
     {
-      while (pos < len - 1 && workString.charAt (pos) == ' ')
-        pos++;
-
-      final StringBuilder sb = new StringBuilder ();
-
-      while (pos < len && workString.charAt (pos) != ' ')
+      final char c = workString.charAt (pos);
+      if (c == '"')
+        break;
+      if (c == '\\' && pos + 1 < len)
       {
-
-        if (workString.charAt (pos) == '"')
+        final char cNext = workString.charAt (pos + 1);
+        if (cNext == '"' && _isClosingQuote (pos + 1))
         {
+          // Keep the trailing backslash
           pos++;
-          while (pos < len && workString.charAt (pos) != '"')
+          break;
+        }
+        if (cNext == '"' || cNext == '\\')
+        {
+          // Copy everything up to the backslash and skip it
+          if (aSB == null)
           {
-            sb.append (workString.charAt (pos));
-            pos++;
+            aSB = new StringBuilder (pos - nStart + 16);
+            aSB.append (workString, nStart, nPrefixEnd);
           }
+          aSB.append (workString, nChunkStart, pos);
           pos++;
-          return sb.toString ();
+          nChunkStart = pos;
         }
-        sb.append (workString.charAt (pos));
-        pos++;
       }
-
-      return sb.toString ();
+      pos++;
     }
-    catch (final Exception e)
+
+    final int nChunkEnd = pos;
+    // Skip the closing quote
+    if (pos < len)
+      pos++;
+
+    if (aSB == null)
     {
-      throw new WrappedException (e);
+      if (nStart == nPrefixEnd)
+        return workString.subSequence (nChunkStart, nChunkEnd).toString ();
+      return new StringBuilder (nChunkEnd - nStart).append (workString, nStart, nPrefixEnd)
+                                                    .append (workString, nChunkStart, nChunkEnd)
+                                                    .toString ();
     }
+    return aSB.append (workString, nChunkStart, nChunkEnd).toString ();
   }
 }
@@ -0,0 +1,312 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.util;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches many directories with a single scheduler thread. Instead of listing
+ * each directory on its own timer only the modification time of each
+ * directory is checked every few milliseconds. The poll action of a directory
+ * is run on a small shared thread pool when:
+ * <ul>
+ * <li>the directory was modified (a file was added, removed or renamed),</li>
+ * <li>during a few checks after a modification, so files that are still
+ * being written are picked up once they are complete, or</li>
+ * <li>the rescan interval of the directory elapsed (safety net, e.g. for file
+ * systems with a coarse modification time resolution).</li>
+ * </ul>
+ * At most one poll per directory runs at a time. If a poll is requested while
+ * the previous one is still running, the directory is polled again as soon as
+ * the running poll finished.<br>
+ * All directories share a pool of poll threads; use
+ * {@link #ensurePollThreads(int)} to enlarge it.
+ */
+@ThreadSafe
+public final class DirectoryWatchEngine
+{
+  public static final long DEFAULT_CHECK_MILLIS = 200;
+  /** Number of checks a directory is still polled after a modification */
+  public static final int DEFAULT_HOT_CHECKS = 10;
+  public static final int DEFAULT_POLL_THREADS = 4;
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (DirectoryWatchEngine.class);
+  private static DirectoryWatchEngine s_aDefaultInstance;
+
+  /**
+   * A single watched directory.
+   */
+  public static final class Registration
+  {
+    private final File m_aDirectory;
+    private final long m_nRescanNanos;
+    private final Runnable m_aPollAction;
+    private final AtomicBoolean m_aBusy = new AtomicBoolean (false);
+    // Another poll was requested while busy
+    private final AtomicBoolean m_aPending = new AtomicBoolean (false);
+    // Only accessed by the scheduler thread
+    private long m_nLastModified = -1;
+    private int m_nHotChecks;
+    private long m_nNextRescanNanos;
+
+    Registration (@Nonnull final File aDirectory, final long nRescanNanos, @Nonnull final Runnable aPollAction)
+    {
+      m_aDirectory = aDirectory;
+      m_nRescanNanos = nRescanNanos;
+      m_aPollAction = aPollAction;
+      m_nNextRescanNanos = System.nanoTime () + nRescanNanos;
+    }
+
+    @Nonnull
+    public File getDirectory ()
+    {
+      return m_aDirectory;
+    }
+  }
+
+  private final int m_nHotChecks;
+  private final List <Registration> m_aRegistrations = new CopyOnWriteArrayList <Registration> ();
+  private final ScheduledExecutorService m_aScheduler;
+  private final ThreadPoolExecutor m_aPollers;
+
+  @Nonnull
+  private static ThreadFactory _createThreadFactory (@Nonnull final String sPrefix)
+  {
+    return new ThreadFactory ()
+    {
+      private final AtomicInteger m_aCounter = new AtomicInteger (0);
+
+      public Thread newThread (final Runnable aRunnable)
+      {
+        final Thread ret = new Thread (aRunnable, sPrefix + m_aCounter.incrementAndGet ());
+        ret.setDaemon (true);
+        return ret;
+      }
+    };
+  }
+
+  public DirectoryWatchEngine (final long nCheckMillis, final int nHotChecks, final int nPollThreads)
+  {
+    m_nHotChecks = nHotChecks;
+    m_aScheduler = Executors.newSingleThreadScheduledExecutor (_createThreadFactory ("OpenAS2-dirwatch-"));
+    m_aPollers = new ThreadPoolExecutor (nPollThreads,
+                                         nPollThreads,
+                                         0L,
+                                         TimeUnit.MILLISECONDS,
+                                         new LinkedBlockingQueue <Runnable> (),
+                                         _createThreadFactory ("OpenAS2-dirpoll-"));
+    m_aScheduler.scheduleWithFixedDelay (new Runnable ()
+    {
+      public void run ()
+      {
+        try
+        {
+          _checkAll ();
+        }
+        catch (final RuntimeException ex)
+        {
+          s_aLogger.error ("Failed to check the watched directories", ex);
+        }
+      }
+    }, nCheckMillis, nCheckMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return The engine shared by all modules. Created on first use.
+   */
+  @Nonnull
+  public static synchronized DirectoryWatchEngine getDefaultInstance ()
+  {
+    if (s_aDefaultInstance == null)
+      s_aDefaultInstance = new DirectoryWatchEngine (DEFAULT_CHECK_MILLIS, DEFAULT_HOT_CHECKS, DEFAULT_POLL_THREADS);
+    return s_aDefaultInstance;
+  }
+
+  /**
+   * Start watching a directory. The poll action is run soon after
+   * registration to pick up already existing files.
+   *
+   * @param aDirectory
+   *        The directory to watch
+   * @param nRescanMillis
+   *        The interval of the periodic full rescan in milliseconds
+   * @param aPollAction
+   *        The action processing the directory content
+   * @return The registration to be used for {@link #unregister(Registration)}
+   */
+  @Nonnull
+  public Registration register (@Nonnull final File aDirectory,
+                                final long nRescanMillis,
+                                @Nonnull final Runnable aPollAction)
+  {
+    final Registration ret = new Registration (aDirectory,
+                                               TimeUnit.MILLISECONDS.toNanos (nRescanMillis),
+                                               aPollAction);
+    m_aRegistrations.add (ret);
+    return ret;
+  }
+
+  public void unregister (@Nonnull final Registration aRegistration)
+  {
+    m_aRegistrations.remove (aRegistration);
+  }
+
+  public int getRegistrationCount ()
+  {
+    return m_aRegistrations.size ();
+  }
+
+  /**
+   * @return The number of threads running the poll actions
+   */
+  public int getPollThreads ()
+  {
+    return m_aPollers.getMaximumPoolSize ();
+  }
+
+  /**
+   * Enlarge the pool of poll threads if it is smaller than the passed size.
+   * The pool is never shrunk, as it is shared by all registrations.
+   *
+   * @param nPollThreads
+   *        The minimum number of poll threads
+   */
+  public synchronized void ensurePollThreads (final int nPollThreads)
+  {
+    if (nPollThreads > m_aPollers.getMaximumPoolSize ())
+    {
+      // Maximum first, as the core size may not exceed it
+      m_aPollers.setMaximumPoolSize (nPollThreads);
+      m_aPollers.setCorePoolSize (nPollThreads);
+    }
+  }
+
+  /**
+   * Run the poll action of the passed registration on the pool.
+   *
+   * @return <code>true</code> if the poll was started, <code>false</code> if
+   *         the previous poll is still running and the poll was deferred until
+   *         it finished
+   */
+  private boolean _dispatch (@Nonnull final Registration aReg)
+  {
+    // Set before checking the busy flag, so a poll finishing concurrently
+    // either sees the flag or has already released the busy flag
+    aReg.m_aPending.set (true);
+    if (!aReg.m_aBusy.compareAndSet (false, true))
+      return false;
+    aReg.m_aPending.set (false);
+    try
+    {
+      m_aPollers.execute (new Runnable ()
+      {
+        public void run ()
+        {
+          try
+          {
+            aReg.m_aPollAction.run ();
+          }
+          catch (final RuntimeException ex)
+          {
+            s_aLogger.error ("Failed to poll directory " + aReg.m_aDirectory.getAbsolutePath (), ex);
+          }
+          finally
+          {
+            aReg.m_aBusy.set (false);
+          }
+          // Poll again if requested in the meantime
+          if (aReg.m_aPending.get () && m_aRegistrations.contains (aReg))
+            _dispatch (aReg);
+        }
+      });
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      aReg.m_aBusy.set (false);
+    }
+    return true;
+  }
+
+  private void _checkAll ()
+  {
+    final long nNow = System.nanoTime ();
+    for (final Registration aReg : m_aRegistrations)
+    {
+      final long nLastModified = aReg.m_aDirectory.lastModified ();
+      final boolean bModified = nLastModified != aReg.m_nLastModified;
+      if (bModified)
+      {
+        aReg.m_nLastModified = nLastModified;
+        aReg.m_nHotChecks = m_nHotChecks;
+      }
+
+      final boolean bRescan = nNow - aReg.m_nNextRescanNanos >= 0;
+      if (bRescan)
+        aReg.m_nNextRescanNanos = nNow + aReg.m_nRescanNanos;
+
+      if (bModified || bRescan || aReg.m_nHotChecks > 0)
+      {
+        // A deferred poll does not use up a hot check
+        if (_dispatch (aReg) && !bModified && aReg.m_nHotChecks > 0)
+          aReg.m_nHotChecks--;
+      }
+    }
+  }
+
+  /**
+   * Stop watching all directories and stop the threads.
+   */
+  public void shutdown ()
+  {
+    m_aRegistrations.clear ();
+    m_aScheduler.shutdownNow ();
+    m_aPollers.shutdown ();
+  }
+}
@@ -0,0 +1,387 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Minimal JSON support for the command processors: writing string values and
+ * reading simple JSON documents. Objects are read as {@link Map}, arrays as
+ * {@link List}, numbers as their textual representation, booleans as
+ * {@link Boolean} and <code>null</code> as <code>null</code>. Arrays and
+ * objects may be nested up to {@link #MAX_DEPTH} levels. Input that is not
+ * valid according to RFC 8259 is rejected.
+ */
+@Immutable
+public final class JSONHelper
+{
+  /** Maximum nesting depth of arrays and objects when parsing */
+  public static final int MAX_DEPTH = 64;
+
+  private JSONHelper ()
+  {}
+
+  /**
+   * Append the passed value as a quoted and escaped JSON string.
+   * 
+   * @param aTarget
+   *        The target to append to
+   * @param sValue
+   *        The value. <code>null</code> is written as <code>null</code>.
+   * @return The passed target
+   */
+  @Nonnull
+  public static StringBuilder appendString (@Nonnull final StringBuilder aTarget, @Nullable final CharSequence sValue)
+  {
+    if (sValue == null)
+      return aTarget.append ("null");
+
+    aTarget.append ('"');
+    final int nLen = sValue.length ();
+    for (int i = 0; i < nLen; ++i)
+    {
+      final char c = sValue.charAt (i);
+      switch (c)
+      {
+        case '"':
+          aTarget.append ("\\\"");
+          break;
+        case '\\':
+          aTarget.append ("\\\\");
+          break;
+        case '\n':
+          aTarget.append ("\\n");
+          break;
+        case '\r':
+          aTarget.append ("\\r");
+          break;
+        case '\t':
+          aTarget.append ("\\t");
+          break;
+        default:
+          if (c < 0x20)
+          {
+            aTarget.append ("\\u00");
+            aTarget.append (Character.forDigit (c >> 4, 16));
+            aTarget.append (Character.forDigit (c & 0xf, 16));
+          }
+          else
+            aTarget.append (c);
+      }
+    }
+    return aTarget.append ('"');
+  }
+
+  /**
+   * Parse a JSON document.
+   * 
+   * @param sJSON
+   *        The JSON text
+   * @return The parsed value. May be <code>null</code> for the JSON literal
+   *         <code>null</code>.
+   * @throws IllegalArgumentException
+   *         If the passed text is not valid JSON
+   */
+  @Nullable
+  public static Object parse (@Nonnull final String sJSON)
+  {
+    final Parser aParser = new Parser (sJSON);
+    final Object ret = aParser.readValue ();
+    aParser.skipWhitespace ();
+    if (aParser.m_nPos < sJSON.length ())
+      throw new IllegalArgumentException ("Unexpected content after JSON value at " + aParser.m_nPos);
+    return ret;
+  }
+
+  private static final class Parser
+  {
+    private final String m_sText;
+    private int m_nPos;
+    private int m_nDepth;
+
+    Parser (@Nonnull final String sText)
+    {
+      m_sText = sText;
+    }
+
+    private IllegalArgumentException _error (final String sMsg)
+    {
+      return new IllegalArgumentException (sMsg + " at position " + m_nPos);
+    }
+
+    void skipWhitespace ()
+    {
+      while (m_nPos < m_sText.length () && " \t\n\r".indexOf (m_sText.charAt (m_nPos)) >= 0)
+        m_nPos++;
+    }
+
+    // Returns 0 at the end of the text
+    private char _peek ()
+    {
+      return m_nPos < m_sText.length () ? m_sText.charAt (m_nPos) : 0;
+    }
+
+    private int _skipDigits ()
+    {
+      final int nStart = m_nPos;
+      while (_peek () >= '0' && _peek () <= '9')
+        m_nPos++;
+      return m_nPos - nStart;
+    }
+
+    private void _enterNested ()
+    {
+      // Don't let malicious input exhaust the stack
+      if (++m_nDepth > MAX_DEPTH)
+        throw _error ("JSON nested deeper than " + MAX_DEPTH + " levels");
+    }
+
+    private char _next ()
+    {
+      if (m_nPos >= m_sText.length ())
+        throw _error ("Unexpected end of JSON");
+      return m_sText.charAt (m_nPos++);
+    }
+
+    private void _expect (final String sLiteral)
+    {
+      if (!m_sText.startsWith (sLiteral, m_nPos))
+        throw _error ("Expected '" + sLiteral + "'");
+      m_nPos += sLiteral.length ();
+    }
+
+    @Nullable
+    Object readValue ()
+    {
+      skipWhitespace ();
+      if (m_nPos >= m_sText.length ())
+        throw _error ("Unexpected end of JSON");
+      final char c = m_sText.charAt (m_nPos);
+      switch (c)
+      {
+        case '{':
+          return _readObject ();
+        case '[':
+          return _readArray ();
+        case '"':
+          return _readString ();
+        case 't':
+          _expect ("true");
+          return Boolean.TRUE;
+        case 'f':
+          _expect ("false");
+          return Boolean.FALSE;
+        case 'n':
+          _expect ("null");
+          return null;
+        default:
+          if (c == '-' || (c >= '0' && c <= '9'))
+            return _readNumber ();
+          throw _error ("Unexpected character '" + c + "'");
+      }
+    }
+
+    @Nonnull
+    private String _readNumber ()
+    {
+      final int nStart = m_nPos;
+      if (_peek () == '-')
+        m_nPos++;
+      // No leading zeros
+      if (_peek () == '0')
+        m_nPos++;
+      else
+        if (_skipDigits () == 0)
+          throw _error ("Invalid number");
+      if (_peek () == '.')
+      {
+        m_nPos++;
+        if (_skipDigits () == 0)
+          throw _error ("Invalid number");
+      }
+      if (_peek () == 'e' || _peek () == 'E')
+      {
+        m_nPos++;
+        if (_peek () == '+' || _peek () == '-')
+          m_nPos++;
+        if (_skipDigits () == 0)
+          throw _error ("Invalid number");
+      }
+      return m_sText.substring (nStart, m_nPos);
+    }
+
+    private char _readUnicodeEscape ()
+    {
+      int ret = 0;
+      for (int i = 0; i < 4; ++i)
+      {
+        final char c = _next ();
+        final int nDigit;
+        if (c >= '0' && c <= '9')
+          nDigit = c - '0';
+        else
+          if (c >= 'a' && c <= 'f')
+            nDigit = c - 'a' + 10;
+          else
+            if (c >= 'A' && c <= 'F')
+              nDigit = c - 'A' + 10;
+            else
+              throw _error ("Invalid unicode escape");
+        ret = ret * 16 + nDigit;
+      }
+      return (char) ret;
+    }
+
+    @Nonnull
+    private String _readString ()
+    {
+      // Skip opening quote
+      m_nPos++;
+      final StringBuilder aSB = new StringBuilder ();
+      while (true)
+      {
+        final char c = _next ();
+        if (c == '"')
+          return aSB.toString ();
+        if (c < 0x20)
+          throw _error ("Unescaped control character in string");
+        if (c != '\\')
+          aSB.append (c);
+        else
+        {
+          final char cEsc = _next ();
+          switch (cEsc)
+          {
+            case 'b':
+              aSB.append ('\b');
+              break;
+            case 'f':
+              aSB.append ('\f');
+              break;
+            case 'n':
+              aSB.append ('\n');
+              break;
+            case 'r':
+              aSB.append ('\r');
+              break;
+            case 't':
+              aSB.append ('\t');
+              break;
+            case 'u':
+              aSB.append (_readUnicodeEscape ());
+              break;
+            case '"':
+            case '\\':
+            case '/':
+              aSB.append (cEsc);
+              break;
+            default:
+              throw _error ("Invalid escape '\\" + cEsc + "'");
+          }
+        }
+      }
+    }
+
+    @Nonnull
+    private List <Object> _readArray ()
+    {
+      // Skip '['
+      m_nPos++;
+      _enterNested ();
+      final List <Object> ret = new ArrayList <Object> ();
+      skipWhitespace ();
+      if (m_nPos < m_sText.length () && m_sText.charAt (m_nPos) == ']')
+      {
+        m_nPos++;
+        m_nDepth--;
+        return ret;
+      }
+      while (true)
+      {
+        ret.add (readValue ());
+        skipWhitespace ();
+        final char c = _next ();
+        if (c == ']')
+        {
+          m_nDepth--;
+          return ret;
+        }
+        if (c != ',')
+          throw _error ("Expected ',' or ']'");
+      }
+    }
+
+    @Nonnull
+    private Map <String, Object> _readObject ()
+    {
+      // Skip '{'
+      m_nPos++;
+      _enterNested ();
+      final Map <String, Object> ret = new LinkedHashMap <String, Object> ();
+      skipWhitespace ();
+      if (m_nPos < m_sText.length () && m_sText.charAt (m_nPos) == '}')
+      {
+        m_nPos++;
+        m_nDepth--;
+        return ret;
+      }
+      while (true)
+      {
+        skipWhitespace ();
+        if (m_nPos >= m_sText.length () || m_sText.charAt (m_nPos) != '"')
+          throw _error ("Expected object key");
+        final String sKey = _readString ();
+        skipWhitespace ();
+        if (_next () != ':')
+          throw _error ("Expected ':'");
+        ret.put (sKey, readValue ());
+        skipWhitespace ();
+        final char c = _next ();
+        if (c == '}')
+        {
+          m_nDepth--;
+          return ret;
+        }
+        if (c != ',')
+          throw _error ("Expected ',' or '}'");
+      }
+    }
+  }
+}
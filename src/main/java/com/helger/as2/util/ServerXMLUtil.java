@@ -32,9 +32,15 @@
  */
 package com.helger.as2.util;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.helger.as2.XMLSession;
 import com.helger.as2lib.IDynamicComponent;
@@ -43,52 +49,195 @@ import com.helger.as2lib.exception.OpenAS2Exception;
 import com.helger.as2lib.exception.WrappedException;
 import com.helger.as2lib.util.StringMap;
 import com.helger.as2lib.util.XMLUtil;
-import com.phloc.commons.lang.GenericReflection;
 import com.phloc.commons.microdom.IMicroElement;
+import com.phloc.commons.string.StringHelper;
 
 public final class ServerXMLUtil
 {
+  // Resolved and validated constructors per class name
+  private static final ConcurrentMap <String, Constructor <? extends IDynamicComponent>> s_aCtorCache = new ConcurrentHashMap <String, Constructor <? extends IDynamicComponent>> ();
+
   private ServerXMLUtil ()
   {}
 
+  /**
+   * Check if the passed string is a syntactically valid fully qualified Java
+   * class name.
+   *
+   * @param sClassName
+   *        The name to check. May be <code>null</code>.
+   * @return <code>true</code> if it is valid
+   */
+  public static boolean isValidClassName (@Nullable final String sClassName)
+  {
+    if (StringHelper.hasNoText (sClassName))
+      return false;
+    boolean bSegmentStart = true;
+    for (final char c : sClassName.toCharArray ())
+    {
+      if (c == '.')
+      {
+        if (bSegmentStart)
+          return false;
+        bSegmentStart = true;
+      }
+      else
+      {
+        if (bSegmentStart ? !Character.isJavaIdentifierStart (c) : !Character.isJavaIdentifierPart (c))
+          return false;
+        bSegmentStart = false;
+      }
+    }
+    return !bSegmentStart;
+  }
+
+  @Nonnull
+  private static Constructor <? extends IDynamicComponent> _resolveConstructor (@Nonnull final String sClassName) throws OpenAS2Exception
+  {
+    if (!isValidClassName (sClassName))
+      throw new OpenAS2Exception ("Invalid classname '" + sClassName + "'");
+
+    final Class <?> aObjClass;
+    try
+    {
+      aObjClass = Class.forName (sClassName);
+    }
+    catch (final ClassNotFoundException ex)
+    {
+      throw new OpenAS2Exception ("Class " + sClassName + " not found");
+    }
+    if (!IDynamicComponent.class.isAssignableFrom (aObjClass))
+      throw new OpenAS2Exception ("Class " + sClassName + " must implement " + IDynamicComponent.class.getName ());
+    if (aObjClass.isInterface () || Modifier.isAbstract (aObjClass.getModifiers ()))
+      throw new OpenAS2Exception ("Class " + sClassName + " is abstract");
+
+    try
+    {
+      return aObjClass.asSubclass (IDynamicComponent.class).getConstructor ();
+    }
+    catch (final NoSuchMethodException ex)
+    {
+      throw new OpenAS2Exception ("Class " + sClassName + " has no public no-argument constructor");
+    }
+  }
+
+  /**
+   * Get the validated public no-argument constructor of a component class.
+   * Resolved constructors are cached, so repeated configuration loading does
+   * not need to look up and check the classes again.
+   *
+   * @param sClassName
+   *        The fully qualified class name
+   * @return The constructor. Never <code>null</code>.
+   * @throws OpenAS2Exception
+   *         If the class name is invalid or the class is no usable component
+   */
+  @Nonnull
+  public static Constructor <? extends IDynamicComponent> getComponentConstructor (@Nullable final String sClassName) throws OpenAS2Exception
+  {
+    if (StringHelper.hasNoText (sClassName))
+      throw new OpenAS2Exception ("Missing classname");
+
+    Constructor <? extends IDynamicComponent> ret = s_aCtorCache.get (sClassName);
+    if (ret == null)
+    {
+      ret = _resolveConstructor (sClassName);
+      final Constructor <? extends IDynamicComponent> aOld = s_aCtorCache.putIfAbsent (sClassName, ret);
+      if (aOld != null)
+        ret = aOld;
+    }
+    return ret;
+  }
+
+  /**
+   * Remove all cached constructors.
+   */
+  public static void clearCache ()
+  {
+    s_aCtorCache.clear ();
+  }
+
+  /**
+   * Create and initialize the component described by the passed element. The
+   * class is validated with {@link #getComponentConstructor(String)} before
+   * any attribute is processed.<br>
+   * Attributes are not validated against a declared set here:
+   * {@link IDynamicComponent} does not declare the attributes a component
+   * supports, and many components read additional attributes that are not
+   * exposed as constants. Unknown attributes are therefore passed on
+   * unchanged, and each component checks its required attributes in
+   * <code>initDynamicComponent</code>. Only <code>%home%</code> references
+   * are resolved up front, so a missing base directory is reported before the
+   * component is created.
+   *
+   * @param aElement
+   *        The configuration element with the <code>classname</code> attribute
+   * @param session
+   *        The session to initialize the component with
+   * @return The initialized component. Never <code>null</code>.
+   * @throws OpenAS2Exception
+   *         If the class is invalid or the component could not be created or
+   *         initialized
+   */
   @Nonnull
   public static IDynamicComponent createComponent (@Nonnull final IMicroElement aElement, final ISession session) throws OpenAS2Exception
   {
     final String sClassName = aElement.getAttribute ("classname");
-    if (sClassName == null)
-      throw new OpenAS2Exception ("Missing classname");
 
+    // Validate the class before anything else is done
+    final Constructor <? extends IDynamicComponent> aCtor = getComponentConstructor (sClassName);
+    final StringMap aParameters = XMLUtil.getAttrsWithLowercaseName (aElement);
+    if (session instanceof XMLSession)
+      updateDirectories (((XMLSession) session).getBaseDirectory (), aParameters);
     try
     {
-      final Class <?> aObjClass = Class.forName (sClassName);
-      if (!IDynamicComponent.class.isAssignableFrom (aObjClass))
-        throw new OpenAS2Exception ("Class " + sClassName + " must implement " + IDynamicComponent.class.getName ());
-      final IDynamicComponent aObj = (IDynamicComponent) GenericReflection.newInstance (aObjClass);
-
-      final StringMap aParameters = XMLUtil.getAttrsWithLowercaseName (aElement);
-      if (session instanceof XMLSession)
-        updateDirectories (((XMLSession) session).getBaseDirectory (), aParameters);
+      final IDynamicComponent aObj = aCtor.newInstance ();
       aObj.initDynamicComponent (session, aParameters);
 
       return aObj;
     }
+    catch (final InvocationTargetException e)
+    {
+      // Report the exception thrown by the constructor
+      final Throwable aCause = e.getCause ();
+      throw new WrappedException ("Error creating component: " + sClassName, aCause instanceof Exception ? (Exception) aCause
+                                                                                                         : e);
+    }
     catch (final Exception e)
     {
       throw new WrappedException ("Error creating component: " + sClassName, e);
     }
   }
 
+  /**
+   * Replace a leading <code>%home%</code> with the base directory.
+   *
+   * @param baseDirectory
+   *        The base directory. May be <code>null</code>.
+   * @param value
+   *        The value to resolve. May not be <code>null</code>.
+   * @return The resolved value
+   * @throws OpenAS2Exception
+   *         If the value starts with <code>%home%</code> but no base directory
+   *         is set
+   */
+  @Nonnull
+  public static String resolveDirectory (@Nullable final String baseDirectory, @Nonnull final String value) throws OpenAS2Exception
+  {
+    if (!value.startsWith ("%home%"))
+      return value;
+    if (baseDirectory == null)
+      throw new OpenAS2Exception ("Base directory isn't set");
+    return baseDirectory + value.substring (6);
+  }
+
   public static void updateDirectories (final String baseDirectory, final StringMap attributes) throws OpenAS2Exception
   {
     for (final Map.Entry <String, String> attrEntry : attributes)
     {
       final String value = attrEntry.getValue ();
       if (value.startsWith ("%home%"))
-      {
-        if (baseDirectory == null)
-          throw new OpenAS2Exception ("Base directory isn't set");
-        attributes.setAttribute (attrEntry.getKey (), baseDirectory + value.substring (6));
-      }
+        attributes.setAttribute (attrEntry.getKey (), resolveDirectory (baseDirectory, value));
     }
   }
 }
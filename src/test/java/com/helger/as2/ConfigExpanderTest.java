@@ -0,0 +1,163 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.as2lib.exception.OpenAS2Exception;
+import com.phloc.commons.io.streams.StreamUtils;
+import com.phloc.commons.microdom.IMicroElement;
+import com.phloc.commons.microdom.serialize.MicroReader;
+
+/**
+ * Test class for class {@link ConfigExpander}.
+ */
+public class ConfigExpanderTest
+{
+  private static final File BASE_DIR = new File ("src/test/resources/configexpander").getAbsoluteFile ();
+
+  @Nonnull
+  private static IMicroElement _readRoot (@Nonnull final String sFilename) throws Exception
+  {
+    final InputStream aIS = new FileInputStream (new File (BASE_DIR, sFilename));
+    try
+    {
+      return MicroReader.readMicroXML (aIS).getDocumentElement ();
+    }
+    finally
+    {
+      StreamUtils.close (aIS);
+    }
+  }
+
+  @Test
+  public void testIncludeAndTemplates () throws Exception
+  {
+    final ConfigExpander aExpander = new ConfigExpander (BASE_DIR.getPath ());
+    final List <IMicroElement> aChildren = new ArrayList <IMicroElement> ();
+    aExpander.expandChildren (_readRoot ("main.xml"), false, aChildren);
+
+    // The top level include is replaced by the children of the included root
+    assertEquals (2, aChildren.size ());
+    assertEquals (XMLSession.EL_CERTIFICATES, aChildren.get (0).getTagName ());
+    assertEquals ("com.example.CertificateFactory", aChildren.get (0).getAttribute ("classname"));
+    final IMicroElement eProcessor = aChildren.get (1);
+    assertEquals (XMLSession.EL_PROCESSOR, eProcessor.getTagName ());
+
+    final List <IMicroElement> aModules = aExpander.getModules (eProcessor);
+    assertEquals (3, aModules.size ());
+
+    // All template attributes are used, %home% is resolved
+    IMicroElement eModule = aModules.get (0);
+    assertEquals ("com.example.Sender", eModule.getAttribute ("classname"));
+    assertEquals ("10080", eModule.getAttribute ("port"));
+    assertEquals (BASE_DIR.getPath () + "/temp", eModule.getAttribute ("tempdir"));
+    assertNull (eModule.getAttribute (XMLSession.ATTR_TEMPLATE));
+    assertNull (eModule.getAttribute (XMLSession.ATTR_NAME));
+
+    // Module attributes override template attributes
+    eModule = aModules.get (1);
+    assertEquals ("com.example.Sender", eModule.getAttribute ("classname"));
+    assertEquals ("10090", eModule.getAttribute ("port"));
+    assertEquals (BASE_DIR.getPath () + "/temp", eModule.getAttribute ("tempdir"));
+
+    // Modules included within the processor
+    eModule = aModules.get (2);
+    assertEquals ("com.example.Included", eModule.getAttribute ("classname"));
+  }
+
+  @Test
+  public void testNestedIncludeAndLateTemplate () throws Exception
+  {
+    final ConfigExpander aExpander = new ConfigExpander (BASE_DIR.getPath ());
+    final List <IMicroElement> aChildren = new ArrayList <IMicroElement> ();
+    aExpander.expandChildren (_readRoot ("late-template.xml"), false, aChildren);
+    assertEquals (1, aChildren.size ());
+
+    final List <IMicroElement> aModules = aExpander.getModules (aChildren.get (0));
+    assertEquals (3, aModules.size ());
+
+    // The template is defined after the modules using it
+    assertEquals ("com.example.Outbox", aModules.get (0).getAttribute ("classname"));
+    assertEquals ("a", aModules.get (0).getAttribute ("outboxdir"));
+    assertEquals ("5", aModules.get (0).getAttribute ("interval"));
+    assertEquals ("com.example.Outbox", aModules.get (1).getAttribute ("classname"));
+    assertEquals ("b", aModules.get (1).getAttribute ("outboxdir"));
+
+    // nested/outboxes.xml includes partner.xml from its own directory
+    assertEquals ("com.example.Partner", aModules.get (2).getAttribute ("classname"));
+  }
+
+  @Test
+  public void testRecursiveInclude () throws Exception
+  {
+    final ConfigExpander aExpander = new ConfigExpander (BASE_DIR.getPath ());
+    try
+    {
+      aExpander.expandChildren (_readRoot ("recursive-a.xml"), false, new ArrayList <IMicroElement> ());
+      fail ();
+    }
+    catch (final OpenAS2Exception ex)
+    {
+      assertTrue (ex.getMessage (), ex.getMessage ().startsWith ("Recursive include of "));
+    }
+  }
+
+  @Test
+  public void testUndefinedTemplate () throws Exception
+  {
+    final ConfigExpander aExpander = new ConfigExpander (BASE_DIR.getPath ());
+    try
+    {
+      aExpander.expandChildren (_readRoot ("undefined-template.xml"), false, new ArrayList <IMicroElement> ());
+      fail ();
+    }
+    catch (final OpenAS2Exception ex)
+    {
+      assertEquals ("Undefined " + XMLSession.EL_MODULE_TEMPLATE + " 'missing'", ex.getMessage ());
+    }
+  }
+}
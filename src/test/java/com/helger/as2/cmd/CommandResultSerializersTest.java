@@ -0,0 +1,164 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link CommandResultSerializers} and the contained
+ * serializers.
+ */
+public final class CommandResultSerializersTest
+{
+  private static final String SPECIAL = "a<b>&\"c\"\u0001\t\r\nd";
+
+  private static String _write (final ICommandResultSerializer aSerializer, final CommandResult aResult) throws IOException
+  {
+    final StringWriter aWriter = new StringWriter ();
+    aSerializer.write (aResult, aWriter);
+    return aWriter.toString ();
+  }
+
+  /**
+   * Produces "r0" to "r(n-1)" and checks that every previous result was
+   * already written before the next one is requested.
+   */
+  private static final class LazyResults implements Iterable <String>
+  {
+    private final StringWriter m_aWriter;
+    private final int m_nCount;
+    private int m_nProduced = 0;
+
+    LazyResults (final StringWriter aWriter, final int nCount)
+    {
+      m_aWriter = aWriter;
+      m_nCount = nCount;
+    }
+
+    public Iterator <String> iterator ()
+    {
+      return new Iterator <String> ()
+      {
+        public boolean hasNext ()
+        {
+          return m_nProduced < m_nCount;
+        }
+
+        public String next ()
+        {
+          if (!hasNext ())
+            throw new NoSuchElementException ();
+          if (m_nProduced > 0)
+            assertTrue (m_aWriter.toString (), m_aWriter.toString ().contains ("r" + (m_nProduced - 1)));
+          return "r" + m_nProduced++;
+        }
+
+        public void remove ()
+        {
+          throw new UnsupportedOperationException ();
+        }
+      };
+    }
+  }
+
+  @Test
+  public void testGetSerializer ()
+  {
+    assertSame (CommandResultSerializers.TEXT, CommandResultSerializers.getSerializer ("text"));
+    assertSame (CommandResultSerializers.XML, CommandResultSerializers.getSerializer ("XML"));
+    assertSame (CommandResultSerializers.JSON_LINES, CommandResultSerializers.getSerializer ("JsonL"));
+    assertNull (CommandResultSerializers.getSerializer ("yaml"));
+    assertNull (CommandResultSerializers.getSerializer (null));
+  }
+
+  @Test
+  public void testXMLEscaping () throws IOException
+  {
+    final StringWriter aWriter = new StringWriter ();
+    XMLCommandResultSerializer.writeEscaped (SPECIAL, aWriter);
+    XMLCommandResultSerializer.writeEscaped (null, aWriter);
+    assertEquals ("a&lt;b&gt;&amp;&quot;c&quot;&#xFFFD;\t\r\nd", aWriter.toString ());
+
+    assertEquals ("<result>x</result><result>&lt;&amp;&#xFFFD;</result>",
+                  _write (CommandResultSerializers.XML,
+                          new CommandResult (CommandResult.TYPE_OK, Arrays.asList ("x", "<&\u001f"))));
+    assertEquals ("", _write (CommandResultSerializers.XML, new CommandResult (CommandResult.TYPE_OK)));
+  }
+
+  @Test
+  public void testJSONLinesEscaping () throws IOException
+  {
+    assertEquals ("{\"type\":\"OK\"}\n" +
+                  "{\"result\":\"a<b>&\\\"c\\\"\\u0001\\t\\r\\nd\"}\n" +
+                  "{\"result\":\"\\\\\"}\n",
+                  _write (CommandResultSerializers.JSON_LINES,
+                          new CommandResult (CommandResult.TYPE_OK, Arrays.asList (SPECIAL, "\\"))));
+    assertEquals ("{\"type\":\"ERROR\"}\n{\"result\":\"failed\"}\n",
+                  _write (CommandResultSerializers.JSON_LINES, new CommandResult (CommandResult.TYPE_ERROR, "failed")));
+  }
+
+  @Test
+  public void testText () throws IOException
+  {
+    assertEquals ("OK:\r\n" + SPECIAL + "\r\n",
+                  _write (CommandResultSerializers.TEXT, new CommandResult (CommandResult.TYPE_OK, SPECIAL)));
+  }
+
+  @Test
+  public void testLazyResultsAreStreamed () throws IOException
+  {
+    for (final ICommandResultSerializer aSerializer : new ICommandResultSerializer [] { CommandResultSerializers.TEXT,
+                                                                                        CommandResultSerializers.XML,
+                                                                                        CommandResultSerializers.JSON_LINES })
+    {
+      final StringWriter aWriter = new StringWriter ();
+      final CommandResult aResult = new CommandResult (CommandResult.TYPE_OK, new LazyResults (aWriter, 3));
+      assertTrue (aResult.isStreaming ());
+      aSerializer.write (aResult, aWriter);
+      final String sWritten = aWriter.toString ();
+      assertTrue (sWritten, sWritten.indexOf ("r0") < sWritten.indexOf ("r1"));
+      assertTrue (sWritten, sWritten.indexOf ("r1") < sWritten.indexOf ("r2"));
+    }
+  }
+}
@@ -0,0 +1,333 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link JobManager}.
+ */
+public final class JobManagerTest
+{
+  /**
+   * Reports 50% progress and blocks until released or interrupted.
+   */
+  private static final class BlockingCommand extends AbstractCommand
+  {
+    private final CountDownLatch m_aStarted = new CountDownLatch (1);
+    private final CountDownLatch m_aRelease = new CountDownLatch (1);
+    private final AtomicInteger m_aExecutions = new AtomicInteger (0);
+
+    @Override
+    public String getDefaultName ()
+    {
+      return "block";
+    }
+
+    @Override
+    public String getDefaultDescription ()
+    {
+      return "Blocks until released";
+    }
+
+    @Override
+    public String getDefaultUsage ()
+    {
+      return "block";
+    }
+
+    @Override
+    public CommandResult execute (final Object [] params)
+    {
+      m_aExecutions.incrementAndGet ();
+      JobManager.reportProgress (50, "waiting");
+      m_aStarted.countDown ();
+      try
+      {
+        m_aRelease.await ();
+        return new CommandResult (CommandResult.TYPE_OK, "released");
+      }
+      catch (final InterruptedException ex)
+      {
+        return new CommandResult (CommandResult.TYPE_ERROR, "interrupted");
+      }
+    }
+
+    void awaitStarted () throws InterruptedException
+    {
+      assertTrue (m_aStarted.await (10, TimeUnit.SECONDS));
+    }
+
+    void release ()
+    {
+      m_aRelease.countDown ();
+    }
+
+    int getExecutions ()
+    {
+      return m_aExecutions.get ();
+    }
+  }
+
+  private static final class ResultCommand extends AbstractCommand
+  {
+    private final String m_sType;
+
+    ResultCommand (final String sType)
+    {
+      m_sType = sType;
+    }
+
+    @Override
+    public String getDefaultName ()
+    {
+      return "result";
+    }
+
+    @Override
+    public String getDefaultDescription ()
+    {
+      return "Returns a fixed result";
+    }
+
+    @Override
+    public String getDefaultUsage ()
+    {
+      return "result";
+    }
+
+    @Override
+    public CommandResult execute (final Object [] params)
+    {
+      if (m_sType == null)
+        throw new IllegalStateException ("failed");
+      return new CommandResult (m_sType, String.valueOf (params.length));
+    }
+  }
+
+  private static final Object [] NO_PARAMS = new Object [0];
+
+  private static void _awaitFinished (final CommandJob aJob) throws InterruptedException
+  {
+    final long nDeadline = System.currentTimeMillis () + 10000;
+    while (!aJob.getState ().isFinished ())
+    {
+      if (System.currentTimeMillis () > nDeadline)
+        fail ("Job did not finish: " + aJob);
+      Thread.sleep (10);
+    }
+  }
+
+  @Test
+  public void testSubmitAndStatus () throws Exception
+  {
+    final JobManager aMgr = new JobManager (1, 1);
+    try
+    {
+      final BlockingCommand aCmd = new BlockingCommand ();
+      final CommandJob aJob = aMgr.submit (aCmd, NO_PARAMS, "block");
+      assertSame (aJob, aMgr.getJob (aJob.getID ()));
+      assertEquals ("block", aJob.getDescription ());
+      aCmd.awaitStarted ();
+      assertEquals (CommandJob.EState.RUNNING, aJob.getState ());
+      assertEquals (50, aJob.getProgress ());
+      assertEquals ("waiting", aJob.getProgressMessage ());
+      assertNull (aJob.getResult ());
+      assertEquals (1, aMgr.getUnfinishedJobCount ());
+
+      aCmd.release ();
+      _awaitFinished (aJob);
+      assertEquals (CommandJob.EState.DONE, aJob.getState ());
+      assertEquals (100, aJob.getProgress ());
+      assertEquals ("released\r\n", aJob.getResult ().getResult ());
+      assertTrue (aJob.getEndTime () >= aJob.getStartTime ());
+      assertEquals (0, aMgr.getUnfinishedJobCount ());
+      assertEquals (1, aMgr.getAllJobs ().size ());
+    }
+    finally
+    {
+      aMgr.shutdown ();
+    }
+  }
+
+  @Test
+  public void testFailedJobs () throws Exception
+  {
+    final JobManager aMgr = new JobManager (1, 2);
+    try
+    {
+      final CommandJob aError = aMgr.submit (new ResultCommand (CommandResult.TYPE_ERROR), NO_PARAMS, "error");
+      final CommandJob aException = aMgr.submit (new ResultCommand (null), NO_PARAMS, "exception");
+      _awaitFinished (aError);
+      _awaitFinished (aException);
+      assertEquals (CommandJob.EState.FAILED, aError.getState ());
+      assertEquals (CommandResult.TYPE_ERROR, aError.getResult ().getType ());
+      assertEquals (CommandJob.EState.FAILED, aException.getState ());
+      assertEquals (CommandResult.TYPE_EXCEPTION, aException.getResult ().getType ());
+      assertTrue (aException.getID () > aError.getID ());
+    }
+    finally
+    {
+      aMgr.shutdown ();
+    }
+  }
+
+  @Test
+  public void testCancelWhileQueued () throws Exception
+  {
+    final JobManager aMgr = new JobManager (1, 1);
+    try
+    {
+      final BlockingCommand aRunning = new BlockingCommand ();
+      final CommandJob aRunningJob = aMgr.submit (aRunning, NO_PARAMS, "running");
+      aRunning.awaitStarted ();
+
+      final BlockingCommand aQueued = new BlockingCommand ();
+      final CommandJob aQueuedJob = aMgr.submit (aQueued, NO_PARAMS, "queued");
+      assertEquals (CommandJob.EState.QUEUED, aQueuedJob.getState ());
+      assertTrue (aQueuedJob.cancel ());
+      assertEquals (CommandJob.EState.CANCELLED, aQueuedJob.getState ());
+      assertEquals (CommandResult.TYPE_ERROR, aQueuedJob.getResult ().getType ());
+      assertFalse (aQueuedJob.cancel ());
+
+      // The cancelled job does not block the queue
+      final CommandJob aNext = aMgr.submit (new ResultCommand (CommandResult.TYPE_OK), NO_PARAMS, "next");
+      assertEquals (CommandJob.EState.QUEUED, aNext.getState ());
+
+      aRunning.release ();
+      _awaitFinished (aRunningJob);
+      _awaitFinished (aNext);
+      assertEquals (CommandJob.EState.DONE, aRunningJob.getState ());
+      assertEquals (CommandJob.EState.DONE, aNext.getState ());
+      assertEquals (0, aQueued.getExecutions ());
+      assertEquals (CommandJob.EState.CANCELLED, aQueuedJob.getState ());
+    }
+    finally
+    {
+      aMgr.shutdown ();
+    }
+  }
+
+  @Test
+  public void testCancelWhileRunning () throws Exception
+  {
+    final JobManager aMgr = new JobManager (1, 1);
+    try
+    {
+      final BlockingCommand aCmd = new BlockingCommand ();
+      final CommandJob aJob = aMgr.submit (aCmd, NO_PARAMS, "running");
+      aCmd.awaitStarted ();
+      assertTrue (aJob.cancel ());
+      // The command reacts on the interruption
+      _awaitFinished (aJob);
+      assertEquals (CommandJob.EState.CANCELLED, aJob.getState ());
+      assertEquals ("Job was cancelled\r\n", aJob.getResult ().getResult ());
+      assertEquals (50, aJob.getProgress ());
+      assertFalse (aJob.cancel ());
+
+      // The worker is still usable and not interrupted
+      final CommandJob aNext = aMgr.submit (new ResultCommand (CommandResult.TYPE_OK), NO_PARAMS, "next");
+      _awaitFinished (aNext);
+      assertEquals (CommandJob.EState.DONE, aNext.getState ());
+    }
+    finally
+    {
+      aMgr.shutdown ();
+    }
+  }
+
+  @Test
+  public void testQueueFull () throws Exception
+  {
+    final JobManager aMgr = new JobManager (1, 1);
+    try
+    {
+      final BlockingCommand aCmd = new BlockingCommand ();
+      final CommandJob aRunning = aMgr.submit (aCmd, NO_PARAMS, "running");
+      aCmd.awaitStarted ();
+      final CommandJob aQueued = aMgr.submit (new ResultCommand (CommandResult.TYPE_OK), NO_PARAMS, "queued");
+      try
+      {
+        aMgr.submit (new ResultCommand (CommandResult.TYPE_OK), NO_PARAMS, "rejected");
+        fail ();
+      }
+      catch (final CommandException ex)
+      {
+        assertEquals ("Too many pending jobs", ex.getMessage ());
+      }
+      // The rejected job is not listed
+      assertEquals (2, aMgr.getAllJobs ().size ());
+      assertNull (aMgr.getJob (aQueued.getID () + 1));
+
+      aCmd.release ();
+      _awaitFinished (aRunning);
+      _awaitFinished (aQueued);
+      assertEquals (CommandJob.EState.DONE, aQueued.getState ());
+    }
+    finally
+    {
+      aMgr.shutdown ();
+    }
+  }
+
+  @Test
+  public void testStopAccepting () throws Exception
+  {
+    final JobManager aMgr = new JobManager (1, 1);
+    try
+    {
+      aMgr.stopAccepting ();
+      aMgr.submit (new ResultCommand (CommandResult.TYPE_OK), NO_PARAMS, "rejected");
+      fail ();
+    }
+    catch (final CommandException ex)
+    {
+      assertEquals ("No more jobs are accepted", ex.getMessage ());
+    }
+    finally
+    {
+      aMgr.shutdown ();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link ListOptions}.
+ */
+public class ListOptionsTest
+{
+  private static final List <String> NAMES = Arrays.asList ("a1", "a2", "a3", "b1", "b2", "c1");
+
+  private static String _apply (final Object... aParams) throws CommandException
+  {
+    return ListOptions.parse (aParams).apply (NAMES).toString ();
+  }
+
+  @Test
+  public void testApply () throws CommandException
+  {
+    assertEquals (NAMES.toString (), _apply ());
+    assertEquals ("[a1, a2, a3]", _apply ("--prefix", "a"));
+    assertEquals ("[a2]", _apply ("--prefix", "a", "--offset", "1", "--limit", "1"));
+    assertEquals ("[]", _apply ("--prefix", "x"));
+    assertEquals ("[]", _apply ("--offset", "10"));
+    assertEquals ("[c1, b2, b1]", _apply ("--sort", "desc", "--limit", "3"));
+    assertEquals ("[b1, a1]", _apply ("--sort", "desc", "--match", "1$", "--offset", "1", "--limit", "2"));
+    assertEquals ("[b2]", _apply ("--prefix", "b", "--match", "2"));
+  }
+
+  @Test
+  public void testSortOrderOptional () throws CommandException
+  {
+    assertEquals (NAMES.toString (), _apply ("--sort"));
+    assertEquals (NAMES.toString (), _apply ("--sort", "asc"));
+    assertEquals ("[c1, b2]", _apply ("--sort", "DESC", "--limit", "2"));
+    assertEquals ("[a1, a2]", _apply ("--sort", "--limit", "2"));
+    assertEquals ("[b1, b2]", _apply ("--prefix", "b", "--sort"));
+    // The last one wins
+    assertEquals ("[a1]", _apply ("--sort", "desc", "--sort", "--limit", "1"));
+  }
+
+  @Test
+  public void testInvalid ()
+  {
+    for (final Object [] aParams : new Object [] [] { { "--limit" },
+                                                      { "--limit", "x" },
+                                                      { "--match", "(" },
+                                                      { "--sort", "up" },
+                                                      { "--unknown", "1" } })
+      try
+      {
+        ListOptions.parse (aParams);
+        fail (Arrays.toString (aParams));
+      }
+      catch (final CommandException ex)
+      {
+        // expected
+      }
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.cmd.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.helger.as2lib.exception.OpenAS2Exception;
+import com.phloc.commons.io.streams.NonBlockingStringReader;
+
+/**
+ * Test class for class {@link SocketCommandParser}.
+ */
+public class SocketCommandParserTest
+{
+  @Test
+  public void testCommand () throws Exception
+  {
+    final SocketCommandParser aParser = new SocketCommandParser ();
+    aParser.parse ("<command id=\"abc\" password='x&amp;y'>cert view &quot;a b&quot; &lt;&#65;&gt;</command>");
+    assertFalse (aParser.isSessionStart ());
+    assertEquals ("abc", aParser.getUserid ());
+    assertEquals ("x&y", aParser.getPassword ());
+    assertNull (aParser.getRequestID ());
+    assertEquals ("cert view \"a b\" <A>", aParser.getCommandText ());
+
+    aParser.parse ("<?xml version=\"1.0\"?><command id=\"a\" password=\"b\"><![CDATA[x <y> ]]]></command>");
+    assertEquals ("x <y> ]", aParser.getCommandText ());
+  }
+
+  @Test
+  public void testSession () throws Exception
+  {
+    final SocketCommandParser aParser = new SocketCommandParser ();
+    aParser.setSource (new NonBlockingStringReader ("<session id=\"abc\" password=\"xyz\"/>\r\n" +
+                                                    "<command rid=\"1\">partner list</command>\r\n" +
+                                                    "\r\n" +
+                                                    "<command rid=\"2\">cert list</command>\n"));
+    assertTrue (aParser.next ());
+    assertTrue (aParser.isSessionStart ());
+    assertEquals ("xyz", aParser.getPassword ());
+    assertTrue (aParser.next ());
+    assertEquals ("1", aParser.getRequestID ());
+    assertEquals ("partner list", aParser.getCommandText ());
+    assertTrue (aParser.next ());
+    assertEquals ("2", aParser.getRequestID ());
+    assertEquals ("cert list", aParser.getCommandText ());
+    assertFalse (aParser.next ());
+  }
+
+  @Test
+  public void testErrors () throws Exception
+  {
+    final SocketCommandParser aParser = new SocketCommandParser (50);
+    for (final String sRequest : new String [] { "command",
+                                                 "<foo/>",
+                                                 "<command id=abc></command>",
+                                                 "<command><x/></command>",
+                                                 "<command>abc</commandx>",
+                                                 "<command>&unknown;</command>",
+                                                 "<command>abc",
+                                                 "<command>01234567890123456789012345678901234567890123456789</command>" })
+      try
+      {
+        aParser.parse (sRequest);
+        fail (sRequest);
+      }
+      catch (final OpenAS2Exception ex)
+      {
+        // expected
+      }
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.partner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.helger.as2lib.exception.OpenAS2Exception;
+
+/**
+ * Test class for class {@link PartnershipBatch}.
+ */
+public class PartnershipBatchTest
+{
+  @Test
+  public void testParse () throws OpenAS2Exception
+  {
+    final PartnershipBatch aBatch = PartnershipBatch.parse ("# provisioning\n" +
+                                                            "partner add A as2_id=A email=\"a@x.org\"\r\n" +
+                                                            "\n" +
+                                                            "partner add B as2_id=B\n" +
+                                                            "partnership add A-B A B protocol=as2 subject=\"Some subject\"\n" +
+                                                            "partnership store\n" +
+                                                            "partnership delete old\n" +
+                                                            "PARTNER DELETE C");
+    assertEquals (5, aBatch.getOperationCount ());
+    final List <PartnershipBatch.Operation> aOps = aBatch.getAllOperations ();
+    assertEquals (PartnershipBatch.EOperationType.ADD_PARTNER, aOps.get (0).getType ());
+    assertEquals (2, aOps.get (0).getLineNumber ());
+    assertEquals ("a@x.org", aOps.get (0).getElement ().getAttribute ("email"));
+    assertEquals (PartnershipBatch.EOperationType.ADD_PARTNERSHIP, aOps.get (2).getType ());
+    assertEquals ("A-B", aOps.get (2).getName ());
+    assertEquals ("B", aOps.get (2).getElement ().getFirstChildElement ("receiver").getAttribute ("name"));
+    assertEquals (PartnershipBatch.EOperationType.DELETE_PARTNERSHIP, aOps.get (3).getType ());
+    assertEquals (PartnershipBatch.EOperationType.DELETE_PARTNER, aOps.get (4).getType ());
+    assertEquals (8, aOps.get (4).getLineNumber ());
+
+    assertTrue (PartnershipBatch.parse ("").isEmpty ());
+  }
+
+  private static void _assertInvalid (final String sScript, final String sExpectedLinePrefix)
+  {
+    try
+    {
+      PartnershipBatch.parse (sScript);
+      fail ();
+    }
+    catch (final OpenAS2Exception ex)
+    {
+      assertTrue (ex.getMessage (), ex.getMessage ().startsWith (sExpectedLinePrefix));
+    }
+  }
+
+  @Test
+  public void testInvalid ()
+  {
+    _assertInvalid ("partner add A\ncert list", "Batch line 2:");
+    _assertInvalid ("partner", "Batch line 1:");
+    _assertInvalid ("partner add", "Batch line 1:");
+    _assertInvalid ("partner add A as2_id", "Batch line 1:");
+    _assertInvalid ("\n\npartner add A =x", "Batch line 3:");
+    _assertInvalid ("partnership add A-B A", "Batch line 1:");
+    _assertInvalid ("partnership delete A B", "Batch line 1:");
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link CommandTokenizer}.
+ */
+public class CommandTokenizerTest
+{
+  private static List <String> _tokenize (final CharSequence s)
+  {
+    final List <String> ret = new ArrayList <String> ();
+    final CommandTokenizer aTokenizer = new CommandTokenizer (s);
+    while (aTokenizer.hasMoreTokens ())
+      ret.add (aTokenizer.nextToken ());
+    return ret;
+  }
+
+  @Test
+  public void testBasic ()
+  {
+    assertEquals ("[cert, list]", _tokenize ("cert list").toString ());
+    assertEquals ("[cert, list]", _tokenize ("  cert   list  ").toString ());
+    assertEquals ("[a]", _tokenize ("a ").toString ());
+    assertEquals ("[]", _tokenize ("").toString ());
+    assertEquals ("[]", _tokenize (" ").toString ());
+    assertEquals ("[a, b]", _tokenize ("a\tb\r\n").toString ());
+    assertEquals ("[x]", _tokenize (new StringBuilder ("x")).toString ());
+
+    final CommandTokenizer aTokenizer = new CommandTokenizer ("a");
+    assertEquals ("a", aTokenizer.nextToken ());
+    assertFalse (aTokenizer.hasMoreTokens ());
+    assertEquals ("", aTokenizer.nextToken ());
+  }
+
+  @Test
+  public void testQuotes ()
+  {
+    assertEquals ("[view, a b, c]", _tokenize ("view \"a b\" c").toString ());
+    assertEquals ("[ab c]", _tokenize ("a\"b c\"").toString ());
+    assertEquals ("[a \"quoted\" b]", _tokenize ("\"a \\\"quoted\\\" b\"").toString ());
+    assertEquals ("[a\\b]", _tokenize ("\"a\\\\b\"").toString ());
+    assertEquals ("[C:\\dir\\file]", _tokenize ("\"C:\\dir\\file\"").toString ());
+    assertEquals ("[C:\\dir]", _tokenize ("C:\\dir").toString ());
+    assertEquals ("[, x]", _tokenize ("\"\" x").toString ());
+    assertEquals ("[open]", _tokenize ("\"open").toString ());
+  }
+
+  @Test
+  public void testTrailingBackslash ()
+  {
+    assertEquals ("[import, C:\\certs\\, alias]", _tokenize ("import \"C:\\certs\\\" alias").toString ());
+    assertEquals ("[import, C:\\certs\\]", _tokenize ("import \"C:\\certs\\\"").toString ());
+    assertEquals ("[C:\\a\\, D:\\b\\]", _tokenize ("\"C:\\a\\\" \"D:\\b\\\"").toString ());
+    assertEquals ("[C:\\a\\, D:\\b]", _tokenize ("\"C:\\a\\\" \"D:\\b\"").toString ());
+    // Escaped quotes followed by whitespace inside a quoted token
+    assertEquals ("[say, he said \" hi]", _tokenize ("say \"he said \\\" hi\"").toString ());
+    assertEquals ("[a \"quoted\" b, c]", _tokenize ("\"a \\\"quoted\\\" b\" c").toString ());
+  }
+
+  @Test
+  public void testLarge ()
+  {
+    final StringBuilder aSB = new StringBuilder ("cert importbystream alias ");
+    for (int i = 0; i < 1024 * 1024; ++i)
+      aSB.append ((char) ('a' + i % 26));
+    final List <String> aTokens = _tokenize (aSB);
+    assertEquals (3 + 1, aTokens.size ());
+    assertEquals (1024 * 1024, aTokens.get (3).length ());
+    assertTrue (aTokens.get (3).startsWith ("abc"));
+  }
+}
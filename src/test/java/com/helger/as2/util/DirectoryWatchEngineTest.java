@@ -0,0 +1,248 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link DirectoryWatchEngine}.
+ */
+public class DirectoryWatchEngineTest
+{
+  @Test
+  public void testDispatchOnModification () throws IOException, InterruptedException
+  {
+    final File aDir = File.createTempFile ("dirwatch", "");
+    assertTrue (aDir.delete ());
+    assertTrue (aDir.mkdir ());
+    final DirectoryWatchEngine aEngine = new DirectoryWatchEngine (10, 0, 1);
+    try
+    {
+      final Semaphore aPolls = new Semaphore (0);
+      final DirectoryWatchEngine.Registration aReg = aEngine.register (aDir, TimeUnit.HOURS.toMillis (1), new Runnable ()
+      {
+        public void run ()
+        {
+          aPolls.release ();
+        }
+      });
+      assertEquals (1, aEngine.getRegistrationCount ());
+
+      // Initial poll for existing files
+      assertTrue (aPolls.tryAcquire (5, TimeUnit.SECONDS));
+
+      // Make sure the modification time differs on coarse file systems
+      Thread.sleep (1100);
+      aPolls.drainPermits ();
+      final File aFile = new File (aDir, "msg.edi");
+      assertTrue (aFile.createNewFile ());
+      assertTrue (aPolls.tryAcquire (5, TimeUnit.SECONDS));
+
+      aEngine.unregister (aReg);
+      assertEquals (0, aEngine.getRegistrationCount ());
+      assertTrue (aFile.delete ());
+    }
+    finally
+    {
+      aEngine.shutdown ();
+      aDir.delete ();
+    }
+  }
+
+  @Test
+  public void testBusyPollIsRepeated () throws IOException, InterruptedException
+  {
+    final File aDir = File.createTempFile ("dirwatch", "");
+    assertTrue (aDir.delete ());
+    assertTrue (aDir.mkdir ());
+    // No hot checks, so only the modification triggers another poll
+    final DirectoryWatchEngine aEngine = new DirectoryWatchEngine (10, 0, 1);
+    try
+    {
+      final Semaphore aPolls = new Semaphore (0);
+      final CountDownLatch aRelease = new CountDownLatch (1);
+      aEngine.register (aDir, TimeUnit.HOURS.toMillis (1), new Runnable ()
+      {
+        public void run ()
+        {
+          aPolls.release ();
+          try
+          {
+            aRelease.await ();
+          }
+          catch (final InterruptedException ex)
+          {
+            Thread.currentThread ().interrupt ();
+          }
+        }
+      });
+
+      // The initial poll blocks
+      assertTrue (aPolls.tryAcquire (5, TimeUnit.SECONDS));
+
+      // Modified while the poll is still running
+      Thread.sleep (1100);
+      final File aFile = new File (aDir, "msg.edi");
+      assertTrue (aFile.createNewFile ());
+      Thread.sleep (200);
+      assertEquals (0, aPolls.availablePermits ());
+
+      // The deferred poll runs as soon as the busy one finished
+      aRelease.countDown ();
+      assertTrue (aPolls.tryAcquire (5, TimeUnit.SECONDS));
+      assertTrue (aFile.delete ());
+    }
+    finally
+    {
+      aEngine.shutdown ();
+      aDir.delete ();
+    }
+  }
+
+  /**
+   * Simulate a file system with a coarse modification time resolution: the
+   * file is created but the directory modification time stays the same.
+   */
+  @Test
+  public void testCoarseModificationTimeHotChecks () throws IOException, InterruptedException
+  {
+    final File aDir = File.createTempFile ("dirwatch", "");
+    assertTrue (aDir.delete ());
+    assertTrue (aDir.mkdir ());
+    // Registration counts as modification, so the next 100 checks poll
+    final DirectoryWatchEngine aEngine = new DirectoryWatchEngine (10, 100, 1);
+    final File aFile = new File (aDir, "msg.edi");
+    try
+    {
+      final Semaphore aPolls = new Semaphore (0);
+      final CountDownLatch aSeen = new CountDownLatch (1);
+      aEngine.register (aDir, TimeUnit.HOURS.toMillis (1), new Runnable ()
+      {
+        public void run ()
+        {
+          if (aFile.exists ())
+            aSeen.countDown ();
+          aPolls.release ();
+        }
+      });
+
+      // Initial poll for existing files
+      assertTrue (aPolls.tryAcquire (5, TimeUnit.SECONDS));
+      assertEquals (1, aSeen.getCount ());
+
+      final long nLastModified = aDir.lastModified ();
+      assertTrue (aFile.createNewFile ());
+      assertTrue (aDir.setLastModified (nLastModified));
+
+      // Picked up by the hot checks although the directory looks unmodified
+      assertTrue (aSeen.await (5, TimeUnit.SECONDS));
+    }
+    finally
+    {
+      aEngine.shutdown ();
+      aFile.delete ();
+      aDir.delete ();
+    }
+  }
+
+  @Test
+  public void testCoarseModificationTimeRescan () throws IOException, InterruptedException
+  {
+    final File aDir = File.createTempFile ("dirwatch", "");
+    assertTrue (aDir.delete ());
+    assertTrue (aDir.mkdir ());
+    // No hot checks, so only the rescan can find the file
+    final DirectoryWatchEngine aEngine = new DirectoryWatchEngine (10, 0, 1);
+    final File aFile = new File (aDir, "msg.edi");
+    try
+    {
+      final Semaphore aPolls = new Semaphore (0);
+      final CountDownLatch aSeen = new CountDownLatch (1);
+      aEngine.register (aDir, 500, new Runnable ()
+      {
+        public void run ()
+        {
+          if (aFile.exists ())
+            aSeen.countDown ();
+          aPolls.release ();
+        }
+      });
+
+      // Initial poll for existing files
+      assertTrue (aPolls.tryAcquire (5, TimeUnit.SECONDS));
+
+      final long nLastModified = aDir.lastModified ();
+      assertTrue (aFile.createNewFile ());
+      assertTrue (aDir.setLastModified (nLastModified));
+      final long nStart = System.nanoTime ();
+
+      assertTrue (aSeen.await (5, TimeUnit.SECONDS));
+      // Not found by the 10ms checks but by the rescan
+      assertTrue (System.nanoTime () - nStart >= TimeUnit.MILLISECONDS.toNanos (200));
+    }
+    finally
+    {
+      aEngine.shutdown ();
+      aFile.delete ();
+      aDir.delete ();
+    }
+  }
+
+  @Test
+  public void testEnsurePollThreads ()
+  {
+    final DirectoryWatchEngine aEngine = new DirectoryWatchEngine (10, 0, 2);
+    try
+    {
+      assertEquals (2, aEngine.getPollThreads ());
+      aEngine.ensurePollThreads (8);
+      assertEquals (8, aEngine.getPollThreads ());
+      // Never shrinks
+      aEngine.ensurePollThreads (1);
+      assertEquals (8, aEngine.getPollThreads ());
+    }
+    finally
+    {
+      aEngine.shutdown ();
+    }
+  }
+}
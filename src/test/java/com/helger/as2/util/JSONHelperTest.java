@@ -0,0 +1,144 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link JSONHelper}.
+ */
+public class JSONHelperTest
+{
+  private static void _assertInvalid (final String sJSON)
+  {
+    try
+    {
+      JSONHelper.parse (sJSON);
+      fail ("Accepted invalid JSON: " + sJSON);
+    }
+    catch (final IllegalArgumentException ex)
+    {
+      // expected
+    }
+  }
+
+  private static String _nested (final int nDepth)
+  {
+    final StringBuilder aSB = new StringBuilder ();
+    for (int i = 0; i < nDepth; ++i)
+      aSB.append ('[');
+    for (int i = 0; i < nDepth; ++i)
+      aSB.append (']');
+    return aSB.toString ();
+  }
+
+  @Test
+  public void testAppendString ()
+  {
+    assertEquals ("null", JSONHelper.appendString (new StringBuilder (), null).toString ());
+    assertEquals ("\"a\\\"b\\\\c\\n\\r\\t\\u0001\"",
+                  JSONHelper.appendString (new StringBuilder (), "a\"b\\c\n\r\t\u0001").toString ());
+  }
+
+  @Test
+  public void testParseValues ()
+  {
+    assertEquals (Boolean.TRUE, JSONHelper.parse ("true"));
+    assertEquals (Boolean.FALSE, JSONHelper.parse (" false "));
+    assertNull (JSONHelper.parse ("null"));
+    assertEquals ("-12.5e+3", JSONHelper.parse ("-12.5e+3"));
+    assertEquals ("0", JSONHelper.parse ("0"));
+    assertEquals (Arrays.asList ("1", "a", null), JSONHelper.parse ("[1, \"a\", null]"));
+
+    final Map <?, ?> aMap = (Map <?, ?>) JSONHelper.parse ("{\"cmd\" : \"cert list\", \"args\" : []}");
+    assertEquals ("cert list", aMap.get ("cmd"));
+    assertTrue (((List <?>) aMap.get ("args")).isEmpty ());
+  }
+
+  @Test
+  public void testEscapes ()
+  {
+    assertEquals ("\"\\/\b\f\n\r\t", JSONHelper.parse ("\"\\\"\\\\\\/\\b\\f\\n\\r\\t\""));
+    assertEquals ("\u00e4\u20AC", JSONHelper.parse ("\"\\u00e4\\u20AC\""));
+
+    // Round trip
+    final String s = "a\"b\\c\n\u0001\u00e4";
+    assertEquals (s, JSONHelper.parse (JSONHelper.appendString (new StringBuilder (), s).toString ()));
+
+    _assertInvalid ("\"\\x\"");
+    _assertInvalid ("\"\\u+123\"");
+    _assertInvalid ("\"\\u12\"");
+    _assertInvalid ("\"\\u12g4\"");
+    _assertInvalid ("\"a\nb\"");
+    _assertInvalid ("\"unterminated");
+  }
+
+  @Test
+  public void testNestingDepth ()
+  {
+    assertTrue (JSONHelper.parse (_nested (JSONHelper.MAX_DEPTH)) instanceof List <?>);
+    _assertInvalid (_nested (JSONHelper.MAX_DEPTH + 1));
+    // Must not overflow the stack
+    _assertInvalid (_nested (100000));
+  }
+
+  @Test
+  public void testMalformed ()
+  {
+    _assertInvalid ("");
+    _assertInvalid ("1-2.e+");
+    _assertInvalid ("01");
+    _assertInvalid ("1.");
+    _assertInvalid (".5");
+    _assertInvalid ("1e");
+    _assertInvalid ("+1");
+    _assertInvalid ("-");
+    _assertInvalid ("tru");
+    _assertInvalid ("[1,]");
+    _assertInvalid ("[1 2]");
+    _assertInvalid ("{\"a\" 1}");
+    _assertInvalid ("{a:1}");
+    _assertInvalid ("{\"a\":1,}");
+    _assertInvalid ("[1] x");
+    _assertInvalid ("\u00a01");
+  }
+}
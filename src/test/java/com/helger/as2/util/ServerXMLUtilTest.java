@@ -0,0 +1,161 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.as2lib.AbstractDynamicComponent;
+import com.helger.as2lib.IDynamicComponent;
+import com.helger.as2lib.exception.OpenAS2Exception;
+import com.phloc.commons.microdom.IMicroElement;
+import com.phloc.commons.microdom.impl.MicroDocument;
+
+/**
+ * Test class for class {@link ServerXMLUtil}.
+ */
+public class ServerXMLUtilTest
+{
+  public static class ValidComponent extends AbstractDynamicComponent
+  {}
+
+  public abstract static class AbstractComponent extends AbstractDynamicComponent
+  {}
+
+  public static class NoDefaultCtorComponent extends AbstractDynamicComponent
+  {
+    public NoDefaultCtorComponent (final String sName)
+    {}
+  }
+
+  public static class ThrowingComponent extends AbstractDynamicComponent
+  {
+    public ThrowingComponent ()
+    {
+      throw new IllegalStateException ("ctor failed");
+    }
+  }
+
+  private static void _assertInvalid (final String sClassName, final String sExpectedMessage)
+  {
+    try
+    {
+      ServerXMLUtil.getComponentConstructor (sClassName);
+      fail ();
+    }
+    catch (final OpenAS2Exception ex)
+    {
+      assertEquals (sExpectedMessage, ex.getMessage ());
+    }
+  }
+
+  @Nonnull
+  private static IMicroElement _createElement (final String sClassName)
+  {
+    final IMicroElement aElement = new MicroDocument ().appendElement ("module");
+    aElement.setAttribute ("classname", sClassName);
+    return aElement;
+  }
+
+  @Test
+  public void testIsValidClassName ()
+  {
+    assertTrue (ServerXMLUtil.isValidClassName ("com.helger.as2.cmd.XMLCommandRegistry"));
+    assertTrue (ServerXMLUtil.isValidClassName ("Main"));
+    assertTrue (ServerXMLUtil.isValidClassName ("a.b$Inner"));
+    assertFalse (ServerXMLUtil.isValidClassName (null));
+    assertFalse (ServerXMLUtil.isValidClassName (""));
+    assertFalse (ServerXMLUtil.isValidClassName ("com.helger."));
+    assertFalse (ServerXMLUtil.isValidClassName (".com"));
+    assertFalse (ServerXMLUtil.isValidClassName ("com..helger"));
+    assertFalse (ServerXMLUtil.isValidClassName ("com.1helger"));
+    assertFalse (ServerXMLUtil.isValidClassName (" com.helger.Foo"));
+  }
+
+  @Test
+  public void testConstructorCache () throws OpenAS2Exception
+  {
+    final String sClassName = ValidComponent.class.getName ();
+    ServerXMLUtil.clearCache ();
+    final Object aCtor = ServerXMLUtil.getComponentConstructor (sClassName);
+    assertSame (aCtor, ServerXMLUtil.getComponentConstructor (sClassName));
+    assertTrue (ServerXMLUtil.createComponent (_createElement (sClassName), null) instanceof ValidComponent);
+    assertSame (aCtor, ServerXMLUtil.getComponentConstructor (sClassName));
+
+    // Reflection returns a new Constructor object for every lookup
+    ServerXMLUtil.clearCache ();
+    final Object aNewCtor = ServerXMLUtil.getComponentConstructor (sClassName);
+    assertNotSame (aCtor, aNewCtor);
+    assertEquals (aCtor, aNewCtor);
+  }
+
+  @Test
+  public void testInvalidComponentClasses ()
+  {
+    _assertInvalid (null, "Missing classname");
+    _assertInvalid ("com..Foo", "Invalid classname 'com..Foo'");
+    _assertInvalid ("com.helger.as2.DoesNotExist", "Class com.helger.as2.DoesNotExist not found");
+    _assertInvalid ("java.lang.String", "Class java.lang.String must implement " + IDynamicComponent.class.getName ());
+    _assertInvalid (AbstractComponent.class.getName (), "Class " + AbstractComponent.class.getName () + " is abstract");
+    _assertInvalid (NoDefaultCtorComponent.class.getName (), "Class " +
+                                                             NoDefaultCtorComponent.class.getName () +
+                                                             " has no public no-argument constructor");
+  }
+
+  @Test
+  public void testThrowingConstructor () throws OpenAS2Exception
+  {
+    final String sClassName = ThrowingComponent.class.getName ();
+    // The class itself is valid
+    ServerXMLUtil.getComponentConstructor (sClassName);
+    try
+    {
+      ServerXMLUtil.createComponent (_createElement (sClassName), null);
+      fail ();
+    }
+    catch (final OpenAS2Exception ex)
+    {
+      assertEquals ("Error creating component: " + sClassName, ex.getMessage ());
+      assertTrue (ex.getCause () instanceof IllegalStateException);
+      assertEquals ("ctor failed", ex.getCause ().getMessage ());
+    }
+  }
+}